@@ -1,4 +1,9 @@
 -keep class com.google.android.gms.**
 -dontwarn com.google.android.gms.**
 
--keep class cc.calliope.mini.** { *; }
\ No newline at end of file
+-keep class cc.calliope.mini.** { *; }
+
+# Hidden BluetoothGattCallback method implemented by DfuBaseService, called by the system on Android 8.0+
+-keepclassmembers class * extends android.bluetooth.BluetoothGattCallback {
+    public void onConnectionUpdated(android.bluetooth.BluetoothGatt, int, int, int, int);
+}
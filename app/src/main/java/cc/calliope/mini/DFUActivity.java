@@ -6,7 +6,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -17,12 +19,16 @@ import java.lang.reflect.Method;
 import cc.calliope.mini.adapter.ExtendedBluetoothDevice;
 import cc.calliope.mini.service.DfuService;
 import cc.calliope.mini.viewmodels.BlinkyViewModel;
+import no.nordicsemi.android.dfu.DfuScheduler;
+import no.nordicsemi.android.dfu.DfuSession;
+import no.nordicsemi.android.dfu.DfuSettingsConstants;
 import no.nordicsemi.android.error.GattError;
 
 public class DFUActivity extends AppCompatActivity {
 
 
     private DFUResultReceiver dfuResultReceiver;
+    private DfuScheduler dfuScheduler;
     private static final String TAG = DFUActivity.class.getSimpleName();
 
     private int mActivityState;
@@ -62,6 +68,16 @@ public class DFUActivity extends AppCompatActivity {
 
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The running update continues, only its progress is not followed any more
+        if (dfuScheduler != null) {
+            dfuScheduler.close();
+            dfuScheduler = null;
+        }
+    }
+
 
 
     private void pairDevice(BluetoothDevice device) {
@@ -152,6 +168,11 @@ public class DFUActivity extends AppCompatActivity {
         service.putExtra(DfuService.EXTRA_FILE_PATH, file); // a path or URI must be provided.
         service.putExtra(DfuService.EXTRA_KEEP_BOND, false);
         service.putExtra(DfuService.INTENT_REQUESTED_PHASE, 2);
+        // Partial flashing is opt-in, the full DFU is performed unless enabled in the settings
+        final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        service.putExtra(DfuService.EXTRA_PARTIAL_FLASHING,
+                preferences.getBoolean(DfuSettingsConstants.SETTINGS_PARTIAL_FLASHING, DfuSettingsConstants.SETTINGS_PARTIAL_FLASHING_DEFAULT));
+        service.putExtra(DfuService.EXTRA_MIN_LOG_LEVEL, DfuService.LOG_LEVEL_WARNING); // only the statistics events are used
 
         Log.i("DFUExtra", "mAddress: "+device.getAddress());
         Log.i("DFUExtra", "mPattern: "+device.getName());
@@ -161,10 +182,32 @@ public class DFUActivity extends AppCompatActivity {
 
         Log.i("DFUExtra", "Start Flashing");
 
-        startService(service);
+        // The scheduler starts one of the DFU services and gives it to the next board only when the service has finished
+        if (dfuScheduler == null) {
+            dfuScheduler = new DfuScheduler(this, dfuSchedulerListener, DfuService.SERVICES);
+            dfuScheduler.start();
+        }
+        dfuScheduler.add(service);
 
     }
 
+    private final DfuScheduler.Listener dfuSchedulerListener = new DfuScheduler.Listener() {
+        @Override
+        public void onSessionChanged(DfuSession session) {
+            Log.i("DFUScheduler", "Session: " + session);
+        }
+
+        @Override
+        public void onProgressChanged(int progress, int finished, int total) {
+            Log.i("DFUScheduler", "Progress: " + progress + "%, finished " + finished + " of " + total);
+        }
+
+        @Override
+        public void onCompleted() {
+            Log.i("DFUScheduler", "All boards finished");
+        }
+    };
+
     /**
      * Registers callbacks that allows to handle flashing process
      * and react to flashing progress, errors and log some messages.
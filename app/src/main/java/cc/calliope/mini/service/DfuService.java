@@ -7,6 +7,13 @@ import no.nordicsemi.android.dfu.DfuBaseService;
 
 public class DfuService extends DfuBaseService {
 
+    /**
+     * The services given to the {@link no.nordicsemi.android.dfu.DfuScheduler}, all declared in the AndroidManifest.xml. Each service flashes one board
+     * at a time, so up to this many boards are flashed at the same time.
+     */
+    @SuppressWarnings("unchecked")
+    public static final Class<? extends DfuBaseService>[] SERVICES = new Class[] { DfuService.class, DfuService2.class, DfuService3.class, DfuService4.class };
+
     @Override
     protected Class<? extends Activity> getNotificationTarget() {
         return NotificationActivity.class;
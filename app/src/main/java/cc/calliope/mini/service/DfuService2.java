@@ -0,0 +1,7 @@
+package cc.calliope.mini.service;
+
+/**
+ * Flashes another board while {@link DfuService} is busy, see {@link DfuService#SERVICES}.
+ */
+public class DfuService2 extends DfuService {
+}
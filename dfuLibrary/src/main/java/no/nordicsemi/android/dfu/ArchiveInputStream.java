@@ -23,14 +23,23 @@
 package no.nordicsemi.android.dfu;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import no.nordicsemi.android.dfu.manifest.FileInfo;
@@ -43,10 +52,15 @@ import no.nordicsemi.android.dfu.manifest.SoftDeviceBootloaderFileInfo;
  * or follow the backward compatibility syntax: must contain only files with names: application.hex/bin, softdevice.hex/dat or bootloader.hex/bin, optionally also application.dat
  * and/or system.dat with init packets.</p>
  * <p>The ArchiveInputStream will read only files with types specified by <b>types</b> parameter of the constructor.</p>
+ * <p>Entries that follow the 'manifest.json' file and are not required are skipped without being read to memory, required HEX files are converted to BIN directly
+ * from the ZIP stream. Entries that precede the manifest are kept as they are until the manifest is read and only the required ones are converted.
+ * Local files should be opened using {@link #ArchiveInputStream(File, int, int)}, which reads the manifest first using the ZIP central directory.</p>
  */
-public class ArchiveInputStream extends ZipInputStream {
+public class ArchiveInputStream extends InputStream {
 	/** The name of the manifest file is fixed. */
 	private static final String MANIFEST = "manifest.json";
+	/** The manifest adapter is created once and shared by all archives. Type adapters obtained from Gson are thread safe. */
+	private static final TypeAdapter<ManifestFile> MANIFEST_ADAPTER = new Gson().getAdapter(ManifestFile.class);
 	// Those file names are for backwards compatibility mode
 	private static final String SOFTDEVICE_HEX = "softdevice.hex";
 	private static final String SOFTDEVICE_BIN = "softdevice.bin";
@@ -57,7 +71,7 @@ public class ArchiveInputStream extends ZipInputStream {
 	private static final String SYSTEM_INIT = "system.dat";
 	private static final String APPLICATION_INIT = "application.dat";
 
-	/** Contains bytes arrays with BIN files. HEX files are converted to BIN before being added to this map. */
+	/** Contains bytes arrays with the required BIN files. HEX files are converted to BIN before being added to this map. Cleared when the ZIP has been parsed. */
 	private Map<String, byte[]> entries;
 	private Manifest manifest;
 
@@ -92,7 +106,7 @@ public class ArchiveInputStream extends ZipInputStream {
 	 * </p>
 	 * 
 	 * @param stream
-	 *            the Zip Input Stream
+	 *            the stream with the ZIP content
 	 * @param mbrSize
 	 *            The size of the MRB segment (Master Boot Record) on the device. The parser will cut data from addresses below that number from all HEX files.
 	 * @param types
@@ -100,7 +114,7 @@ public class ArchiveInputStream extends ZipInputStream {
 	 * @throws java.io.IOException
 	 */
 	public ArchiveInputStream(final InputStream stream, final int mbrSize, final int types) throws IOException {
-		super(stream);
+		final ZipInputStream zis = new ZipInputStream(stream);
 
 		this.entries = new HashMap<>();
 		this.bytesRead = 0;
@@ -108,151 +122,234 @@ public class ArchiveInputStream extends ZipInputStream {
 
 		try {
 			/*
-			 * This method reads all entries from the ZIP file and puts them to entries map.
-			 * The 'manifest.json' file, if exists, is converted to the manifestData String.
+			 * This method reads the required entries from the ZIP file and puts them to entries map.
+			 * The 'manifest.json' file, if exists, is parsed to the manifest object.
 			 */
-			parseZip(mbrSize);
+			parseZip(zis, mbrSize, types);
+			selectFiles(types);
+		} finally {
+			entries = null;
+			zis.close();
+		}
+	}
 
-			/*
-			 * Let's read and parse the 'manifest.json' file.
-			 */
-			if (manifest != null) {
-				boolean valid = false;
+	/**
+	 * <p>
+	 * The ArchiveInputStream read HEX or BIN files from the ZIP file. Unlike {@link #ArchiveInputStream(InputStream, int, int)} this constructor uses the ZIP central
+	 * directory: the 'manifest.json' file is read first and then only the required entries are opened, no matter where they are located in the file.
+	 * </p>
+	 *
+	 * @param file
+	 *            the ZIP file
+	 * @param mbrSize
+	 *            The size of the MRB segment (Master Boot Record) on the device. The parser will cut data from addresses below that number from all HEX files.
+	 * @param types
+	 *            File types that are to be read from the ZIP. Use {@link DfuBaseService#TYPE_APPLICATION} etc.
+	 * @throws java.io.IOException
+	 * @see #ArchiveInputStream(InputStream, int, int)
+	 */
+	public ArchiveInputStream(final File file, final int mbrSize, final int types) throws IOException {
+		final ZipFile zipFile = new ZipFile(file);
 
-				// Read the application
-				if (manifest.getApplicationInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0)) {
-					final FileInfo application = manifest.getApplicationInfo();
-					applicationBytes = entries.get(application.getBinFileName());
-					applicationInitBytes = entries.get(application.getDatFileName());
+		this.entries = new HashMap<>();
+		this.bytesRead = 0;
+		this.bytesReadFromCurrentSource = 0;
 
-					if (applicationBytes == null)
-						throw new IOException("Application file " + application.getBinFileName() + " not found.");
+		try {
+			parseZip(zipFile, mbrSize, types);
+			selectFiles(types);
+		} finally {
+			entries = null;
+			zipFile.close();
+		}
+	}
 
-					applicationSize = applicationBytes.length;
-					currentSource = applicationBytes;
-					valid = true;
-				}
+	/**
+	 * Creates a new stream with firmware files already read by the given archive. No file is read or converted again, the byte arrays are shared.
+	 * This is used when the content of the ZIP is sent in more than one connection, f.e. the Soft Device and Bootloader first, and then the Application.
+	 * The given archive must not have been read or closed.
+	 *
+	 * @param archive
+	 *            the archive to take the files from
+	 * @param types
+	 *            File types that are to be read. Use {@link DfuBaseService#TYPE_APPLICATION} etc.
+	 * @throws IOException
+	 *             if none of the given types is present in the archive
+	 */
+	ArchiveInputStream(final ArchiveInputStream archive, final int types) throws IOException {
+		this.manifest = archive.manifest;
+		this.softDeviceBytes = archive.softDeviceBytes;
+		this.bootloaderBytes = archive.bootloaderBytes;
+		this.softDeviceAndBootloaderBytes = archive.softDeviceAndBootloaderBytes;
+		this.applicationBytes = archive.applicationBytes;
+		this.systemInitBytes = archive.systemInitBytes;
+		this.applicationInitBytes = archive.applicationInitBytes;
+		this.softDeviceSize = archive.softDeviceSize;
+		this.bootloaderSize = archive.bootloaderSize;
+		this.applicationSize = archive.applicationSize;
+		this.bytesRead = 0;
+		this.bytesReadFromCurrentSource = 0;
 
-				// Read the Bootloader
-				if (manifest.getBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
-					if (systemInitBytes != null)
-						throw new IOException("Manifest: softdevice and bootloader specified. Use softdevice_bootloader instead.");
+		final int t = types == DfuBaseService.TYPE_AUTO ? getContentType() : setContentType(types);
+		if (t == 0)
+			throw new IOException("The ZIP file must contain an Application, a Soft Device and/or a Bootloader.");
+		if ((t & (DfuBaseService.TYPE_SOFT_DEVICE | DfuBaseService.TYPE_BOOTLOADER)) == 0)
+			systemInitBytes = null;
+		if ((t & DfuBaseService.TYPE_APPLICATION) == 0)
+			applicationInitBytes = null;
+
+		// The files are sent in the order: Soft Device (or Soft Device with Bootloader), Bootloader, Application
+		if (softDeviceAndBootloaderBytes != null)
+			currentSource = softDeviceAndBootloaderBytes;
+		else if (softDeviceBytes != null)
+			currentSource = softDeviceBytes;
+		else if (bootloaderBytes != null)
+			currentSource = bootloaderBytes;
+		else
+			currentSource = applicationBytes;
+	}
 
-					final FileInfo bootloader = manifest.getBootloaderInfo();
-					bootloaderBytes = entries.get(bootloader.getBinFileName());
-					systemInitBytes = entries.get(bootloader.getDatFileName());
+	/**
+	 * Sets the firmware and init packet sources from the {@link #entries} map basing on the manifest, or the file names in the compatibility mode.
+	 */
+	private void selectFiles(final int types) throws IOException {
+		/*
+		 * Let's read and parse the 'manifest.json' file.
+		 */
+		if (manifest != null) {
+			boolean valid = false;
+
+			// Read the application
+			if (manifest.getApplicationInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0)) {
+				final FileInfo application = manifest.getApplicationInfo();
+				applicationBytes = entries.get(application.getBinFileName());
+				applicationInitBytes = entries.get(application.getDatFileName());
+
+				if (applicationBytes == null)
+					throw new IOException("Application file " + application.getBinFileName() + " not found.");
+
+				applicationSize = applicationBytes.length;
+				currentSource = applicationBytes;
+				valid = true;
+			}
 
-					if (bootloaderBytes == null)
-						throw new IOException("Bootloader file " + bootloader.getBinFileName() + " not found.");
+			// Read the Bootloader
+			if (manifest.getBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
+				if (systemInitBytes != null)
+					throw new IOException("Manifest: softdevice and bootloader specified. Use softdevice_bootloader instead.");
 
-					bootloaderSize = bootloaderBytes.length;
-					currentSource = bootloaderBytes;
-					valid = true;
-				}
+				final FileInfo bootloader = manifest.getBootloaderInfo();
+				bootloaderBytes = entries.get(bootloader.getBinFileName());
+				systemInitBytes = entries.get(bootloader.getDatFileName());
 
-				// Read the Soft Device
-				if (manifest.getSoftdeviceInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0)) {
-					final FileInfo softdevice = manifest.getSoftdeviceInfo();
-					softDeviceBytes = entries.get(softdevice.getBinFileName());
-					systemInitBytes = entries.get(softdevice.getDatFileName());
+				if (bootloaderBytes == null)
+					throw new IOException("Bootloader file " + bootloader.getBinFileName() + " not found.");
 
-					if (softDeviceBytes == null)
-						throw new IOException("SoftDevice file " + softdevice.getBinFileName() + " not found.");
+				bootloaderSize = bootloaderBytes.length;
+				currentSource = bootloaderBytes;
+				valid = true;
+			}
 
-					softDeviceSize = softDeviceBytes.length;
-					currentSource = softDeviceBytes;
-					valid = true;
-				}
+			// Read the Soft Device
+			if (manifest.getSoftdeviceInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0)) {
+				final FileInfo softdevice = manifest.getSoftdeviceInfo();
+				softDeviceBytes = entries.get(softdevice.getBinFileName());
+				systemInitBytes = entries.get(softdevice.getDatFileName());
 
-				// Read the combined Soft Device and Bootloader
-				if (manifest.getSoftdeviceBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO ||
-						((types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) && (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
+				if (softDeviceBytes == null)
+					throw new IOException("SoftDevice file " + softdevice.getBinFileName() + " not found.");
 
-					if (systemInitBytes != null)
-						throw new IOException("Manifest: The softdevice_bootloader may not be used together with softdevice or bootloader.");
+				softDeviceSize = softDeviceBytes.length;
+				currentSource = softDeviceBytes;
+				valid = true;
+			}
+
+			// Read the combined Soft Device and Bootloader
+			if (manifest.getSoftdeviceBootloaderInfo() != null && (types == DfuBaseService.TYPE_AUTO ||
+					((types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) && (types & DfuBaseService.TYPE_BOOTLOADER) > 0)) {
 
-					final SoftDeviceBootloaderFileInfo system = manifest.getSoftdeviceBootloaderInfo();
-					softDeviceAndBootloaderBytes = entries.get(system.getBinFileName());
-					systemInitBytes = entries.get(system.getDatFileName());
+				if (systemInitBytes != null)
+					throw new IOException("Manifest: The softdevice_bootloader may not be used together with softdevice or bootloader.");
 
-					if (softDeviceAndBootloaderBytes == null)
-						throw new IOException("File " + system.getBinFileName() + " not found.");
+				final SoftDeviceBootloaderFileInfo system = manifest.getSoftdeviceBootloaderInfo();
+				softDeviceAndBootloaderBytes = entries.get(system.getBinFileName());
+				systemInitBytes = entries.get(system.getDatFileName());
 
-					softDeviceSize = system.getSoftdeviceSize();
-					bootloaderSize = system.getBootloaderSize();
-					currentSource = softDeviceAndBootloaderBytes;
+				if (softDeviceAndBootloaderBytes == null)
+					throw new IOException("File " + system.getBinFileName() + " not found.");
+
+				softDeviceSize = system.getSoftdeviceSize();
+				bootloaderSize = system.getBootloaderSize();
+				currentSource = softDeviceAndBootloaderBytes;
+				valid = true;
+			}
+
+			if (!valid) {
+				throw new IOException("Manifest file must specify at least one file.");
+			}
+		} else {
+			/*
+			 * Compatibility mode. The 'manifest.json' file does not exist.
+			 *
+			 * In that case the ZIP file must contain one or more of the following files:
+			 *
+			 * - application.hex/dat
+			 *     + application.dat
+			 * - softdevice.hex/dat
+			 * - bootloader.hex/dat
+			 *     + system.dat
+			 */
+			boolean valid = false;
+			// Search for the application
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0) {
+				applicationBytes = entries.get(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (applicationBytes == null)
+					applicationBytes = entries.get(APPLICATION_BIN);
+
+				if (applicationBytes != null) {
+					applicationSize = applicationBytes.length;
+					applicationInitBytes = entries.get(APPLICATION_INIT);
+					currentSource = applicationBytes;
 					valid = true;
 				}
+			}
 
-				if (!valid) {
-					throw new IOException("Manifest file must specify at least one file.");
-				}
-			} else {
-				/*
-				 * Compatibility mode. The 'manifest.json' file does not exist.
-				 *
-				 * In that case the ZIP file must contain one or more of the following files:
-				 *
-				 * - application.hex/dat
-				 *     + application.dat
-				 * - softdevice.hex/dat
-				 * - bootloader.hex/dat
-				 *     + system.dat
-				 */
-				boolean valid = false;
-				// Search for the application
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0) {
-					applicationBytes = entries.get(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (applicationBytes == null)
-						applicationBytes = entries.get(APPLICATION_BIN);
-
-					if (applicationBytes != null) {
-						applicationSize = applicationBytes.length;
-						applicationInitBytes = entries.get(APPLICATION_INIT);
-						currentSource = applicationBytes;
-						valid = true;
-					}
-				}
+			// Search for theBootloader
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0) {
+				bootloaderBytes = entries.get(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (bootloaderBytes == null)
+					bootloaderBytes = entries.get(BOOTLOADER_BIN);
 
-				// Search for theBootloader
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0) {
-					bootloaderBytes = entries.get(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (bootloaderBytes == null)
-						bootloaderBytes = entries.get(BOOTLOADER_BIN);
-
-					if (bootloaderBytes != null) {
-						bootloaderSize = bootloaderBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
-						currentSource = bootloaderBytes;
-						valid = true;
-					}
+				if (bootloaderBytes != null) {
+					bootloaderSize = bootloaderBytes.length;
+					systemInitBytes = entries.get(SYSTEM_INIT);
+					currentSource = bootloaderBytes;
+					valid = true;
 				}
+			}
 
-				// Search for the Soft Device
-				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) {
-					softDeviceBytes = entries.get(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
-					if (softDeviceBytes == null)
-						softDeviceBytes = entries.get(SOFTDEVICE_BIN);
-
-					if (softDeviceBytes != null) {
-						softDeviceSize = softDeviceBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
-						currentSource = softDeviceBytes;
-						valid = true;
-					}
-				}
+			// Search for the Soft Device
+			if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) {
+				softDeviceBytes = entries.get(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+				if (softDeviceBytes == null)
+					softDeviceBytes = entries.get(SOFTDEVICE_BIN);
 
-				if (!valid) {
-					throw new IOException("The ZIP file must contain an Application, a Soft Device and/or a Bootloader.");
+				if (softDeviceBytes != null) {
+					softDeviceSize = softDeviceBytes.length;
+					systemInitBytes = entries.get(SYSTEM_INIT);
+					currentSource = softDeviceBytes;
+					valid = true;
 				}
 			}
-		} finally {
-			super.close();
+
+			if (!valid) {
+				throw new IOException("The ZIP file must contain an Application, a Soft Device and/or a Bootloader.");
+			}
 		}
 	}
 
 	/**
-	 * Reads all files into byte arrays.
+	 * Reads the required files into byte arrays.
 	 * Here we don't know whether the ZIP file is valid.
 	 *
 	 * The ZIP file is valid when contains a 'manifest.json' file and all BIN and DAT files that are specified in the manifest.
@@ -261,41 +358,159 @@ public class ArchiveInputStream extends ZipInputStream {
 	 * but than it MUST include at least one of the following files: softdevice.bin/hex, bootloader.bin/hex, application.bin/hex.
 	 * To support the init packet such ZIP file should contain also application.dat and/or system.dat (with the CRC16 of a SD, BL or SD+BL together).
 	 */
-	private void parseZip(int mbrSize) throws IOException {
-		final byte[] buffer = new byte[1024];
-		String manifestData = null;
+	private void parseZip(final ZipInputStream zis, final int mbrSize, final int types) throws IOException {
+		// Entries read before the manifest, we don't know yet whether they will be needed. HEX files are not converted.
+		final Map<String, byte[]> pending = new HashMap<>();
 
 		ZipEntry ze;
-		while ((ze = getNextEntry()) != null) {
+		while ((ze = zis.getNextEntry()) != null) {
 			final String filename = ze.getName();
 
-			// Read file content to byte array
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			int count;
-			while ((count = super.read(buffer)) != -1) {
-				baos.write(buffer, 0, count);
+			if (MANIFEST.equals(filename)) {
+				manifest = readManifest(zis);
+				continue;
 			}
-			byte[] source = baos.toByteArray();
 
-			// In case of HEX file convert it to BIN
-			if (filename.toLowerCase(Locale.US).endsWith("hex")) {
-				final HexInputStream is = new HexInputStream(source, mbrSize);
-				source = new byte[is.available()];
-				is.read(source);
+			if (manifest == null) {
+				pending.put(filename, readEntry(zis, ze));
+			} else if (isRequired(filename, types)) {
+				// The HEX file is converted directly from the ZIP stream
+				entries.put(filename, isHex(filename) ? convert(zis, mbrSize) : readEntry(zis, ze));
+			}
+			// other entries are skipped by getNextEntry()
+		}
+
+		final Set<Map.Entry<String, byte[]>> files = pending.entrySet();
+		for (final Map.Entry<String, byte[]> file : files) {
+			final String filename = file.getKey();
+			if (isRequired(filename, types)) {
+				final byte[] source = file.getValue();
+				entries.put(filename, isHex(filename) ? convert(new ByteArrayInputStream(source), mbrSize) : source);
+			}
+			file.setValue(null); // let the GC release the content
+		}
+	}
+
+	/**
+	 * Reads the required files into byte arrays using the central directory of the ZIP file. The 'manifest.json' file is read first, so entries that are not
+	 * required are never inflated.
+	 */
+	private void parseZip(final ZipFile zipFile, final int mbrSize, final int types) throws IOException {
+		final ZipEntry manifestEntry = zipFile.getEntry(MANIFEST);
+		if (manifestEntry != null) {
+			final InputStream is = zipFile.getInputStream(manifestEntry);
+			try {
+				manifest = readManifest(is);
+			} finally {
+				is.close();
+			}
+		}
+
+		final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+		while (zipEntries.hasMoreElements()) {
+			final ZipEntry ze = zipEntries.nextElement();
+			final String filename = ze.getName();
+			if (ze == manifestEntry || MANIFEST.equals(filename) || !isRequired(filename, types))
+				continue;
+
+			final InputStream is = zipFile.getInputStream(ze);
+			try {
+				entries.put(filename, isHex(filename) ? convert(is, mbrSize) : readEntry(is, ze));
+			} finally {
 				is.close();
 			}
+		}
+	}
 
-			// Save the file content either as a manifest data or by adding it to entries
-			if (MANIFEST.equals(filename))
-				manifestData = new String(source, "UTF-8");
-			else
-				entries.put(filename, source);
+	/**
+	 * Parses the 'manifest.json' file directly from the given stream. The stream is not closed.
+	 *
+	 * @return the manifest, or <code>null</code> if the file is empty
+	 * @throws IOException
+	 *             if the file is not a valid manifest
+	 */
+	private static Manifest readManifest(final InputStream in) throws IOException {
+		final JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		reader.setLenient(true);
+		try {
+			final ManifestFile manifestFile = MANIFEST_ADAPTER.read(reader);
+			return manifestFile != null ? manifestFile.getManifest() : null;
+		} catch (final JsonParseException e) {
+			// Gson wraps structural and number format errors in a JsonSyntaxException
+			throw new IOException("Invalid manifest file: " + e.getMessage(), e);
 		}
+	}
 
-		if (manifestData != null) {
-			final ManifestFile manifestFile = new Gson().fromJson(manifestData, ManifestFile.class);
-			manifest = manifestFile.getManifest();
+	/**
+	 * Returns whether the file with given name will be sent, or used as an init packet, for the given types. If the manifest has not been found the names from
+	 * the compatibility mode are checked.
+	 */
+	private boolean isRequired(final String filename, final int types) {
+		if (manifest != null) {
+			final boolean softDevice = isSelected(types, DfuBaseService.TYPE_SOFT_DEVICE);
+			final boolean bootloader = isSelected(types, DfuBaseService.TYPE_BOOTLOADER);
+			return isRequired(manifest.getApplicationInfo(), filename, isSelected(types, DfuBaseService.TYPE_APPLICATION))
+					|| isRequired(manifest.getBootloaderInfo(), filename, bootloader)
+					|| isRequired(manifest.getSoftdeviceInfo(), filename, softDevice)
+					|| isRequired(manifest.getSoftdeviceBootloaderInfo(), filename, types == DfuBaseService.TYPE_AUTO || (softDevice && bootloader));
 		}
+
+		if (APPLICATION_HEX.equals(filename) || APPLICATION_BIN.equals(filename) || APPLICATION_INIT.equals(filename))
+			return isSelected(types, DfuBaseService.TYPE_APPLICATION);
+		if (BOOTLOADER_HEX.equals(filename) || BOOTLOADER_BIN.equals(filename))
+			return isSelected(types, DfuBaseService.TYPE_BOOTLOADER);
+		if (SOFTDEVICE_HEX.equals(filename) || SOFTDEVICE_BIN.equals(filename))
+			return isSelected(types, DfuBaseService.TYPE_SOFT_DEVICE);
+		if (SYSTEM_INIT.equals(filename))
+			return isSelected(types, DfuBaseService.TYPE_SOFT_DEVICE) || isSelected(types, DfuBaseService.TYPE_BOOTLOADER);
+		return false;
+	}
+
+	private static boolean isRequired(final FileInfo info, final String filename, final boolean selected) {
+		return selected && info != null && (filename.equals(info.getBinFileName()) || filename.equals(info.getDatFileName()));
+	}
+
+	private static boolean isSelected(final int types, final int type) {
+		return types == DfuBaseService.TYPE_AUTO || (types & type) > 0;
+	}
+
+	private static boolean isHex(final String filename) {
+		return filename.toLowerCase(Locale.US).endsWith("hex");
+	}
+
+	/**
+	 * Reads the content of the entry from the given stream into a byte array.
+	 */
+	private static byte[] readEntry(final InputStream in, final ZipEntry ze) throws IOException {
+		final long size = ze.getSize();
+		if (size >= 0 && size <= Integer.MAX_VALUE) {
+			// The size is known, read directly into the array
+			final byte[] source = new byte[(int) size];
+			int offset = 0, count;
+			while (offset < source.length && (count = in.read(source, offset, source.length - offset)) != -1)
+				offset += count;
+			if (offset != source.length)
+				throw new IOException("Unexpected end of entry " + ze.getName());
+			return source;
+		}
+
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[1024];
+		int count;
+		while ((count = in.read(buffer, 0, buffer.length)) != -1) {
+			baos.write(buffer, 0, count);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Converts the HEX file from the given stream to BIN. The stream is not closed.
+	 */
+	private static byte[] convert(final InputStream in, final int mbrSize) throws IOException {
+		final HexInputStream is = new HexInputStream(in, mbrSize);
+		final byte[] bin = new byte[is.available()];
+		is.readPacket(bin);
+		return bin;
 	}
 
 	@Override
@@ -307,7 +522,11 @@ public class ArchiveInputStream extends ZipInputStream {
 		softDeviceSize = bootloaderSize = applicationSize = 0;
 		currentSource = null;
 		bytesRead = bytesReadFromCurrentSource = 0;
-		super.close();
+	}
+
+	@Override
+	public int read() throws IOException {
+		throw new UnsupportedOperationException("Please, use read(byte[]) method instead");
 	}
 
 	@Override
@@ -0,0 +1,178 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A persistent cache of BIN images extracted from HEX files. The images are stored in the application's cache directory and are identified by the SHA-1 of the HEX
+ * file content and the parsing mode (FOTA region or MBR size), so flashing the same program again does not require parsing the HEX file.
+ * <p>
+ * The cache is trimmed to {@link DfuSettingsConstants#BIN_CACHE_MAX_SIZE} bytes, removing the least recently used images first. All errors are logged and ignored,
+ * the caller should then parse the HEX file as usual.
+ * </p>
+ */
+class BinCache {
+	private static final String TAG = "BinCache";
+	private static final String DIRECTORY = "dfu_bin";
+	private static final String EXTENSION = ".bin";
+	/** The version of the BIN content, changed when {@link HexInputStream} converts the same HEX file differently. Images of older versions are not used. */
+	private static final String VERSION = "_v2";
+	private static final char[] HEX_ARRAY = "0123456789abcdef".toCharArray();
+
+	private final File directory;
+	private final long maxSize;
+
+	BinCache(final Context context, final long maxSize) {
+		this.directory = new File(context.getCacheDir(), DIRECTORY);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Returns the cache key for the given HEX file content.
+	 *
+	 * @param hex
+	 *            the HEX file content. The position of the buffer is not changed.
+	 * @param mbrSize
+	 *            the MBR size given to the {@link HexInputStream}, or -1 for the FOTA region
+	 * @return the key, or <code>null</code> if it could not be calculated
+	 */
+	static String getKey(final ByteBuffer hex, final int mbrSize) {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException e) {
+			Log.w(TAG, "SHA-1 not supported, BIN cache disabled");
+			return null;
+		}
+		digest.update(hex.duplicate());
+
+		final byte[] hash = digest.digest();
+		final StringBuilder builder = new StringBuilder(hash.length * 2 + 10);
+		for (final byte b : hash) {
+			builder.append(HEX_ARRAY[(b >> 4) & 0x0F]).append(HEX_ARRAY[b & 0x0F]);
+		}
+		if (mbrSize == -1)
+			builder.append("_fota");
+		else
+			builder.append("_mbr").append(Integer.toHexString(mbrSize));
+		return builder.append(VERSION).toString();
+	}
+
+	/**
+	 * Returns the cached BIN image for the given key and marks it as recently used.
+	 *
+	 * @param key
+	 *            the key obtained from {@link #getKey(ByteBuffer, int)}
+	 * @return the file with the BIN image, or <code>null</code> if not cached
+	 */
+	File get(final String key) {
+		if (key == null)
+			return null;
+
+		final File file = new File(directory, key + EXTENSION);
+		if (!file.isFile())
+			return null;
+
+		//noinspection ResultOfMethodCallIgnored
+		file.setLastModified(System.currentTimeMillis());
+		return file;
+	}
+
+	/**
+	 * Stores the BIN content of the given stream. The stream position is not changed.
+	 *
+	 * @param key
+	 *            the key obtained from {@link #getKey(ByteBuffer, int)}
+	 * @param stream
+	 *            the parsed HEX file
+	 */
+	void put(final String key, final HexInputStream stream) {
+		if (key == null)
+			return;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.w(TAG, "Could not create " + directory);
+			return;
+		}
+
+		// The image is written to a temporary file first, so a partially written file is never returned by get(String)
+		final File tmp = new File(directory, key + ".tmp");
+		try {
+			final FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				stream.writeTo(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(new File(directory, key + EXTENSION)))
+				throw new IOException("Rename failed");
+		} catch (final IOException e) {
+			Log.w(TAG, "Could not cache BIN image", e);
+			//noinspection ResultOfMethodCallIgnored
+			tmp.delete();
+			return;
+		}
+		trim();
+	}
+
+	/**
+	 * Removes the least recently used images until the total size of the cache is not greater than {@link #maxSize}.
+	 */
+	private void trim() {
+		final File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		long size = 0;
+		for (final File file : files)
+			size += file.length();
+		if (size <= maxSize)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(final File lhs, final File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < files.length && size > maxSize; ++i) {
+			final long length = files[i].length();
+			if (files[i].delete())
+				size -= length;
+		}
+	}
+}
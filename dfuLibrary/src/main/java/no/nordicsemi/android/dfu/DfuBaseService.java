@@ -51,13 +51,24 @@ import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import no.nordicsemi.android.dfu.exception.DeviceDisconnectedException;
 import no.nordicsemi.android.dfu.exception.DfuException;
@@ -65,6 +76,7 @@ import no.nordicsemi.android.dfu.exception.HexFileValidationException;
 import no.nordicsemi.android.dfu.exception.RemoteDfuException;
 import no.nordicsemi.android.dfu.exception.UnknownResponseException;
 import no.nordicsemi.android.dfu.exception.UploadAbortedException;
+import no.nordicsemi.android.dfu.transport.GattDfuTransport;
 import no.nordicsemi.android.error.GattError;
 
 /**
@@ -118,6 +130,14 @@ public abstract class DfuBaseService extends IntentService {
     public static final String EXTRA_DEVICE_NAME = "no.nordicsemi.android.dfu.extra.EXTRA_DEVICE_NAME";
 
     public static final String EXTRA_DEVICE_PAIR_CODE = "no.nordicsemi.android.dfu.extra.EXTRA_DEVICE_PAIR_CODE";
+
+    /**
+     * <p>If this flag is set to <code>true</code> the service first tries to send only the MakeCode program using the Partial Flashing Service of the running firmware.
+     * The program is sent only if the runtime (DAL) on the device is the same as the one the program was built with, otherwise, or if the device does not support
+     * partial flashing, the full DFU is performed. Only HEX files given with {@link #EXTRA_FILE_PATH} are supported.</p>
+     * <p>The default value of this flag is <code>false</code></p>
+     */
+    public static final String EXTRA_PARTIAL_FLASHING = "no.nordicsemi.android.dfu.extra.EXTRA_PARTIAL_FLASHING";
     /**
      * <p>
      * If the new firmware (application) does not share the bond information with the old one, the bond information is lost. Set this flag to <code>true</code>
@@ -309,7 +329,12 @@ public abstract class DfuBaseService extends IntentService {
     public static final String EXTRA_PARTS_TOTAL = "no.nordicsemi.android.dfu.extra.EXTRA_PARTS_TOTAL";
 
     /**
-     * The current upload speed in bytes/millisecond.
+     * The number of the reconnection attempt after the link has been lost during the DFU process, 0 for the first connection.
+     */
+    private static final String EXTRA_RECONNECT_ATTEMPT = "no.nordicsemi.android.dfu.extra.EXTRA_RECONNECT_ATTEMPT";
+
+    /**
+     * The current upload speed in bytes/millisecond, averaged over the last second or so. See {@link DfuProgressChannel}.
      */
     public static final String EXTRA_SPEED_B_PER_MS = "no.nordicsemi.android.dfu.extra.EXTRA_SPEED_B_PER_MS";
 
@@ -385,6 +410,14 @@ public abstract class DfuBaseService extends IntentService {
 
 
     public static final int PROGRESS_WAITING_REBOOT = -9;
+
+    /**
+     * The service has finished handling the request and is ready for the next one. This broadcast is sent after every request, also when the service has stopped
+     * without reporting the result, and contains the {@link #EXTRA_DEVICE_ADDRESS} extra. The {@link DfuScheduler} starts the next session on the service only
+     * after receiving it.
+     */
+    public static final String BROADCAST_FINISHED = "no.nordicsemi.android.dfu.broadcast.BROADCAST_FINISHED";
+
     /**
      * The broadcast error message contains the following extras:
      * <ul>
@@ -464,6 +497,10 @@ public abstract class DfuBaseService extends IntentService {
      * Thrown when the firmware file is not word-aligned. The firmware size must be dividable by 4 bytes.
      */
     public static final int ERROR_FILE_SIZE_INVALID = ERROR_MASK | 0x0C;
+    /**
+     * Thrown when the DFU target has not responded in the time given for the current step of the DFU process.
+     */
+    public static final int ERROR_TIMEOUT = ERROR_MASK | 0x0D;
     /**
      * Flag set then the DFU target returned a DFU error. Look for DFU specification to get error codes.
      */
@@ -491,6 +528,12 @@ public abstract class DfuBaseService extends IntentService {
     public static final String BROADCAST_LOG = "no.nordicsemi.android.dfu.broadcast.BROADCAST_LOG";
     public static final String EXTRA_LOG_MESSAGE = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_INFO";
     public static final String EXTRA_LOG_LEVEL = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_LEVEL";
+    /**
+     * The minimum level of log events broadcast with {@link #BROADCAST_LOG}, one of the log levels below. Events of lower levels are not built at all,
+     * f.e. with {@link #LOG_LEVEL_WARNING} no value of a written or notified characteristic is formatted during the update. The statistics events
+     * ({@link #LOG_LEVEL_BINARY_SIZE}, {@link #LOG_LEVEL_FIRMWARE}) are always sent. By default all events are broadcast.
+     */
+    public static final String EXTRA_MIN_LOG_LEVEL = "no.nordicsemi.android.dfu.extra.EXTRA_MIN_LOG_LEVEL";
 
 	/*
      * Note:
@@ -537,7 +580,8 @@ public abstract class DfuBaseService extends IntentService {
 
     /**
      * Activity may broadcast this broadcast in order to pause, resume or abort DFU process.
-     * Use {@link #EXTRA_ACTION} extra to pass the action.
+     * Use {@link #EXTRA_ACTION} extra to pass the action. If the {@link #EXTRA_DEVICE_ADDRESS} extra is set, only the service updating that device
+     * will handle the action, otherwise all running services will.
      */
     public static final String BROADCAST_ACTION = "no.nordicsemi.android.dfu.broadcast.BROADCAST_ACTION";
 
@@ -585,7 +629,6 @@ public abstract class DfuBaseService extends IntentService {
     private static final int OP_CODE_PACKET_RECEIPT_NOTIF_REQ_KEY = 0x08; // 8
     private static final int OP_CODE_RESPONSE_CODE_KEY = 0x10; // 16
     private static final int OP_CODE_PACKET_RECEIPT_NOTIF_KEY = 0x11; // 11
-    private static final byte[] OP_CODE_START_DFU = new byte[]{OP_CODE_START_DFU_KEY, 0x00};
     private static final byte[] OP_CODE_INIT_DFU_PARAMS_START = new byte[]{OP_CODE_INIT_DFU_PARAMS_KEY, 0x00};
     private static final byte[] OP_CODE_INIT_DFU_PARAMS_COMPLETE = new byte[]{OP_CODE_INIT_DFU_PARAMS_KEY, 0x01};
     private static final byte[] OP_CODE_RECEIVE_FIRMWARE_IMAGE = new byte[]{OP_CODE_RECEIVE_FIRMWARE_IMAGE_KEY};
@@ -594,7 +637,12 @@ public abstract class DfuBaseService extends IntentService {
     private static final byte[] OP_CODE_RESET = new byte[]{OP_CODE_RESET_KEY};
 
     //private static final byte[] OP_CODE_REPORT_RECEIVED_IMAGE_SIZE = new byte[] { OP_CODE_PACKET_REPORT_RECEIVED_IMAGE_SIZE_KEY };
-    private static final byte[] OP_CODE_PACKET_RECEIPT_NOTIF_REQ = new byte[]{OP_CODE_PACKET_RECEIPT_NOTIF_REQ_KEY, 0x00, 0x00};
+    /*
+     * The following Op Codes are modified before being sent, so each service instance has its own copy. Services extending this class may run concurrently,
+     * see DfuScheduler.
+     */
+    private final byte[] mOpCodeStartDfu = new byte[]{OP_CODE_START_DFU_KEY, 0x00};
+    private final byte[] mOpCodePacketReceiptNotifReq = new byte[]{OP_CODE_PACKET_RECEIPT_NOTIF_REQ_KEY, 0x00, 0x00};
 
     private static final UUID DEVICE_INFORMATION_SERVICE_UUID = new UUID(0x0000180A00001000l, 0x800000805F9B34FBl);
     private static final UUID FIRMWARE_REVISION_UUID = new UUID(0x00002A2600001000l, 0x800000805F9B34FBl);
@@ -602,7 +650,7 @@ public abstract class DfuBaseService extends IntentService {
 
     // UUIDs used by the DFU
     private static final UUID GENERIC_ATTRIBUTE_SERVICE_UUID = new UUID(0x0000180100001000l, 0x800000805F9B34FBl);
-    private static final UUID SERVICE_CHANGED_UUID = new UUID(0x00002A0500001000l, 0x800000805F9B34FBl);
+    static final UUID SERVICE_CHANGED_UUID = new UUID(0x00002A0500001000l, 0x800000805F9B34FBl);
 
     private static final UUID DFU_SERVICE_UUID = new UUID(0x000015301212EFDEl, 0x1523785FEABCD123l);
     private static final UUID DFU_CONTROL_POINT_UUID = new UUID(0x000015311212EFDEl, 0x1523785FEABCD123l);
@@ -616,21 +664,67 @@ public abstract class DfuBaseService extends IntentService {
 
     private static final UUID CLIENT_CHARACTERISTIC_CONFIGURATION_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
+    private static final UUID PARTIAL_FLASHING_SERVICE_UUID = UUID.fromString("E97DD91D-251D-470A-A062-FA1922DFA9A8");
+    private static final UUID PARTIAL_FLASHING_CHARACTERISTIC_UUID = UUID.fromString("E97D3B10-251D-470A-A062-FA1922DFA9A8");
+    private static final byte PARTIAL_FLASHING_REGION_INFO = 0x00;
+    private static final byte PARTIAL_FLASHING_FLASH_DATA = 0x01;
+    private static final byte PARTIAL_FLASHING_END_OF_TRANSMISSION = 0x02;
+    private static final int PARTIAL_FLASHING_REGION_DAL = 1;
+    private static final int PARTIAL_FLASHING_REGION_MAKECODE = 2;
+    private static final int PARTIAL_FLASHING_PACKET_RETRANSMIT = 0xAA;
+    /**
+     * The data is sent in blocks of 4 packets, 16 bytes each. The device confirms each block with a notification.
+     */
+    private static final int PARTIAL_FLASHING_PACKETS_PER_BLOCK = 4;
+    private static final int PARTIAL_FLASHING_PACKET_DATA_SIZE = 16;
+    private static final int PARTIAL_FLASHING_MAX_RETRANSMISSIONS = 3;
+
     public static final int FLASHING_WITH_PAIR_CODE = 0x02;
 
     public static final int NOTIFICATION_ID = 283; // a random number
     private static final int NOTIFICATIONS = 1;
     private static final int INDICATIONS = 2;
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
-    private static final int MAX_PACKET_SIZE = 20; // the maximum number of bytes in one packet is 20. May be less.
-    private final byte[] mBuffer = new byte[MAX_PACKET_SIZE];
+    private static final int DEFAULT_PACKET_SIZE = 20; // the number of bytes in one packet with the default MTU (23). May be less.
+    private static final int DEFAULT_MTU = 23;
+    /**
+     * The MTU requested after connection. 247 bytes fits into a single link layer packet with Data Length Extension. DFU targets supporting only the default MTU
+     * will reply with 23, in which case the packet size remains {@link #DEFAULT_PACKET_SIZE}.
+     */
+    private static final int REQUESTED_MTU = 247;
+    private static final int MTU_REQUEST_TIMEOUT = 3000; // ms
+    /**
+     * The number of times the service reconnects and starts the upload again after the link has been lost.
+     */
+    private static final int MAX_RECONNECT_ATTEMPTS = 3;
+    /**
+     * The delay before the first reconnection attempt. The delay is doubled with each next attempt.
+     */
+    private static final int RECONNECT_DELAY = 1000; // ms
+    /**
+     * The time given to decoding the HEX file in the background when the DFU bootloader has been connected and the image is needed.
+     */
+    private static final int PREPARE_IMAGE_TIMEOUT = 30000; // ms
+    private byte[] mBuffer = new byte[DEFAULT_PACKET_SIZE];
 
     /**
      * Lock used in synchronization purposes
      */
     private final Object mLock = new Object();
     private BluetoothAdapter mBluetoothAdapter;
-    private InputStream mInputStream;
+    private BinCache mBinCache;
+    /**
+     * The layouts of the GATT databases of devices updated before.
+     */
+    private GattLayoutCache mGattLayoutCache;
+    /**
+     * The firmware revision read from the device in the application mode, <code>null</code> if not known.
+     */
+    private String mFirmwareRevision;
+    /**
+     * The transport used to write to the DFU Control Point and DFU Packet characteristics of the current connection.
+     */
+    private GattDfuTransport mTransport;
     private String mDeviceAddress;
     private String mDeviceName;
 
@@ -645,6 +739,36 @@ public abstract class DfuBaseService extends IntentService {
     private final static int STATE_DISCONNECTING = -4;
     private final static int STATE_CLOSED = -5;
 
+    /**
+     * The current step of the DFU process. Each step has its own timeout, see {@link #DFU_STATE_TIMEOUTS}. When the deadline passes before the awaited
+     * callback has been received, {@link #mError} is set to {@link #ERROR_TIMEOUT}.
+     */
+    private int mDfuState;
+    private final static int DFU_STATE_IDLE = 0;
+    private final static int DFU_STATE_CONNECTING = 1;
+    private final static int DFU_STATE_REBOOTING = 2;
+    private final static int DFU_STATE_STARTING = 3;
+    private final static int DFU_STATE_SENDING_INIT = 4;
+    private final static int DFU_STATE_UPLOADING = 5;
+    private final static int DFU_STATE_VALIDATING = 6;
+    private final static int DFU_STATE_ACTIVATING = 7;
+    private final static int DFU_STATE_BONDING = 8;
+    private final static int DFU_STATE_DISCONNECTING = 9;
+    private final static int DFU_STATE_PARTIAL_FLASHING = 10;
+    private final static String[] DFU_STATE_NAMES = { "IDLE", "CONNECTING", "REBOOTING", "STARTING", "SENDING INIT", "UPLOADING", "VALIDATING", "ACTIVATING", "BONDING",
+            "DISCONNECTING", "PARTIAL FLASHING" };
+    /**
+     * Timeouts of the DFU steps in milliseconds, 0 for no timeout. The upload timeout is counted from the last packet sent or confirmed. Starting includes erasing
+     * the flash by the DFU target, which may take a few seconds. The time when the upload was paused is not counted.
+     */
+    private final static int[] DFU_STATE_TIMEOUTS = { 0, 30000, DfuSettingsConstants.TIME_TO_WAIT_IN_MILLISECONDS, 20000, 10000, 10000, 10000, 10000, 60000, 5000,
+            10000 };
+
+    /**
+     * The time ({@link SystemClock#elapsedRealtime()}) when the current DFU step times out, or 0 if the step has no timeout.
+     */
+    private long mDeadline;
+
     /**
      * The number of the last error that has occurred or 0 if there was no error
      */
@@ -665,6 +789,21 @@ public abstract class DfuBaseService extends IntentService {
      */
     private int mPacketsBeforeNotification = 10;
 
+    /**
+     * The MTU negotiated with the DFU target in the current connection.
+     */
+    private int mMtu = DEFAULT_MTU;
+
+    /**
+     * The maximum number of bytes sent in a single packet, derived from the {@link #mMtu} and rounded down to a multiple of 4. The {@link #mBuffer} has this size.
+     */
+    private int mPacketSize = DEFAULT_PACKET_SIZE;
+
+    /**
+     * The connection interval in units of 1.25 ms, as reported by the Bluetooth stack, or 0 if unknown. The interval is reported only on Android 8.0+.
+     */
+    private int mConnectionInterval;
+
     /**
      * Size of BIN content of all hex files that are going to be transmitted.
      */
@@ -678,14 +817,43 @@ public abstract class DfuBaseService extends IntentService {
     /**
      * Number of bytes confirmed by the notification.
      */
-    @SuppressWarnings("unused")
     private int mBytesConfirmed;
-    private int mPacketsSentSinceNotification;
 
     /**
-     * This value is used to calculate the current transfer speed.
+     * The maximum number of packets sent but not yet confirmed by a packet receipt notification, 0 for the default chosen by the {@link #mPrnController}.
+     * When the window is full, the next packet is sent after the next notification. Not used when packet receipt notifications are disabled.
+     */
+    private int mMaxPacketsInFlight;
+
+    /**
+     * Chooses the packet receipt notification interval basing on previous uploads and adjusts the window of packets in flight during the upload.
+     * During the upload it is used by the {@link #mUploader} under the uploader's own monitor. It is started before and finished after the upload on the service
+     * thread, when the uploader does not use it.
+     */
+    private PrnController mPrnController;
+
+    /**
+     * Sends the firmware image through the {@link #mTransport}. The GATT events of the DFU characteristics are passed to it during the upload.
+     */
+    private FirmwareUploader mUploader;
+
+    /**
+     * Publishes the upload progress at a limited rate and calculates the average speed.
+     */
+    private final DfuProgressChannel mProgressChannel = new DfuProgressChannel();
+
+    /**
+     * Decodes the firmware image in the background while the service connects to the device and waits for it to reboot into the DFU bootloader.
+     */
+    private ExecutorService mPreparationExecutor;
+    /**
+     * The image being decoded by the {@link #mPreparationExecutor}, taken by {@link #phase3(Intent)}.
      */
-    private int mLastBytesSent;
+    private Future<FirmwareImage> mPreparedImage;
+    /**
+     * The source and MBR size of the {@link #mPreparedImage}, compared with the file required in {@link #phase3(Intent)}.
+     */
+    private String mPreparedImageKey;
 
     /**
      * Firmware update may require two connections: one for Soft Device and/or Bootloader upload and second for Application. This fields contains the current part number.
@@ -696,8 +864,20 @@ public abstract class DfuBaseService extends IntentService {
      * Total number of parts.
      */
     private int mPartsTotal;
+    /**
+     * The ZIP file parsed in the first part. Following parts take their firmware from it instead of opening the file again. Cleared when the update finishes.
+     */
+    private ArchiveInputStream mArchive;
+    /**
+     * The image decoded from the HEX file in the previous attempt, used again when the service reconnects after the link has been lost. Cleared when the update finishes.
+     */
+    private FirmwareImage mImage;
+    /**
+     * The source and MBR size of the {@link #mArchive} or the {@link #mImage}.
+     */
+    private String mArchiveKey;
     private int mFileType;
-    private long mLastProgressTime, mStartTime;
+    private long mStartTime;
 
     /**
      * Flag sent when a request has been sent that will cause the DFU target to reset. Often, after sending such command, Android throws a connection state error. If this flag is set the error will be
@@ -740,7 +920,7 @@ public abstract class DfuBaseService extends IntentService {
      * </p>
      */
     private boolean mRemoteErrorOccurred;
-    private boolean mPaused;
+    private volatile boolean mPaused;
     private boolean mAborted;
 
     private long delayForInitDeviceFirmware;
@@ -767,6 +947,8 @@ public abstract class DfuBaseService extends IntentService {
 
             logi("Action received: " + action);
             mConnectionState = STATE_DISCONNECTED;
+            if (mTransport != null)
+                mTransport.onDisconnected();
 
             // Notify waiting thread
             synchronized (mLock) {
@@ -778,15 +960,22 @@ public abstract class DfuBaseService extends IntentService {
     private final BroadcastReceiver mDfuActionReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(final Context context, final Intent intent) {
+            // Other services may be updating other devices at the same time
+            final String address = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
+            if (address != null && !address.equals(mDeviceAddress))
+                return;
+
             final int action = intent.getIntExtra(EXTRA_ACTION, 0);
 
             switch (action) {
                 case ACTION_PAUSE:
                     mPaused = true;
+                    mUploader.pause();
                     break;
 
                 case ACTION_RESUME:
                     mPaused = false;
+                    mUploader.resume();
 
                     // Notify waiting thread
                     synchronized (mLock) {
@@ -797,6 +986,7 @@ public abstract class DfuBaseService extends IntentService {
                 case ACTION_ABORT:
                     mPaused = false;
                     mAborted = true;
+                    mUploader.abort();
 
                     // Notify waiting thread
                     synchronized (mLock) {
@@ -829,6 +1019,15 @@ public abstract class DfuBaseService extends IntentService {
         }
     };
 
+    private final FirmwareUploader.ProgressListener mUploadProgressListener = new FirmwareUploader.ProgressListener() {
+        @Override
+        public void onProgress(final int bytesSent, final int bytesConfirmed) {
+            mBytesSent = bytesSent;
+            mBytesConfirmed = bytesConfirmed;
+            updateProgressNotification();
+        }
+    };
+
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
@@ -882,6 +1081,8 @@ public abstract class DfuBaseService extends IntentService {
                     logi("onConnectionStateChange() :: Disconnected from GATT server");
                     mPaused = false;
                     mConnectionState = STATE_DISCONNECTED;
+                    if (mTransport != null)
+                        mTransport.onDisconnected();
                 }
             } else {
                 loge("Connection state change error: " + status + " newState: " + newState);
@@ -894,6 +1095,7 @@ public abstract class DfuBaseService extends IntentService {
                 }*/
                 mPaused = false;
                 mError = ERROR_CONNECTION_STATE_MASK | status;
+                mUploader.onError(mError);
             }
 
             // Notify waiting thread
@@ -975,56 +1177,25 @@ public abstract class DfuBaseService extends IntentService {
 				 */
                 if (DFU_PACKET_UUID.equals(characteristic.getUuid())) {
                     if (mImageSizeSent && mInitPacketSent) {
-                        // If the PACKET characteristic was written with image data, update counters
-                        mBytesSent += characteristic.getValue().length;
-                        mPacketsSentSinceNotification++;
-
-                        // If a packet receipt notification is expected, or the last packet was sent, do nothing. There onCharacteristicChanged listener will catch either
-                        // a packet confirmation (if there are more bytes to send) or the image received notification (it upload process was completed)
-                        final boolean notificationExpected = mPacketsBeforeNotification > 0 && mPacketsSentSinceNotification == mPacketsBeforeNotification;
-                        final boolean lastPacketTransferred = mBytesSent == mImageSizeInBytes;
-
-                        if (notificationExpected || lastPacketTransferred)
-                            return;
-
-                        // When neither of them is true, send the next packet
-                        try {
-                            waitIfPaused();
-                            // The writing might have been aborted (mAborted = true), an error might have occurred.
-                            // In that case stop sending.
-                            if (mAborted || mError != 0 || mRemoteErrorOccurred || mResetRequestSent) {
-                                // notify waiting thread
-                                synchronized (mLock) {
-                                    sendLogBroadcast(LOG_LEVEL_WARNING, "Upload terminated");
-                                    mLock.notifyAll();
-                                    return;
-                                }
-                            }
-
-                            final byte[] buffer = mBuffer;
-                            final int size = mInputStream.read(buffer);
-                            writePacket(gatt, characteristic, buffer, size);
-                            updateProgressNotification();
-                            return;
-                        } catch (final HexFileValidationException e) {
-                            loge("Invalid HEX file");
-                            mError = ERROR_FILE_INVALID;
-                        } catch (final IOException e) {
-                            loge("Error while reading the input stream", e);
-                            mError = ERROR_FILE_IO_EXCEPTION;
-                        }
+                        // The packet with image data has been written, the uploader will send the next one
+                        mTransport.onCharacteristicWrite(characteristic, status);
+                        return;
                     } else if (!mImageSizeSent) {
                         // We've got confirmation that the image size was sent
-                        sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
+                        if (isLogLevelEnabled(LOG_LEVEL_INFO))
+                            sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
                         mImageSizeSent = true;
                     } else {
                         // We've got confirmation that the init packet was sent
-                        sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
+                        if (isLogLevelEnabled(LOG_LEVEL_INFO))
+                            sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
                         mInitPacketSent = true;
                     }
                 } else {
                     // If the CONTROL POINT characteristic was written just set the flag to true. The main thread will continue its task when notified.
-                    sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
+                    // Partial flashing data packets are not logged, there are too many of them.
+                    if (isLogLevelEnabled(LOG_LEVEL_INFO) && !PARTIAL_FLASHING_CHARACTERISTIC_UUID.equals(characteristic.getUuid()))
+                        sendLogBroadcast(LOG_LEVEL_INFO, "Data written to " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
                     mRequestCompleted = true;
                 }
             } else {
@@ -1037,6 +1208,7 @@ public abstract class DfuBaseService extends IntentService {
                 else {
                     loge("Characteristic write error: " + status);
                     mError = ERROR_CONNECTION_MASK | status;
+                    mUploader.onError(mError);
                 }
             }
 
@@ -1052,7 +1224,8 @@ public abstract class DfuBaseService extends IntentService {
 				/*
 				 * This method is called when the DFU Version characteristic has been read.
 				 */
-                sendLogBroadcast(LOG_LEVEL_INFO, "Read Response received from " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
+                if (isLogLevelEnabled(LOG_LEVEL_INFO))
+                    sendLogBroadcast(LOG_LEVEL_INFO, "Read Response received from " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
                 mReceivedData = characteristic.getValue();
                 mRequestCompleted = true;
             } else {
@@ -1066,38 +1239,67 @@ public abstract class DfuBaseService extends IntentService {
             }
         }
 
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                logi("onMtuChanged() :: MTU = " + mtu);
+                mMtu = mtu;
+            } else {
+                // This is not an error, the default MTU will be used
+                logw("MTU request failed: " + status);
+            }
+            mRequestCompleted = true;
+
+            // Notify waiting thread
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Called when the connection parameters have changed. This callback is hidden in the Android API: it exists, and is called, only on Android 8.0 (API 26)
+         * and newer. It can't be annotated with @Override as it is not present in the SDK. On older versions the connection interval is not reported and
+         * {@link #mConnectionInterval} stays 0. The method must be kept by ProGuard, see proguard-rules.pro of the application.
+         */
+        public void onConnectionUpdated(final BluetoothGatt gatt, final int interval, final int latency, final int timeout, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                logi("onConnectionUpdated() :: interval = " + (interval * 1.25) + " ms, latency = " + latency + ", timeout = " + (timeout * 10) + " ms");
+                mConnectionInterval = interval;
+            } else {
+                logw("Connection parameters update failed: " + status);
+            }
+        }
+
         @Override
         public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-            final int responseType = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
-            switch (responseType) {
-                case OP_CODE_PACKET_RECEIPT_NOTIF_KEY:
-                    final BluetoothGattCharacteristic packetCharacteristic = gatt.getService(DFU_SERVICE_UUID).getCharacteristic(DFU_PACKET_UUID);
+            if (mGattLayoutCache.onCharacteristicChanged(gatt.getDevice().getAddress(), characteristic)) {
+                // The services of the device have changed, the known layout is no longer valid
+                logi("Service Changed indication received");
+                return;
+            }
 
-                    try {
-                        mBytesConfirmed = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT32, 1);
-                        mPacketsSentSinceNotification = 0;
-
-                        waitIfPaused();
-                        // The writing might have been aborted (mAborted = true), an error might have occurred.
-                        // In that case quit sending.
-                        if (mAborted || mError != 0 || mRemoteErrorOccurred || mResetRequestSent) {
-                            sendLogBroadcast(LOG_LEVEL_WARNING, "Upload terminated");
-                            break;
-                        }
+            if (PARTIAL_FLASHING_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+                // The Partial Flashing Service uses its own response format
+                mReceivedData = characteristic.getValue();
+                synchronized (mLock) {
+                    mLock.notifyAll();
+                }
+                return;
+            }
 
-                        final byte[] buffer = mBuffer;
-                        final int size = mInputStream.read(buffer);
-                        writePacket(gatt, packetCharacteristic, buffer, size);
-                        updateProgressNotification();
-                        return;
-                    } catch (final HexFileValidationException e) {
-                        loge("Invalid HEX file");
-                        mError = ERROR_FILE_INVALID;
-                    } catch (final IOException e) {
-                        loge("Error while reading the input stream", e);
-                        mError = ERROR_FILE_IO_EXCEPTION;
-                    }
-                    break;
+            if (mUploader.isUploading()) {
+                // Packet receipt notifications and the response to the Receive Firmware Image request are handled by the uploader
+                mTransport.onCharacteristicChanged(characteristic);
+                return;
+            }
+
+            // The value is parsed directly, getIntValue(...) returns a boxed Integer
+            final byte[] value = characteristic.getValue();
+            final int responseType = value[0] & 0xFF;
+            switch (responseType) {
+                case OP_CODE_PACKET_RECEIPT_NOTIF_KEY:
+                    // A notification received after the upload has finished
+                    return;
 
                 case OP_CODE_RESPONSE_CODE_KEY:
                 default:
@@ -1112,7 +1314,8 @@ public abstract class DfuBaseService extends IntentService {
                     if (status != DFU_STATUS_SUCCESS)
                         mRemoteErrorOccurred = true;
 
-                    sendLogBroadcast(LOG_LEVEL_INFO, "Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
+                    if (isLogLevelEnabled(LOG_LEVEL_INFO))
+                        sendLogBroadcast(LOG_LEVEL_INFO, "Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(characteristic));
                     mReceivedData = characteristic.getValue();
                     break;
             }
@@ -1151,6 +1354,11 @@ public abstract class DfuBaseService extends IntentService {
      */
     private int mLastProgress = -1;
 
+    /**
+     * The minimum level of log events sent in this update, see {@link #EXTRA_MIN_LOG_LEVEL}.
+     */
+    private int mMinLogLevel = LOG_LEVEL_DEBUG;
+
     public DfuBaseService() {
         super(TAG);
     }
@@ -1166,6 +1374,11 @@ public abstract class DfuBaseService extends IntentService {
         super.onCreate();
 
         initialize();
+        mBinCache = new BinCache(this, DfuSettingsConstants.BIN_CACHE_MAX_SIZE);
+        mGattLayoutCache = new GattLayoutCache(this);
+        mPrnController = new PrnController(this);
+        mUploader = new FirmwareUploader(mPrnController, DFU_STATE_TIMEOUTS[DFU_STATE_UPLOADING], mUploadProgressListener);
+        mPreparationExecutor = Executors.newSingleThreadExecutor();
 
         final LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         final IntentFilter actionFilter = makeDfuActionIntentFilter();
@@ -1182,6 +1395,7 @@ public abstract class DfuBaseService extends IntentService {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mPreparationExecutor.shutdownNow();
         logi("DfuService onDestroy");
         final LocalBroadcastManager manager = LocalBroadcastManager.getInstance(this);
         manager.unregisterReceiver(mDfuActionReceiver);
@@ -1203,21 +1417,29 @@ public abstract class DfuBaseService extends IntentService {
         int phase = intent.getIntExtra(INTENT_REQUESTED_PHASE, 0) & 0x03;
         resultReceiver = (ResultReceiver) intent.getParcelableExtra(INTENT_RESULT_RECEIVER);
         delayForInitDeviceFirmware = intent.getLongExtra(EXTRA_WAIT_FOR_INIT_DEVICE_FIRMWARE, 0);
+        mMinLogLevel = intent.getIntExtra(EXTRA_MIN_LOG_LEVEL, LOG_LEVEL_DEBUG);
 
         int rc = 0;
 
         logi("DFUBaseService onHandleIntent phase = " + phase);
         mServicePhase = 0;
 
-        if ((phase & FLASHING_WITH_PAIR_CODE) != 0) {
-            mServicePhase = FLASHING_WITH_PAIR_CODE;
+        try {
+            if ((phase & FLASHING_WITH_PAIR_CODE) != 0) {
+                mServicePhase = FLASHING_WITH_PAIR_CODE;
 
-            rc = flashingWithPairCode(intent);
-        }
+                rc = flashingWithPairCode(intent);
+            }
 
-        if (resultReceiver != null) {
-            rc <<= 8;
-            resultReceiver.send(rc | phase, null);
+            if (resultReceiver != null) {
+                rc <<= 8;
+                resultReceiver.send(rc | phase, null);
+            }
+        } finally {
+            // Also when the update has failed before phase 3, or an unexpected exception has been thrown
+            releaseImage();
+            // Sent also when an unexpected exception has been thrown, so that the scheduler never waits for this service forever
+            sendFinishedBroadcast(intent.getStringExtra(EXTRA_DEVICE_ADDRESS));
         }
     }
 
@@ -1241,11 +1463,10 @@ public abstract class DfuBaseService extends IntentService {
         mConnectionState = STATE_DISCONNECTED;
         mBytesSent = 0;
         mBytesConfirmed = 0;
-        mPacketsSentSinceNotification = 0;
         mError = 0;
-        mLastProgressTime = 0;
         mAborted = false;
         mPaused = false;
+        mUploader.reset();
         mNotificationsEnabled = false;
         mResetRequestSent = false;
         mRequestCompleted = false;
@@ -1263,10 +1484,10 @@ public abstract class DfuBaseService extends IntentService {
         }
 
         if (mError > 0) { // error occurred
-            final int error = mError & ~ERROR_CONNECTION_STATE_MASK;
-            loge("An error occurred while connecting to the device:" + error);
-            sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Connection failed (0x%02X): %s", error, GattError.parseConnectionError(error)));
-            terminateConnection(gatt, mError);
+            // The error is taken before disconnecting, the disconnection may report another one
+            final int error = mError;
+            logConnectionError(error);
+            terminateConnection(gatt, error);
             return false;
         }
 
@@ -1285,6 +1506,10 @@ public abstract class DfuBaseService extends IntentService {
         mDeviceAddress = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
         mDeviceName = intent.getStringExtra(EXTRA_DEVICE_NAME);
 
+        // Decode the firmware while connecting and waiting for the DFU bootloader
+        prepareImage(intent);
+        mFirmwareRevision = null;
+
         sendLogBroadcast(LOG_LEVEL_VERBOSE, "Connecting to DFU target 2...");
         if (!makeGattConnection(mDeviceAddress))
             return 5;
@@ -1302,6 +1527,7 @@ public abstract class DfuBaseService extends IntentService {
                     String firmware = null;
                     firmware = readCharacteristicNoFailure(gatt, firmwareCharacteristic);
                     logi("Firmware version String = " + firmware);
+                    mFirmwareRevision = firmware;
                     sendStatsMiniFirmware(firmware);
                 } else {
                     logi("Error Cannot find FIRMWARE_REVISION_UUID");
@@ -1312,7 +1538,43 @@ public abstract class DfuBaseService extends IntentService {
         }//For Stats purpose only Ends
         int rc = 1;
 
+        if (intent.getBooleanExtra(EXTRA_PARTIAL_FLASHING, false)) {
+            try {
+                if (partialFlash(intent)) {
+                    disconnect(gatt);
+                    close(gatt);
+                    gatt = null;
+                    setDfuState(DFU_STATE_IDLE);
+                    updateProgressNotification(PROGRESS_COMPLETED);
+                    return 0;
+                }
+            } catch (final UploadAbortedException e) {
+                logi("Upload aborted");
+                sendLogBroadcast(LOG_LEVEL_WARNING, "Upload aborted");
+                terminateConnection(gatt, PROGRESS_ABORTED);
+                return 5;
+            } catch (final Exception e) {
+                loge("Partial flashing failed", e);
+                sendLogBroadcast(LOG_LEVEL_WARNING, "Partial flashing failed: " + e.getMessage());
+            }
+
+            // The program has to be sent using the DFU Bootloader
+            sendLogBroadcast(LOG_LEVEL_INFO, "Partial flashing not possible, starting DFU");
+            if (mConnectionState != STATE_CONNECTED_AND_READY) {
+                close(gatt);
+                if (!makeGattConnection(mDeviceAddress))
+                    return 5;
+            }
+        }
+
+        setDfuState(DFU_STATE_STARTING);
         BluetoothGattService fps = gatt.getService(MINI_FLASH_SERVICE_UUID);
+        if (fps == null) {
+            // Android may have returned the services of the DFU bootloader, cached during the previous update
+            logi("MINI_FLASH_SERVICE_UUID not found, discovering services again");
+            rediscoverServices(gatt);
+            fps = gatt.getService(MINI_FLASH_SERVICE_UUID);
+        }
         if (fps == null) {
             logi("Error Cannot find MINI_FLASH_SERVICE_UUID");
             sendLogBroadcast(LOG_LEVEL_WARNING, "Upload aborted");
@@ -1333,23 +1595,41 @@ public abstract class DfuBaseService extends IntentService {
             logi("Writing Flash Command ....");
             writeCharacteristic(gatt, sfpc1);
             rc = 0;
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(TAG, e.toString());
+        } catch (final UploadAbortedException e) {
+            logi("Upload aborted");
+            sendLogBroadcast(LOG_LEVEL_WARNING, "Upload aborted");
+            terminateConnection(gatt, PROGRESS_ABORTED);
+        } catch (final DeviceDisconnectedException e) {
+            loge(e.getMessage());
+            sendLogBroadcast(LOG_LEVEL_ERROR, "Device has disconnected");
+            close(gatt);
+            updateProgressNotification(ERROR_DEVICE_DISCONNECTED);
+        } catch (final DfuException e) {
+            loge(e.getMessage());
+            sendLogBroadcast(LOG_LEVEL_ERROR, "Writing Flash Command failed");
+            terminateConnection(gatt, e.getErrorNumber());
         }
 
         if (rc == 0) {
             sendProgressBroadcast(PROGRESS_WAITING_REBOOT);
             //Wait for the device to reboot.
+            setDfuState(DFU_STATE_REBOOTING);
             waitUntilDisconnected();
             waitUntilConnected();
-            logi("Refreshing the cache before discoverServices() for Android version " + Build.VERSION.SDK_INT);
-            refreshDeviceCache(gatt, true);
+            // The DFU bootloader has other services than the application. Unless the bootloader layout of this device is known, the Android cache is cleared.
+            // Otherwise the services discovered in phase3 are compared with the known layout and the cache is cleared only if they differ.
+            if (mGattLayoutCache.contains(mDeviceAddress, mFirmwareRevision)) {
+                logi("DFU bootloader layout known, not refreshing the cache");
+            } else {
+                logi("Refreshing the cache before discoverServices() for Android version " + Build.VERSION.SDK_INT);
+                refreshDeviceCache(gatt, true);
+            }
             do {
                 logi("Calling phase 3");
                 mError = 0;
                 intent = phase3(intent);
                 resultReceiver = null;
+                setDfuState(DFU_STATE_DISCONNECTING);
                 gatt.disconnect();
                 waitUntilDisconnected();
                 if (mConnectionState != STATE_CLOSED) {
@@ -1359,6 +1639,7 @@ public abstract class DfuBaseService extends IntentService {
                 logi("End phase 3");
             } while (intent != null);
         }
+        setDfuState(DFU_STATE_IDLE);
 
         logi("Phase2 e");
         return rc;
@@ -1401,22 +1682,28 @@ public abstract class DfuBaseService extends IntentService {
             Log.e(TAG, e.toString());
         }
 
+        // Unless the number of packets was set by the user, use the value that worked best on this phone model before
+        if (!preferences.contains(DfuSettingsConstants.SETTINGS_NUMBER_OF_PACKETS))
+            numberOfPackets = mPrnController.getPacketsBeforeNotification(numberOfPackets);
+
         if (!packetReceiptNotificationEnabled)
             numberOfPackets = 0;
 
         mPacketsBeforeNotification = numberOfPackets;
-        // The Soft Device starts where MBR ends (by default from the address 0x1000). Before there is a MBR section, which should not be transmitted over DFU.
-        // Applications and bootloader starts from bigger address. However, in custom DFU implementations, user may want to transmit the whole whole data, even from address 0x0000.
-        value = preferences.getString(DfuSettingsConstants.SETTINGS_MBR_SIZE, String.valueOf(DfuSettingsConstants.SETTINGS_DEFAULT_MBR_SIZE));
-        int mbrSize;
+
+        // The number of packets in flight. The Legacy DFU bootloader has no flow control other than the packet receipt notifications, so the window starts at
+        // the number of packets between notifications and grows while the notifications come on time, by default up to twice that number.
+        value = preferences.getString(DfuSettingsConstants.SETTINGS_MAX_PACKETS_IN_FLIGHT, String.valueOf(DfuSettingsConstants.SETTINGS_MAX_PACKETS_IN_FLIGHT_DEFAULT));
+        int maxPacketsInFlight;
         try {
-            mbrSize = Integer.parseInt(value);
-            if (mbrSize < 0)
-                mbrSize = 0;
+            maxPacketsInFlight = Integer.parseInt(value);
         } catch (final NumberFormatException e) {
-            mbrSize = DfuSettingsConstants.SETTINGS_DEFAULT_MBR_SIZE;
+            maxPacketsInFlight = DfuSettingsConstants.SETTINGS_MAX_PACKETS_IN_FLIGHT_DEFAULT;
             Log.e(TAG, e.toString());
         }
+        // 0 lets the controller choose the maximum window
+        mMaxPacketsInFlight = Math.max(maxPacketsInFlight, 0);
+        final int mbrSize = getMbrSize(preferences);
 
         sendLogBroadcast(LOG_LEVEL_VERBOSE, "Starting DFU service");
 
@@ -1429,11 +1716,34 @@ public abstract class DfuBaseService extends IntentService {
         try {
             // Prepare data to send, calculate stream size
             try {
-                sendLogBroadcast(LOG_LEVEL_VERBOSE, "Opening file...");
-                if (fileUri != null) {
-                    is = openInputStream(fileUri, mimeType, mbrSize, fileType);
+                // HEX files are always decoded in the FOTA mode, so the MBR size is a part of the key only for ZIP files
+                final String source = fileUri != null ? fileUri.toString() : filePath;
+                final String archiveKey = MIME_TYPE_ZIP.equals(mimeType) ? source + ":" + mbrSize : source;
+                waitForPreparedImage(archiveKey);
+                if (mArchive != null && MIME_TYPE_ZIP.equals(mimeType) && archiveKey.equals(mArchiveKey)) {
+                    sendLogBroadcast(LOG_LEVEL_VERBOSE, "Using file opened before");
+                    is = new ArchiveInputStream(mArchive, fileType);
+                } else if (mImage != null && archiveKey.equals(mArchiveKey)) {
+                    sendLogBroadcast(LOG_LEVEL_VERBOSE, "Using file opened before");
+                    is = mImage.newCursor();
                 } else {
-                    is = openInputStream(filePath, mimeType, mbrSize, fileType);
+                    sendLogBroadcast(LOG_LEVEL_VERBOSE, "Opening file...");
+                    if (fileUri != null) {
+                        is = openInputStream(fileUri, mimeType, mbrSize, fileType);
+                    } else {
+                        is = openInputStream(filePath, mimeType, mbrSize, fileType);
+                    }
+
+                    // Keep the parsed files for a possible next part, before the content type is truncated below. The number of parts is not known yet.
+                    if (is instanceof ArchiveInputStream) {
+                        mArchive = new ArchiveInputStream((ArchiveInputStream) is, TYPE_AUTO);
+                        mImage = null;
+                        mArchiveKey = archiveKey;
+                    } else if (is instanceof FirmwareImage.Cursor) {
+                        mArchive = null;
+                        mImage = ((FirmwareImage.Cursor) is).getImage();
+                        mArchiveKey = archiveKey;
+                    }
                 }
 
                 if (initFileUri != null) {
@@ -1444,7 +1754,6 @@ public abstract class DfuBaseService extends IntentService {
                     initIs = new FileInputStream(initFilePath);
                 }
 
-                mInputStream = is;
                 imageSizeInBytes = mImageSizeInBytes = is.available();
                 // Update the file type bit field basing on the ZIP content
                 if (fileType == TYPE_AUTO && MIME_TYPE_ZIP.equals(mimeType)) {
@@ -1482,6 +1791,11 @@ public abstract class DfuBaseService extends IntentService {
                 loge("An exception occurred while calculating file size", e);
                 updateProgressNotification(ERROR_FILE_ERROR);
                 return null;
+            } catch (final TimeoutException e) {
+                loge("Decoding the image has not finished in time");
+                sendLogBroadcast(LOG_LEVEL_ERROR, "Timeout: decoding the image");
+                updateProgressNotification(ERROR_TIMEOUT);
+                return null;
             }
 
 			/*
@@ -1497,33 +1811,22 @@ public abstract class DfuBaseService extends IntentService {
             }
 
             sendLogBroadcast(LOG_LEVEL_VERBOSE, "Connecting to DFU target 3...");
-            makeGattConnection(deviceAddress);
-            if (gatt == null) {
-
-                loge("Bluetooth adapter disabled");
-                sendLogBroadcast(LOG_LEVEL_ERROR, "Bluetooth adapter disabled");
-                updateProgressNotification(ERROR_BLUETOOTH_DISABLED);
+            // Errors have already been reported and the connection terminated
+            if (!makeGattConnection(deviceAddress))
                 return null;
-            }
-
-            if (mError > 0) { // error occurred
-                final int error = mError & ~ERROR_CONNECTION_STATE_MASK;
-                loge("An error occurred while connecting to the device:" + error);
-                sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Connection failed (0x%02X): %s", error, GattError.parseConnectionError(error)));
-                terminateConnection(gatt, mError);
-                return null;
-            }
-
-            if (mAborted) {
-                logi("Upload aborted");
-                sendLogBroadcast(LOG_LEVEL_WARNING, "Upload aborted");
-                terminateConnection(gatt, PROGRESS_ABORTED);
-                return null;
-            }
 
             // We have connected to DFU device and services are discoverer
             BluetoothGattService dfuService = null;
 
+            // If the cache has not been refreshed, the services must be equal to those found in the DFU bootloader before
+            final boolean layoutKnown = mGattLayoutCache.contains(deviceAddress, mFirmwareRevision);
+            boolean layoutValid = layoutKnown && mGattLayoutCache.matches(deviceAddress, mFirmwareRevision, gatt);
+            if (layoutKnown && !layoutValid) {
+                logi("Services differ from the known DFU bootloader layout, discovering again");
+                mGattLayoutCache.invalidate(deviceAddress);
+                rediscoverServices(gatt);
+            }
+
             dfuService = gatt.getService(DFU_SERVICE_UUID);
 
             if (dfuService == null) {
@@ -1548,6 +1851,9 @@ public abstract class DfuBaseService extends IntentService {
                 terminateConnection(gatt, ERROR_CHARACTERISTICS_NOT_FOUND);
                 return null;
             }
+            mTransport = new GattDfuTransport(gatt, controlPointCharacteristic, packetCharacteristic);
+            if (!layoutValid)
+                mGattLayoutCache.put(deviceAddress, mFirmwareRevision, gatt);
 
 			/*
 			 * The DFU Version characteristic has been added in SDK 7.0.
@@ -1571,6 +1877,7 @@ public abstract class DfuBaseService extends IntentService {
 
             sendLogBroadcast(LOG_LEVEL_INFO, "Connected. Services discovered");
             try {
+                setDfuState(DFU_STATE_STARTING);
                 updateProgressNotification(PROGRESS_STARTING);
 
                 // Read the version number if available. The version number consists of 2 bytes: major and minor. Therefore f.e. the version 5 (00-05) can be read as 0.5.
@@ -1668,9 +1975,9 @@ public abstract class DfuBaseService extends IntentService {
 
                     // Send 'jump to bootloader command' (Start DFU)
                     updateProgressNotification(PROGRESS_ENABLING_DFU_MODE);
-                    OP_CODE_START_DFU[1] = 0x04;
+                    mOpCodeStartDfu[1] = 0x04;
                     logi("Sending Start DFU command (Op Code = 1, Upload Mode = 4)");
-                    writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU, true);
+                    writeOpCode(gatt, controlPointCharacteristic, mOpCodeStartDfu, true);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Jump to bootloader sent (Op Code = 1, Upload Mode = 4)");
 
                     // The device will reset so we don't have to send Disconnect signal.
@@ -1741,6 +2048,9 @@ public abstract class DfuBaseService extends IntentService {
 					 * 2. In case of SD or BL update an error is returned.
 					 */
 
+                    // Use bigger packets if the DFU target supports it
+                    requestMtu(gatt);
+
                     // Obtain size of image(s)
                     int softDeviceImageSize = (fileType & TYPE_SOFT_DEVICE) > 0 ? imageSizeInBytes : 0;
                     int bootloaderImageSize = (fileType & TYPE_BOOTLOADER) > 0 ? imageSizeInBytes : 0;
@@ -1754,11 +2064,11 @@ public abstract class DfuBaseService extends IntentService {
                     }
 
                     try {
-                        OP_CODE_START_DFU[1] = (byte) fileType;
+                        mOpCodeStartDfu[1] = (byte) fileType;
 
                         // Send Start DFU command to Control Point
                         logi("Sending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
-                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
+                        writeOpCode(gatt, controlPointCharacteristic, mOpCodeStartDfu);
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
 
                         // Send image size in bytes to DFU Packet
@@ -1802,7 +2112,7 @@ public abstract class DfuBaseService extends IntentService {
 
                                 fileType &= ~TYPE_APPLICATION; // clear application bit
                                 mFileType = fileType;
-                                OP_CODE_START_DFU[1] = (byte) fileType;
+                                mOpCodeStartDfu[1] = (byte) fileType;
                                 mPartsTotal = 2;
 
                                 // Set new content type in the ZIP Input Stream and update sizes of images
@@ -1819,7 +2129,7 @@ public abstract class DfuBaseService extends IntentService {
                                 // Send Start DFU command to Control Point
                                 sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending only SD/BL");
                                 logi("Resending Start DFU command (Op Code = 1, Upload Mode = " + fileType + ")");
-                                writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU);
+                                writeOpCode(gatt, controlPointCharacteristic, mOpCodeStartDfu);
                                 sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1, Upload Mode = " + fileType + ")");
 
                                 // Send image size in bytes to DFU Packet
@@ -1854,7 +2164,7 @@ public abstract class DfuBaseService extends IntentService {
                                 // Send Start DFU command to Control Point
                                 sendLogBroadcast(LOG_LEVEL_VERBOSE, "Switching to DFU v.1");
                                 logi("Resending Start DFU command (Op Code = 1)");
-                                writeOpCode(gatt, controlPointCharacteristic, OP_CODE_START_DFU); // If has 2 bytes, but the second one is ignored
+                                writeOpCode(gatt, controlPointCharacteristic, mOpCodeStartDfu); // If has 2 bytes, but the second one is ignored
                                 sendLogBroadcast(LOG_LEVEL_APPLICATION, "DFU Start sent (Op Code = 1)");
 
                                 // Send image size in bytes to DFU Packet
@@ -1908,6 +2218,7 @@ public abstract class DfuBaseService extends IntentService {
 					 *    b) If the ZIP file contains a application.hex (or .bin) file the 'application.dat' file must be included and contain the Init packet for the application.
 					 */
                     // Send DFU Init Packet
+                    setDfuState(DFU_STATE_SENDING_INIT);
                     if (initIs != null) {
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Writing Initialize DFU Parameters...");
 
@@ -1915,7 +2226,7 @@ public abstract class DfuBaseService extends IntentService {
                         writeOpCode(gatt, controlPointCharacteristic, OP_CODE_INIT_DFU_PARAMS_START);
 
                         try {
-                            byte[] data = new byte[20];
+                            final byte[] data = mBuffer;
                             int size;
                             while ((size = initIs.read(data, 0, data.length)) != -1) {
                                 writeInitPacket(gatt, packetCharacteristic, data, size);
@@ -1942,27 +2253,45 @@ public abstract class DfuBaseService extends IntentService {
                     final int numberOfPacketsBeforeNotification = mPacketsBeforeNotification;
                     if (numberOfPacketsBeforeNotification > 0) {
                         logi("Sending the number of packets before notifications (Op Code = 8, Value = " + numberOfPacketsBeforeNotification + ")");
-                        setNumberOfPackets(OP_CODE_PACKET_RECEIPT_NOTIF_REQ, numberOfPacketsBeforeNotification);
-                        writeOpCode(gatt, controlPointCharacteristic, OP_CODE_PACKET_RECEIPT_NOTIF_REQ);
+                        setNumberOfPackets(mOpCodePacketReceiptNotifReq, numberOfPacketsBeforeNotification);
+                        writeOpCode(gatt, controlPointCharacteristic, mOpCodePacketReceiptNotifReq);
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Packet Receipt Notif Req (Op Code = 8) sent (Value = " + numberOfPacketsBeforeNotification + ")");
                     }
 
+                    // Use a short connection interval for the time of the upload. The request is sent before the Receive Firmware Image request,
+                    // so that the new parameters may be negotiated while the op code is written and the first packets are sent.
+                    requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+
                     // Initialize firmware upload
+                    setDfuState(DFU_STATE_UPLOADING);
                     logi("Sending Receive Firmware Image request (Op Code = 3)");
                     writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RECEIVE_FIRMWARE_IMAGE);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Receive Firmware Image request sent");
 
                     // Send the firmware. The method below sends the first packet and waits until the whole firmware is sent.
-                    final long startTime = mLastProgressTime = mStartTime = SystemClock.elapsedRealtime();
+                    final long startTime = mStartTime = SystemClock.elapsedRealtime();
+                    mProgressChannel.start(mDeviceAddress, mImageSizeInBytes);
                     updateProgressNotification();
+                    mPrnController.start(mPacketsBeforeNotification, mMaxPacketsInFlight);
                     try {
                         logi("Uploading firmware...");
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Uploading firmware...");
-                        response = uploadFirmwareImage(gatt, packetCharacteristic, is);
+                        sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending firmware to characteristic " + packetCharacteristic.getUuid() + "...");
+                        response = mUploader.upload(mTransport, is, mBuffer, mImageSizeInBytes, mPacketsBeforeNotification);
                     } catch (final DeviceDisconnectedException e) {
+                        // A link loss, f.e. the board has been reset or moved away, says nothing about the PRN interval, so the history is not updated
                         loge("Disconnected while sending data");
                         throw e;
-                        // TODO reconnect?
+                    } catch (final DfuException e) {
+                        final int error = e.getErrorNumber();
+                        if (error == ERROR_TIMEOUT) {
+                            loge("Timeout in state " + DFU_STATE_NAMES[mDfuState]);
+                            sendLogBroadcast(LOG_LEVEL_ERROR, "Timeout: " + DFU_STATE_NAMES[mDfuState]);
+                        }
+                        // Only a flow control failure makes the interval narrower: the notifications stopped coming, or the Bluetooth stack failed to write a packet
+                        if (!mAborted && (error == ERROR_TIMEOUT || (error & ERROR_CONNECTION_MASK) > 0))
+                            mPrnController.finish(false, mBytesSent, 0);
+                        throw e;
                     }
 
                     final long endTime = SystemClock.elapsedRealtime();
@@ -1974,10 +2303,17 @@ public abstract class DfuBaseService extends IntentService {
                     if (status != DFU_STATUS_SUCCESS)
                         throw new RemoteDfuException("Device returned error after sending file", status);
 
-                    logi("Transfer of " + mBytesSent + " bytes has taken " + (endTime - startTime) + " ms");
+                    logi("Transfer of " + mBytesSent + " bytes has taken " + (endTime - startTime) + " ms"
+                            + (mConnectionInterval > 0 ? ", connection interval = " + (mConnectionInterval * 1.25) + " ms" : ""));
+                    logi("Upload finished with " + mPrnController.getSummary());
+                    mPrnController.finish(true, mBytesSent, endTime - startTime);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Upload completed in " + (endTime - startTime) + " ms");
 
+                    // The rest of the process does not need the high throughput
+                    requestConnectionPriority(gatt, BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+
                     // Send Validate request
+                    setDfuState(DFU_STATE_VALIDATING);
                     logi("Sending Validate request (Op Code = 4)");
                     writeOpCode(gatt, controlPointCharacteristic, OP_CODE_VALIDATE);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Validate request sent");
@@ -1991,6 +2327,7 @@ public abstract class DfuBaseService extends IntentService {
                         throw new RemoteDfuException("Device returned validation error", status);
 
                     // Send Activate and Reset signal.
+                    setDfuState(DFU_STATE_ACTIVATING);
                     updateProgressNotification(PROGRESS_DISCONNECTING);
                     logi("Sending Activate and Reset request (Op Code = 5)");
                     writeOpCode(gatt, controlPointCharacteristic, OP_CODE_ACTIVATE_AND_RESET);
@@ -2067,6 +2404,7 @@ public abstract class DfuBaseService extends IntentService {
                         newIntent.putExtra(EXTRA_FILE_TYPE, TYPE_APPLICATION); // set the type to application only
                         newIntent.putExtra(EXTRA_PART_CURRENT, mPartCurrent + 1);
                         newIntent.putExtra(EXTRA_PARTS_TOTAL, mPartsTotal);
+                        newIntent.putExtra(EXTRA_RECONNECT_ATTEMPT, 0);
                         //startService(newIntent);
 
                         close(gatt);
@@ -2078,6 +2416,7 @@ public abstract class DfuBaseService extends IntentService {
                     loge(e.getMessage());
                     sendLogBroadcast(LOG_LEVEL_ERROR, e.getMessage());
 
+                    setDfuState(DFU_STATE_DISCONNECTING);
                     logi("Sending Reset command (Op Code = 6)");
                     writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RESET);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Reset request sent");
@@ -2087,6 +2426,7 @@ public abstract class DfuBaseService extends IntentService {
                     loge(e.getMessage());
                     sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Remote DFU error: %s", GattError.parse(error)));
 
+                    setDfuState(DFU_STATE_DISCONNECTING);
                     logi("Sending Reset command (Op Code = 6)");
                     writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RESET);
                     sendLogBroadcast(LOG_LEVEL_APPLICATION, "Reset request sent");
@@ -2098,6 +2438,7 @@ public abstract class DfuBaseService extends IntentService {
                 if (mConnectionState == STATE_CONNECTED_AND_READY)
                     try {
                         mAborted = false;
+                        setDfuState(DFU_STATE_DISCONNECTING);
                         logi("Sending Reset command (Op Code = 6)");
                         writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RESET);
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Reset request sent");
@@ -2109,17 +2450,20 @@ public abstract class DfuBaseService extends IntentService {
                 terminateConnection(gatt, PROGRESS_ABORTED);
             } catch (final DeviceDisconnectedException e) {
                 sendLogBroadcast(LOG_LEVEL_ERROR, "Device has disconnected");
-                // TODO reconnect n times?
                 loge(e.getMessage());
                 close(gatt);
-                updateProgressNotification(ERROR_DEVICE_DISCONNECTED);
+
+                final Intent retryIntent = prepareReconnect(intent);
+                if (retryIntent != null)
+                    return retryIntent;
+                updateProgressNotification(mAborted ? PROGRESS_ABORTED : ERROR_DEVICE_DISCONNECTED);
             } catch (final DfuException e) {
                 int error = e.getErrorNumber();
                 // Connection state errors and other Bluetooth GATT callbacks share the same error numbers. Therefore we are using bit masks to identify the type.
                 if ((error & ERROR_CONNECTION_STATE_MASK) > 0) {
                     error &= ~ERROR_CONNECTION_STATE_MASK;
                     sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Error (0x%02X): %s", error, GattError.parseConnectionError(error)));
-                } else {
+                } else if (error != ERROR_TIMEOUT) { // a timeout has already been logged with the DFU step
                     error &= ~ERROR_CONNECTION_MASK;
                     sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Error (0x%02X): %s", error, GattError.parse(error)));
                 }
@@ -2127,6 +2471,7 @@ public abstract class DfuBaseService extends IntentService {
                 loge(e.getMessage());
                 if (mConnectionState == STATE_CONNECTED_AND_READY)
                     try {
+                        setDfuState(DFU_STATE_DISCONNECTING);
                         logi("Sending Reset command (Op Code = 6)");
                         writeOpCode(gatt, controlPointCharacteristic, OP_CODE_RESET);
                         sendLogBroadcast(LOG_LEVEL_APPLICATION, "Reset request sent");
@@ -2140,7 +2485,6 @@ public abstract class DfuBaseService extends IntentService {
         } finally {
             try {
                 // Ensure that input stream is always closed
-                mInputStream = null;
                 if (is != null)
                     is.close();
 
@@ -2164,26 +2508,369 @@ public abstract class DfuBaseService extends IntentService {
         data[2] = (byte) ((value >> 8) & 0xFF);
     }
 
+    /**
+     * Sends the MakeCode program using the Partial Flashing Service of the running firmware. The program is sent only if the DAL hash reported by the device
+     * matches the template hash in the HEX file, and is not sent at all if the program hash is the same. The device resets after receiving the program.
+     * This method is SYNCHRONOUS.
+     *
+     * @param intent the intent with the file path
+     * @return <code>true</code> if the device runs the new program, <code>false</code> if the full DFU is required
+     * @throws DeviceDisconnectedException
+     * @throws DfuException
+     * @throws UploadAbortedException
+     * @throws UnknownResponseException
+     * @throws IOException if the HEX file could not be read
+     */
+    private boolean partialFlash(final Intent intent) throws DeviceDisconnectedException, DfuException, UploadAbortedException, UnknownResponseException, IOException {
+        final BluetoothGattService service = gatt.getService(PARTIAL_FLASHING_SERVICE_UUID);
+        final BluetoothGattCharacteristic characteristic = service != null ? service.getCharacteristic(PARTIAL_FLASHING_CHARACTERISTIC_UUID) : null;
+        if (characteristic == null) {
+            logi("Partial Flashing Service not found");
+            return false;
+        }
+
+        final String filePath = intent.getStringExtra(EXTRA_FILE_PATH);
+        if (filePath == null || !filePath.toLowerCase(Locale.US).endsWith("hex"))
+            return false;
+
+        // Read all addresses to find the MakeCode program
+        final PartialFlashingImage image;
+        final InputStream is = new FileInputStream(filePath);
+        try {
+            image = PartialFlashingImage.find(new HexInputStream(is, 0));
+        } finally {
+            is.close();
+        }
+        if (image == null) {
+            logi("Not a MakeCode program");
+            return false;
+        }
+
+        setDfuState(DFU_STATE_PARTIAL_FLASHING);
+        enableCCCD(gatt, characteristic, NOTIFICATIONS);
+
+        // Region info: Command, Region, Start (4 bytes, BE), End (4 bytes, BE), Hash (8 bytes)
+        final byte[] dal = readPartialFlashingRegionInfo(gatt, characteristic, PARTIAL_FLASHING_REGION_DAL);
+        if (!Arrays.equals(Arrays.copyOfRange(dal, 10, 18), image.getTemplateHash())) {
+            logi("The program was built for another DAL");
+            sendLogBroadcast(LOG_LEVEL_INFO, "DAL hash differs, partial flashing not possible");
+            return false;
+        }
+
+        final byte[] program = readPartialFlashingRegionInfo(gatt, characteristic, PARTIAL_FLASHING_REGION_MAKECODE);
+        if (Arrays.equals(Arrays.copyOfRange(program, 10, 18), image.getProgramHash())) {
+            sendLogBroadcast(LOG_LEVEL_APPLICATION, "The program on the device is up to date");
+            return true;
+        }
+
+        final int regionStart = readBigEndian(program, 2);
+        final int regionEnd = readBigEndian(program, 6);
+        final byte[] data = image.getData();
+        if (image.getAddress() < regionStart || image.getAddress() + data.length > regionEnd) {
+            logw("The program does not fit into the MakeCode region");
+            return false;
+        }
+
+        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Partial flashing " + data.length + " bytes at 0x" + Integer.toHexString(image.getAddress()) + "...");
+        mBytesSent = 0;
+        mImageSizeInBytes = data.length;
+        mStartTime = SystemClock.elapsedRealtime();
+        mProgressChannel.start(mDeviceAddress, mImageSizeInBytes);
+        updateProgressNotification(PROGRESS_STARTING);
+
+        final long startTime = SystemClock.elapsedRealtime();
+        final int blockSize = PARTIAL_FLASHING_PACKETS_PER_BLOCK * PARTIAL_FLASHING_PACKET_DATA_SIZE;
+        final byte[] packet = new byte[4 + PARTIAL_FLASHING_PACKET_DATA_SIZE];
+        int packetNumber = 0;
+        int retransmissions = 0;
+        for (int offset = 0; offset < data.length; ) {
+            final int address = image.getAddress() + offset;
+            mReceivedData = null;
+            for (int i = 0; i < PARTIAL_FLASHING_PACKETS_PER_BLOCK; ++i) {
+                // Packet: Command, Address (2 bytes, BE), Packet number, Data (16 bytes). The first packet of a block contains the lower 16 bits of the address,
+                // the second one the upper 16 bits. The end of the program is padded with 0xFF, the value of erased flash.
+                final int addressField = i == 0 ? address & 0xFFFF : (i == 1 ? address >>> 16 : 0);
+                packet[0] = PARTIAL_FLASHING_FLASH_DATA;
+                packet[1] = (byte) (addressField >> 8);
+                packet[2] = (byte) addressField;
+                packet[3] = (byte) (packetNumber + i);
+                final int packetOffset = offset + i * PARTIAL_FLASHING_PACKET_DATA_SIZE;
+                final int length = Math.max(0, Math.min(PARTIAL_FLASHING_PACKET_DATA_SIZE, data.length - packetOffset));
+                System.arraycopy(data, Math.min(packetOffset, data.length), packet, 4, length);
+                Arrays.fill(packet, 4 + length, packet.length, (byte) 0xFF);
+                writePartialFlashing(gatt, characteristic, packet);
+            }
+
+            final byte[] response = readNotificationResponse();
+            if (response == null || response.length < 2 || response[0] != PARTIAL_FLASHING_FLASH_DATA)
+                throw new UnknownResponseException("Invalid response received", response, PARTIAL_FLASHING_FLASH_DATA);
+            if ((response[1] & 0xFF) == PARTIAL_FLASHING_PACKET_RETRANSMIT) {
+                // The device has missed a packet, send the whole block again
+                if (++retransmissions > PARTIAL_FLASHING_MAX_RETRANSMISSIONS)
+                    throw new DfuException("Partial flashing failed: too many retransmissions", ERROR_INVALID_RESPONSE);
+                logw("Block at 0x" + Integer.toHexString(address) + " not written, retransmitting");
+                continue;
+            }
+
+            retransmissions = 0;
+            packetNumber += PARTIAL_FLASHING_PACKETS_PER_BLOCK;
+            offset += blockSize;
+            mBytesSent = Math.min(offset, data.length);
+            updateProgressNotification();
+            synchronized (mLock) {
+                extendDeadline();
+            }
+        }
+
+        // The device resets after receiving the End of Transmission command
+        setDfuState(DFU_STATE_REBOOTING);
+        mResetRequestSent = true;
+        writePartialFlashing(gatt, characteristic, new byte[] { PARTIAL_FLASHING_END_OF_TRANSMISSION });
+        waitUntilDisconnected();
+        sendLogBroadcast(LOG_LEVEL_APPLICATION, "Partial flashing completed in " + (SystemClock.elapsedRealtime() - startTime) + " ms");
+        return true;
+    }
+
+    /**
+     * Reads the start address, the end address and the hash of the given region from the Partial Flashing Service.
+     *
+     * @return the notification received: Command, Region, Start (4 bytes, BE), End (4 bytes, BE), Hash (8 bytes)
+     */
+    private byte[] readPartialFlashingRegionInfo(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int region) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException, UnknownResponseException {
+        mReceivedData = null;
+        writePartialFlashing(gatt, characteristic, new byte[] { PARTIAL_FLASHING_REGION_INFO, (byte) region });
+        final byte[] response = readNotificationResponse();
+        if (response == null || response.length < 18 || response[0] != PARTIAL_FLASHING_REGION_INFO || response[1] != region)
+            throw new UnknownResponseException("Invalid region info received", response, PARTIAL_FLASHING_REGION_INFO);
+        if (isLogLevelEnabled(LOG_LEVEL_INFO))
+            sendLogBroadcast(LOG_LEVEL_INFO, "Region " + region + " info received, value (0x): " + parse(response));
+        return response;
+    }
+
+    private static int readBigEndian(final byte[] data, final int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Writes the value to the Partial Flashing characteristic without response. This method is SYNCHRONOUS and waits until the
+     * {@link android.bluetooth.BluetoothGattCallback#onCharacteristicWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)} will be called.
+     */
+    private void writePartialFlashing(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) throws DeviceDisconnectedException,
+            DfuException, UploadAbortedException {
+        mError = 0;
+        mRequestCompleted = false;
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        characteristic.setValue(value);
+        gatt.writeCharacteristic(characteristic);
+
+        try {
+            synchronized (mLock) {
+                while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
+                    await(0);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+
+        if (mAborted)
+            throw new UploadAbortedException();
+
+        if (!mResetRequestSent && mError != 0)
+            throw new DfuException("Unable to write partial flashing command", mError);
+
+        if (!mResetRequestSent && mConnectionState != STATE_CONNECTED_AND_READY)
+            throw new DeviceDisconnectedException("Unable to write partial flashing command", mConnectionState);
+    }
+
+    /**
+     * Waits before the next attempt to connect and upload the firmware after the link has been lost. The Legacy DFU Bootloader starts from the beginning
+     * after a disconnection, so the whole image is sent again, but the image is not parsed again: a ZIP file is taken from {@link #mArchive} and a HEX file
+     * from the {@link #mImage}.
+     *
+     * @param intent the intent that started the current attempt
+     * @return the intent for the next attempt, or <code>null</code> if all attempts have been used or the upload has been aborted
+     */
+    private Intent prepareReconnect(final Intent intent) {
+        final int attempt = intent.getIntExtra(EXTRA_RECONNECT_ATTEMPT, 0);
+        if (mAborted || attempt >= MAX_RECONNECT_ATTEMPTS)
+            return null;
+
+        final long delay = RECONNECT_DELAY << attempt;
+        logi("Link lost after " + mBytesConfirmed + " bytes confirmed, reconnecting in " + delay + " ms (attempt " + (attempt + 1) + "/" + MAX_RECONNECT_ATTEMPTS + ")");
+        sendLogBroadcast(LOG_LEVEL_WARNING, "Reconnecting in " + delay + " ms (attempt " + (attempt + 1) + "/" + MAX_RECONNECT_ATTEMPTS + ")");
+        try {
+            synchronized (mLock) {
+                final long end = SystemClock.elapsedRealtime() + delay;
+                long remaining;
+                while (!mAborted && (remaining = end - SystemClock.elapsedRealtime()) > 0)
+                    mLock.wait(remaining);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+        if (mAborted)
+            return null;
+
+        intent.putExtra(EXTRA_RECONNECT_ATTEMPT, attempt + 1);
+        return intent;
+    }
+
+    /**
+     * Reads the MBR size from the preferences.
+     * The Soft Device starts where MBR ends (by default from the address 0x1000). Before there is a MBR section, which should not be transmitted over DFU.
+     * Applications and bootloader starts from bigger address. However, in custom DFU implementations, user may want to transmit the whole whole data, even from address 0x0000.
+     */
+    private static int getMbrSize(final SharedPreferences preferences) {
+        final String value = preferences.getString(DfuSettingsConstants.SETTINGS_MBR_SIZE, String.valueOf(DfuSettingsConstants.SETTINGS_DEFAULT_MBR_SIZE));
+        int mbrSize;
+        try {
+            mbrSize = Integer.parseInt(value);
+            if (mbrSize < 0)
+                mbrSize = 0;
+        } catch (final NumberFormatException e) {
+            mbrSize = DfuSettingsConstants.SETTINGS_DEFAULT_MBR_SIZE;
+            Log.e(TAG, e.toString());
+        }
+        return mbrSize;
+    }
+
+    /**
+     * Starts decoding the HEX file on the {@link #mPreparationExecutor}, so that the image is ready when the DFU bootloader is connected. Only HEX files given
+     * with a path are prepared, other files are opened in {@link #phase3(Intent)} as before.
+     *
+     * @param intent the intent that started the update
+     */
+    private void prepareImage(final Intent intent) {
+        mPreparedImage = null;
+
+        final String filePath = intent.getStringExtra(EXTRA_FILE_PATH);
+        if (filePath == null || intent.getParcelableExtra(EXTRA_FILE_URI) != null || MIME_TYPE_ZIP.equals(intent.getStringExtra(EXTRA_FILE_MIME_TYPE))
+                || !filePath.toLowerCase(Locale.US).endsWith("hex"))
+            return;
+
+        // HEX files are decoded in the FOTA mode, the MBR size is not used, see phase3(Intent)
+        final String key = filePath;
+        if (mImage != null && key.equals(mArchiveKey))
+            return;
+
+        logi("Preparing " + filePath + " in background");
+        mPreparedImageKey = key;
+        mPreparedImage = mPreparationExecutor.submit(new Callable<FirmwareImage>() {
+            @Override
+            public FirmwareImage call() throws IOException {
+                return openHexFile(filePath);
+            }
+        });
+    }
+
+    /**
+     * Waits until the image prepared by {@link #prepareImage(Intent)} is decoded and keeps it in {@link #mImage} if it is the one required.
+     * Errors are ignored here, the file will be opened again and the error reported.
+     *
+     * @param key the key of the required file, see {@link #phase3(Intent)}
+     * @throws TimeoutException if the image has not been decoded in {@link #PREPARE_IMAGE_TIMEOUT}, the decoding is cancelled
+     */
+    private void waitForPreparedImage(final String key) throws TimeoutException {
+        final Future<FirmwareImage> future = mPreparedImage;
+        if (future == null)
+            return;
+        mPreparedImage = null;
+
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            final FirmwareImage image = future.get(PREPARE_IMAGE_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (image != null && key.equals(mPreparedImageKey)) {
+                logi("Prepared image ready after " + (SystemClock.elapsedRealtime() - start) + " ms of waiting");
+                mArchive = null;
+                mImage = image;
+                mArchiveKey = key;
+            }
+        } catch (final ExecutionException e) {
+            logw("Preparing the image failed: " + e.getCause());
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+            Thread.currentThread().interrupt();
+        } catch (final TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the decoded firmware when the update has finished or failed. The image is still kept by the {@link BinCache} for the next update.
+     */
+    private void releaseImage() {
+        final Future<FirmwareImage> future = mPreparedImage;
+        if (future != null)
+            future.cancel(true);
+        mPreparedImage = null;
+        mPreparedImageKey = null;
+        mArchive = null;
+        mImage = null;
+        mArchiveKey = null;
+    }
+
     /**
      * Opens the binary input stream that returns the firmware image content. A Path to the file is given.
+     * HEX files are mapped into memory and parsed directly from the mapping, so only the BIN content is kept on the heap.
+     * The BIN content is stored in the {@link BinCache}; next time the same HEX file is flashed the cached BIN file is returned and the HEX is not parsed.
+     * The decoded content is kept as a {@link FirmwareImage}. Services updating several devices at the same time open the file one at a time, so the HEX file is
+     * parsed once and the others read the same image using their own cursors.
      *
      * @param filePath the path to the HEX or BIN file
      * @param mimeType the file type
-     * @param mbrSize  the size of MBR, by default 0x1000
+     * @param mbrSize  the size of MBR, by default 0x1000, used only for ZIP files. HEX files are decoded in the FOTA mode
      * @param types    the content files types in ZIP
      * @return the input stream with binary image content
      */
     private InputStream openInputStream(final String filePath, final String mimeType, final int mbrSize, final int types) throws IOException {
-        final InputStream is = new FileInputStream(filePath);
         if (MIME_TYPE_ZIP.equals(mimeType))
-            return new ArchiveInputStream(is, mbrSize, types);
+            return new ArchiveInputStream(new File(filePath), mbrSize, types);
 
-        if (filePath.toLowerCase(Locale.US).endsWith("hex")) {
-            //return new HexInputStream(is, mbrSize);
-            return new HexInputStream(is);
-        }
+        if (filePath.toLowerCase(Locale.US).endsWith("hex"))
+            return openHexFile(filePath).newCursor();
 
-        return is;
+        return new FileInputStream(filePath);
+    }
+
+    /**
+     * Decodes the HEX file in the FOTA mode, or returns the image decoded before. This method is also called on the {@link #mPreparationExecutor} thread:
+     * the {@link BinCache} and the {@link FirmwareImage} cache are accessed only when holding the {@link BinCache} class lock and {@link #logi(String)} only
+     * writes to the thread-safe system log.
+     *
+     * @param filePath the path to the HEX file
+     * @return the decoded image
+     */
+    private FirmwareImage openHexFile(final String filePath) throws IOException {
+        final FileInputStream fis = new FileInputStream(filePath);
+        try {
+            final FileChannel channel = fis.getChannel();
+            // The mapping remains valid after the channel is closed
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final String key = BinCache.getKey(buffer, -1);
+            synchronized (BinCache.class) {
+                FirmwareImage image = FirmwareImage.get(key);
+                if (image != null) {
+                    logi("Using image decoded by another upload");
+                    return image;
+                }
+
+                final File bin = mBinCache.get(key);
+                if (bin != null) {
+                    logi("Using cached BIN image " + bin.getName());
+                    image = FirmwareImage.read(bin);
+                } else {
+                    final HexInputStream his = new HexInputStream(buffer);
+                    mBinCache.put(key, his);
+                    image = his.toImage();
+                }
+                FirmwareImage.put(key, image);
+                return image;
+            }
+        } finally {
+            fis.close();
+        }
     }
 
     /**
@@ -2208,7 +2895,7 @@ public abstract class DfuBaseService extends IntentService {
 
                 if (fileName.toLowerCase(Locale.US).endsWith("hex")) {
                     //return new HexInputStream(is, mbrSize);
-                    return new HexInputStream(is);
+                    return new HexInputStream(is).toImage().newCursor();
                 }
             }
         } finally {
@@ -2230,10 +2917,11 @@ public abstract class DfuBaseService extends IntentService {
             return null;
 
         logi("Connecting to the device...");
-        if (device == null) {
+        if (device == null || !address.equals(device.getAddress())) {
             device = mBluetoothAdapter.getRemoteDevice(address);
         }
 
+        setDfuState(DFU_STATE_CONNECTING);
         gatt = device.connectGatt(this, false, mGattCallback);
 
         // We have to wait until the device is connected and services are discovered
@@ -2242,7 +2930,7 @@ public abstract class DfuBaseService extends IntentService {
             mConnectionState = STATE_CONNECTING;
             synchronized (mLock) {
                 while (((mConnectionState == STATE_CONNECTING || mConnectionState == STATE_CONNECTED) && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2265,6 +2953,22 @@ public abstract class DfuBaseService extends IntentService {
         close(gatt);
     }
 
+    /**
+     * Logs the error that occurred while connecting. A timeout of the DFU step is reported as such, other errors come from the connection state callback.
+     *
+     * @param error the error, {@link #ERROR_TIMEOUT} or a connection state error with the {@link #ERROR_CONNECTION_STATE_MASK}
+     */
+    private void logConnectionError(final int error) {
+        if (error == ERROR_TIMEOUT) {
+            loge("Connection timed out");
+            sendLogBroadcast(LOG_LEVEL_ERROR, "Connection timed out");
+            return;
+        }
+        final int status = error & ~ERROR_CONNECTION_STATE_MASK;
+        loge("An error occurred while connecting to the device:" + status);
+        sendLogBroadcast(LOG_LEVEL_ERROR, String.format("Connection failed (0x%02X): %s", status, GattError.parseConnectionError(status)));
+    }
+
     /**
      * Disconnects from the device and cleans local variables in case of error. This method is SYNCHRONOUS and wait until the disconnecting process will be completed.
      *
@@ -2272,6 +2976,7 @@ public abstract class DfuBaseService extends IntentService {
      * @param error error number
      */
     private void terminateConnection(final BluetoothGatt gatt, final int error) {
+        setDfuState(DFU_STATE_DISCONNECTING);
         if (mConnectionState != STATE_DISCONNECTED) {
             updateProgressNotification(PROGRESS_DISCONNECTING);
             // Disconnect from the device
@@ -2295,6 +3000,7 @@ public abstract class DfuBaseService extends IntentService {
             return;
 
         mConnectionState = STATE_DISCONNECTING;
+        setDfuState(DFU_STATE_DISCONNECTING);
         logi("Disconnecting from the device...");
         gatt.disconnect();
 
@@ -2302,21 +3008,6 @@ public abstract class DfuBaseService extends IntentService {
         waitUntilDisconnected();
     }
 
-    private void waitUntilDisconnectedTimed() {
-        logi("waitUntilDisconnectedTimed");
-        try {
-            synchronized (mLock) {
-                if (mConnectionState != STATE_DISCONNECTED && mError == 0) {
-                    logi("waitUntilDisconnectedTimed : waiting");
-                    mLock.wait(DfuSettingsConstants.TIME_TO_WAIT_IN_MILLISECONDS);
-                    logi("waitUntilDisconnectedTimed : wait done");
-                }
-            }
-        } catch (final InterruptedException e) {
-            loge("Sleeping interrupted", e);
-        }
-    }
-
     /**
      * Wait until the connection state will change to {@link #STATE_DISCONNECTED} or until an error occurs.
      */
@@ -2324,9 +3015,11 @@ public abstract class DfuBaseService extends IntentService {
         logi("waitUntilDisconnected");
         try {
             synchronized (mLock) {
+                // Each wait has its own deadline, f.e. waiting for the reboot does not use up the time of the following reconnection
+                extendDeadline();
                 while ((mConnectionState != STATE_DISCONNECTED) && (mConnectionState != STATE_CLOSED) && mError == 0) {
                     logi("waitUntilDisconnected : waiting");
-                    mLock.wait();
+                    await(0);
                     logi("waitUntilDisconnected : wait done");
                 }
             }
@@ -2339,24 +3032,10 @@ public abstract class DfuBaseService extends IntentService {
         logi("waitUntilConnected");
         try {
             synchronized (mLock) {
-                if (mConnectionState != STATE_CONNECTED && mError == 0) {
-                    logi("waitUntilConnected : waiting");
-                    mLock.wait();
-                    logi("waitUntilConnected : wait:done");
-                }
-            }
-        } catch (final InterruptedException e) {
-            loge("Sleeping interrupted", e);
-        }
-    }
-
-    private void waitUntilConnected(long timeout) {
-        logi("waitUntilConnected");
-        try {
-            synchronized (mLock) {
-                if (mConnectionState != STATE_CONNECTED && mError == 0) {
+                extendDeadline();
+                while (mConnectionState != STATE_CONNECTED && mConnectionState != STATE_CONNECTED_AND_READY && mError == 0) {
                     logi("waitUntilConnected : waiting");
-                    mLock.wait(timeout);
+                    await(0);
                     logi("waitUntilConnected : wait:done");
                 }
             }
@@ -2366,11 +3045,12 @@ public abstract class DfuBaseService extends IntentService {
     }
 
     private void gattConnect(final BluetoothGatt gatt) {
+        setDfuState(DFU_STATE_CONNECTING);
         try {
             if (gatt.connect()) {
                 synchronized (mLock) {
                     while (mConnectionState != STATE_CONNECTED_AND_READY && mError == 0) {
-                        mLock.wait(30 * 1000); //Wait only 30 seconds. TODO Check this again
+                        await(0);
                     }
                 }
             }
@@ -2394,6 +3074,31 @@ public abstract class DfuBaseService extends IntentService {
         mConnectionState = STATE_CLOSED;
     }
 
+    /**
+     * Clears the device cache and discovers the services again without disconnecting. This method is SYNCHRONOUS, it waits until the services are discovered,
+     * the device disconnects or an error occurs.
+     *
+     * @param gatt the GATT device
+     */
+    private void rediscoverServices(final BluetoothGatt gatt) {
+        refreshDeviceCache(gatt, true);
+        mConnectionState = STATE_CONNECTED;
+        if (!gatt.discoverServices()) {
+            logw("Service discovery not started");
+            mConnectionState = STATE_CONNECTED_AND_READY;
+            return;
+        }
+
+        try {
+            synchronized (mLock) {
+                while ((mConnectionState == STATE_CONNECTED && mError == 0 && !mAborted) || mPaused)
+                    await(0);
+            }
+        } catch (final InterruptedException e) {
+            loge("Sleeping interrupted", e);
+        }
+    }
+
     /**
      * Clears the device cache. After uploading new firmware the DFU target will have other services than before.
      *
@@ -2449,7 +3154,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2495,7 +3200,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2552,7 +3257,7 @@ public abstract class DfuBaseService extends IntentService {
             synchronized (mLock) {
                 while ((((type == NOTIFICATIONS && !mNotificationsEnabled) || (type == INDICATIONS && !mServiceChangedIndicationsEnabled))
                         && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2601,7 +3306,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2660,16 +3365,17 @@ public abstract class DfuBaseService extends IntentService {
 		 */
         mResetRequestSent = reset;
 
-        characteristic.setValue(value);
-        sendLogBroadcast(LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid());
-        sendLogBroadcast(LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ")");
-        gatt.writeCharacteristic(characteristic);
+        if (isLogLevelEnabled(LOG_LEVEL_VERBOSE)) {
+            sendLogBroadcast(LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid());
+            sendLogBroadcast(LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ")");
+        }
+        mTransport.writeControlPoint(value);
 
         // We have to wait for confirmation
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2694,7 +3400,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused) {
-                    mLock.wait();
+                    await(0);
                 }
             }
         } catch (final InterruptedException e) {
@@ -2734,7 +3440,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mImageSizeSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2789,7 +3495,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((!mImageSizeSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2811,36 +3517,29 @@ public abstract class DfuBaseService extends IntentService {
      *
      * @param gatt           the GATT device
      * @param characteristic the characteristic to write to. Should be the DFU PACKET
-     * @param buffer         the init packet as a byte array. This must be shorter or equal to 20 bytes (TODO check this restriction).
-     * @param size           the init packet size
+     * @param buffer         the buffer with a chunk of the init packet. The Init packet is sent in chunks of at most {@link #mPacketSize} bytes.
+     * @param size           the size of the chunk, at most {@link #mPacketSize}
      * @throws DeviceDisconnectedException
      * @throws DfuException
      * @throws UploadAbortedException
      */
     private void writeInitPacket(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] buffer, final int size) throws DeviceDisconnectedException, DfuException,
             UploadAbortedException {
-        byte[] locBuffer = buffer;
-        if (buffer.length != size) {
-            locBuffer = new byte[size];
-            System.arraycopy(buffer, 0, locBuffer, 0, size);
-        }
-
         mReceivedData = null;
         mError = 0;
         mInitPacketSent = false;
 
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        characteristic.setValue(locBuffer);
-        logi("Sending init packet (Value = " + parse(locBuffer) + ")");
+        logi("Sending init packet (Value = " + parse(buffer, size) + ")");
         sendLogBroadcast(LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid());
         sendLogBroadcast(LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ")");
-        gatt.writeCharacteristic(characteristic);
+        // The transport copies a short chunk to its own buffer of that length
+        mTransport.writePacket(buffer, size);
 
         // We have to wait for confirmation
         try {
             synchronized (mLock) {
                 while ((!mInitPacketSent && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -2856,54 +3555,6 @@ public abstract class DfuBaseService extends IntentService {
             throw new DeviceDisconnectedException("Unable to write Init DFU Parameters", mConnectionState);
     }
 
-    /**
-     * Starts sending the data. This method is SYNCHRONOUS and terminates when the whole file will be uploaded or the connection status will change from {@link #STATE_CONNECTED_AND_READY}. If
-     * connection state will change, or an error will occur, an exception will be thrown.
-     *
-     * @param gatt                 the GATT device (DFU target)
-     * @param packetCharacteristic the characteristic to write file content to. Must be the DFU PACKET
-     * @return The response value received from notification with Op Code = 3 when all bytes will be uploaded successfully.
-     * @throws DeviceDisconnectedException Thrown when the device will disconnect in the middle of the transmission. The error core will be saved in {@link #mConnectionState}.
-     * @throws DfuException                Thrown if DFU error occur
-     * @throws UploadAbortedException
-     */
-    private byte[] uploadFirmwareImage(final BluetoothGatt gatt, final BluetoothGattCharacteristic packetCharacteristic, final InputStream inputStream) throws DeviceDisconnectedException,
-            DfuException, UploadAbortedException {
-        mReceivedData = null;
-        mError = 0;
-
-        final byte[] buffer = mBuffer;
-        try {
-            final int size = inputStream.read(buffer);
-            sendLogBroadcast(LOG_LEVEL_VERBOSE, "Sending firmware to characteristic " + packetCharacteristic.getUuid() + "...");
-            writePacket(gatt, packetCharacteristic, buffer, size);
-        } catch (final HexFileValidationException e) {
-            throw new DfuException("HEX file not valid", ERROR_FILE_INVALID);
-        } catch (final IOException e) {
-            throw new DfuException("Error while reading file", ERROR_FILE_IO_EXCEPTION);
-        }
-
-        try {
-            synchronized (mLock) {
-                while ((mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
-            }
-        } catch (final InterruptedException e) {
-            loge("Sleeping interrupted", e);
-        }
-
-        if (mAborted)
-            throw new UploadAbortedException();
-
-        if (mError != 0)
-            throw new DfuException("Uploading Firmware Image failed", mError);
-
-        if (mConnectionState != STATE_CONNECTED_AND_READY)
-            throw new DeviceDisconnectedException("Uploading Firmware Image failed: device disconnected", mConnectionState);
-
-        return mReceivedData;
-    }
-
     //Duplicate of String parse(final byte[] data)
     //TODO Remove this
     public static String bytesToHex(byte[] bytes) {
@@ -2917,43 +3568,61 @@ public abstract class DfuBaseService extends IntentService {
     }
 
     /**
-     * Writes the buffer to the characteristic. The maximum size of the buffer is 20 bytes. This method is ASYNCHRONOUS and returns immediately after adding the data to TX queue.
+     * Requests the {@link #REQUESTED_MTU} and sets the {@link #mPacketSize} basing on the MTU granted by the DFU target. This method is SYNCHRONOUS and waits
+     * at most {@link #MTU_REQUEST_TIMEOUT} milliseconds for the response. On Android versions before 5.0, or if the request fails, the default packet size is used.
      *
-     * @param gatt           the GATT device
-     * @param characteristic the characteristic to write to. Should be the DFU PACKET
-     * @param buffer         the buffer with 1-20 bytes
-     * @param size           the number of bytes from the buffer to send
+     * @param gatt the GATT device
      */
-    private void writePacket(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] buffer, final int size) {
-        byte[] locBuffer = buffer;
-        if (buffer.length != size) {
-            locBuffer = new byte[size];
-            System.arraycopy(buffer, 0, locBuffer, 0, size);
+    @SuppressLint("NewApi")
+    private void requestMtu(final BluetoothGatt gatt) {
+        mMtu = DEFAULT_MTU;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            mRequestCompleted = false;
+            logi("Requesting MTU = " + REQUESTED_MTU);
+            sendLogBroadcast(LOG_LEVEL_VERBOSE, "Requesting MTU " + REQUESTED_MTU + "...");
+            if (gatt.requestMtu(REQUESTED_MTU)) {
+                try {
+                    synchronized (mLock) {
+                        final long end = SystemClock.elapsedRealtime() + MTU_REQUEST_TIMEOUT;
+                        long remaining;
+                        while (!mRequestCompleted && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0
+                                && (remaining = end - SystemClock.elapsedRealtime()) > 0)
+                            mLock.wait(remaining);
+                    }
+                } catch (final InterruptedException e) {
+                    loge("Sleeping interrupted", e);
+                }
+            }
         }
 
-        //logi("Sending Packet - " + bytesToHex(locBuffer));
-        characteristic.setValue(locBuffer);
-        gatt.writeCharacteristic(characteristic);
-        // FIXME BLE buffer overflow
-        // after writing to the device with WRITE_NO_RESPONSE property the onCharacteristicWrite callback is received immediately after writing data to a buffer.
-        // The real sending is much slower than adding to the buffer. This method does not return false if writing didn't succeed.. just the callback is not invoked.
-        //
-        // More info: this works fine on Nexus 5 (Android 4.4) (4.3 seconds) and on Samsung S4 (Android 4.3) (20 seconds) so this is a driver issue.
-        // Nexus 4 and 7 uses Qualcomm chip, Nexus 5 and Samsung uses Broadcom chips.
+        // The ATT header takes 3 bytes of each packet. The Legacy DFU bootloader writes the flash in 4-byte words, so the packet size is rounded down to a multiple of 4.
+        mPacketSize = Math.max(DEFAULT_PACKET_SIZE, (mMtu - 3) & ~3);
+        if (mBuffer.length != mPacketSize)
+            mBuffer = new byte[mPacketSize];
+        mTransport.setMaxPacketSize(mPacketSize);
+        sendLogBroadcast(LOG_LEVEL_INFO, "MTU = " + mMtu + ", packet size = " + mPacketSize + " bytes");
     }
 
-    private void waitIfPaused() {
-        synchronized (mLock) {
-            try {
-                while (mPaused)
-                    mLock.wait();
-            } catch (final InterruptedException e) {
-                loge("Sleeping interrupted", e);
-            }
+    /**
+     * Requests the given connection priority. {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} makes the Bluetooth stack use a short connection interval (7.5 - 15 ms),
+     * which increases the number of packets that may be sent per second. This method is ASYNCHRONOUS and does nothing on Android versions before 5.0.
+     *
+     * @param gatt     the GATT device
+     * @param priority the connection priority, one of BluetoothGatt.CONNECTION_PRIORITY_* constants
+     */
+    @SuppressLint("NewApi")
+    private void requestConnectionPriority(final BluetoothGatt gatt, final int priority) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final String name = priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH ? "HIGH" : priority == BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER ? "LOW POWER" : "BALANCED";
+            sendLogBroadcast(LOG_LEVEL_VERBOSE, "Requesting connection priority " + name + "...");
+            sendLogBroadcast(LOG_LEVEL_DEBUG, "gatt.requestConnectionPriority(" + name + ")");
+            if (!gatt.requestConnectionPriority(priority))
+                logw("Connection priority request failed");
         }
     }
 
 
+
     @SuppressLint("NewApi")
     private boolean createBond(final BluetoothDevice device) {
         if (device.getBondState() == BluetoothDevice.BOND_BONDED)
@@ -2961,6 +3630,7 @@ public abstract class DfuBaseService extends IntentService {
 
         boolean result;
         mRequestCompleted = false;
+        setDfuState(DFU_STATE_BONDING);
 
         sendLogBroadcast(LOG_LEVEL_VERBOSE, "Starting pairing...");
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
@@ -2973,8 +3643,8 @@ public abstract class DfuBaseService extends IntentService {
         // We have to wait until device is bounded
         try {
             synchronized (mLock) {
-                while (!mRequestCompleted && !mAborted)
-                    mLock.wait();
+                while (!mRequestCompleted && !mAborted && mError == 0)
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -3012,6 +3682,7 @@ public abstract class DfuBaseService extends IntentService {
             return true;
 
         sendLogBroadcast(LOG_LEVEL_VERBOSE, "Removing bond information...");
+        setDfuState(DFU_STATE_BONDING);
         boolean result = false;
 		/*
 		 * There is a removeBond() method in BluetoothDevice class but for now it's hidden. We will call it using reflections.
@@ -3026,8 +3697,8 @@ public abstract class DfuBaseService extends IntentService {
                 // We have to wait until device is unbounded
                 try {
                     synchronized (mLock) {
-                        while (!mRequestCompleted && !mAborted)
-                            mLock.wait();
+                        while (!mRequestCompleted && !mAborted && mError == 0)
+                            await(0);
                     }
                 } catch (final InterruptedException e) {
                     loge("Sleeping interrupted", e);
@@ -3043,6 +3714,59 @@ public abstract class DfuBaseService extends IntentService {
         return result;
     }
 
+    /**
+     * Moves the DFU process to the given step and sets the deadline for it.
+     *
+     * @param state one of the DFU_STATE_* constants
+     */
+    private void setDfuState(final int state) {
+        synchronized (mLock) {
+            if (mDfuState != state)
+                logi("DFU state: " + DFU_STATE_NAMES[mDfuState] + " -> " + DFU_STATE_NAMES[state]);
+            mDfuState = state;
+            extendDeadline();
+        }
+    }
+
+    /**
+     * Restarts the timeout of the current DFU step, f.e. after a progress has been made.
+     */
+    private void extendDeadline() {
+        final int timeout = DFU_STATE_TIMEOUTS[mDfuState];
+        mDeadline = timeout > 0 ? SystemClock.elapsedRealtime() + timeout : 0;
+    }
+
+    /**
+     * Waits on {@link #mLock} until notified or until the deadline of the current DFU step. When the deadline has passed, {@link #mError} is set to
+     * {@link #ERROR_TIMEOUT} so that the waiting loop terminates. This method must be called in a loop checking the awaited condition while holding
+     * the {@link #mLock}.
+     *
+     * @param maxWait the maximum time to wait in milliseconds, or 0 to wait until notified or timed out
+     * @throws InterruptedException if the thread has been interrupted
+     */
+    private void await(final long maxWait) throws InterruptedException {
+        if (mPaused) {
+            mLock.wait(maxWait);
+            // The time of the pause is not counted
+            extendDeadline();
+            return;
+        }
+        if (mDeadline == 0) {
+            mLock.wait(maxWait);
+            return;
+        }
+        final long remaining = mDeadline - SystemClock.elapsedRealtime();
+        if (remaining <= 0) {
+            if (mError == 0) {
+                loge("Timeout in state " + DFU_STATE_NAMES[mDfuState]);
+                sendLogBroadcast(LOG_LEVEL_ERROR, "Timeout: " + DFU_STATE_NAMES[mDfuState]);
+                mError = ERROR_TIMEOUT;
+            }
+            return;
+        }
+        mLock.wait(maxWait > 0 ? Math.min(maxWait, remaining) : remaining);
+    }
+
     /**
      * Waits until the notification will arrive. Returns the data returned by the notification. This method will block the thread if response is not ready or connection state will change from
      * {@link #STATE_CONNECTED_AND_READY}. If connection state will change, or an error will occur, an exception will be thrown.
@@ -3058,7 +3782,7 @@ public abstract class DfuBaseService extends IntentService {
         try {
             synchronized (mLock) {
                 while ((mReceivedData == null && mConnectionState == STATE_CONNECTED_AND_READY && mError == 0 && !mAborted) || mPaused)
-                    mLock.wait();
+                    await(0);
             }
         } catch (final InterruptedException e) {
             loge("Sleeping interrupted", e);
@@ -3078,8 +3802,12 @@ public abstract class DfuBaseService extends IntentService {
 
     /**
      * Creates or updates the notification in the Notification Manager. Sends broadcast with current progress to the activity.
+     * This method is called for each packet, but the progress is sent at most every {@link DfuProgressChannel#MIN_INTERVAL} milliseconds.
      */
     private void updateProgressNotification() {
+        if (!mProgressChannel.update(mBytesSent, mBytesConfirmed, SystemClock.elapsedRealtime()))
+            return;
+
         final int progress = (int) (100.0f * mBytesSent / mImageSizeInBytes);
         if (mLastProgress == progress)
             return;
@@ -3131,10 +3859,8 @@ public abstract class DfuBaseService extends IntentService {
     private void sendProgressBroadcast(final int progress) {
 
         final long now = SystemClock.elapsedRealtime();
-        final float speed = now - mLastProgressTime != 0 ? (float) (mBytesSent - mLastBytesSent) / (float) (now - mLastProgressTime) : 0.0f;
+        final float speed = mProgressChannel.getSpeed();
         final float avgSpeed = now - mStartTime != 0 ? (float) mBytesSent / (float) (now - mStartTime) : 0.0f;
-        mLastProgressTime = now;
-        mLastBytesSent = mBytesSent;
 
         final Intent broadcast = new Intent(BROADCAST_PROGRESS);
         broadcast.putExtra(EXTRA_DATA, progress);
@@ -3146,6 +3872,13 @@ public abstract class DfuBaseService extends IntentService {
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
 
+    private void sendFinishedBroadcast(final String deviceAddress) {
+
+        final Intent broadcast = new Intent(BROADCAST_FINISHED);
+        broadcast.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+        LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
+    }
+
     private void sendErrorBroadcast(final int error) {
 
         final Intent broadcast = new Intent(BROADCAST_ERROR);
@@ -3167,7 +3900,21 @@ public abstract class DfuBaseService extends IntentService {
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
 
+    /**
+     * Returns whether log events of the given level are sent in this update. Call sites building expensive messages, f.e. with a characteristic value,
+     * should check it first, so that nothing is formatted when the event would be dropped.
+     *
+     * @param level the log level
+     * @return <code>true</code> if the event would be broadcast
+     */
+    private boolean isLogLevelEnabled(final int level) {
+        return level >= mMinLogLevel;
+    }
+
     private void sendLogBroadcast(final int level, final String message) {
+        if (!isLogLevelEnabled(level))
+            return;
+
         final String fullMessage = "[DFU] " + message;
         final Intent broadcast = new Intent(BROADCAST_LOG);
         logi("Dfu update " + fullMessage);
@@ -3247,10 +3994,13 @@ public abstract class DfuBaseService extends IntentService {
     }
 
     private String parse(final byte[] data) {
+        return data != null ? parse(data, data.length) : "";
+    }
+
+    private String parse(final byte[] data, final int length) {
         if (data == null)
             return "";
 
-        final int length = data.length;
         if (length == 0)
             return "";
 
@@ -0,0 +1,170 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Reports the upload progress to listeners in the application's process without broadcasting intents.
+ * <p>
+ * The service updates the channel for each packet written. The progress is published at most every {@link #MIN_INTERVAL} milliseconds, and when the last
+ * byte has been sent. The speed is an exponentially weighted moving average of the speeds measured between publications, and the estimated time
+ * of arrival is calculated from it. Listeners are called on the main thread. If the main thread is busy, publications are coalesced and only
+ * the latest progress is delivered.
+ * </p>
+ * The {@link DfuBaseService#BROADCAST_PROGRESS} broadcast is sent with the same rate.
+ */
+public class DfuProgressChannel {
+	/** The minimum interval between two publications, in milliseconds. */
+	public static final int MIN_INTERVAL = 100;
+	/** The weight of the latest speed measurement in the average speed. */
+	private static final float SMOOTHING = 0.25f;
+
+	private static final List<Listener> LISTENERS = new CopyOnWriteArrayList<>();
+	private static Handler sHandler;
+
+	public interface Listener {
+		/**
+		 * Called on the main thread with the latest upload progress.
+		 *
+		 * @param deviceAddress  the address of the device being updated
+		 * @param percent        the progress in percent
+		 * @param bytesSent      number of bytes sent
+		 * @param bytesConfirmed number of bytes confirmed by the last packet receipt notification
+		 * @param totalBytes     the size of the firmware image
+		 * @param speed          the average upload speed in bytes/millisecond
+		 * @param eta            the estimated time until the whole image is sent in milliseconds, or -1 if not known yet
+		 */
+		void onProgressChanged(final String deviceAddress, final int percent, final int bytesSent, final int bytesConfirmed, final int totalBytes, final float speed,
+							   final long eta);
+	}
+
+	/**
+	 * Registers the listener. Remember to remove it when not needed, f.e. when the activity is destroyed.
+	 */
+	public static void addListener(final Listener listener) {
+		if (!LISTENERS.contains(listener))
+			LISTENERS.add(listener);
+	}
+
+	public static void removeListener(final Listener listener) {
+		LISTENERS.remove(listener);
+	}
+
+	private String deviceAddress;
+	private int totalBytes;
+	private boolean published;
+	private long lastPublishTime;
+	private int lastBytesSent;
+	private float speed;
+
+	// The progress to be delivered, guarded by this
+	private int bytesSent, bytesConfirmed;
+	private long eta;
+	private boolean posted;
+
+	private final Runnable deliver = new Runnable() {
+		@Override
+		public void run() {
+			final String deviceAddress;
+			final int bytesSent, bytesConfirmed, totalBytes;
+			final float speed;
+			final long eta;
+			synchronized (DfuProgressChannel.this) {
+				deviceAddress = DfuProgressChannel.this.deviceAddress;
+				bytesSent = DfuProgressChannel.this.bytesSent;
+				bytesConfirmed = DfuProgressChannel.this.bytesConfirmed;
+				totalBytes = DfuProgressChannel.this.totalBytes;
+				speed = DfuProgressChannel.this.speed;
+				eta = DfuProgressChannel.this.eta;
+				posted = false;
+			}
+
+			final int percent = totalBytes > 0 ? (int) (100L * bytesSent / totalBytes) : 0;
+			for (final Listener listener : LISTENERS)
+				listener.onProgressChanged(deviceAddress, percent, bytesSent, bytesConfirmed, totalBytes, speed, eta);
+		}
+	};
+
+	/**
+	 * Resets the channel before an upload.
+	 *
+	 * @param deviceAddress the address of the device being updated
+	 * @param totalBytes    the size of the firmware image
+	 */
+	synchronized void start(final String deviceAddress, final int totalBytes) {
+		this.deviceAddress = deviceAddress;
+		this.totalBytes = totalBytes;
+		this.published = false;
+		this.lastBytesSent = 0;
+		this.speed = 0.0f;
+		this.eta = -1;
+	}
+
+	/**
+	 * Updates the progress. This method is called for each packet and returns quickly if the progress is not to be published.
+	 *
+	 * @param bytesSent      number of bytes sent
+	 * @param bytesConfirmed number of bytes confirmed by the DFU target
+	 * @param now            the current time, from {@link android.os.SystemClock#elapsedRealtime()}
+	 * @return <code>true</code> if the progress has been published, <code>false</code> if it was too early
+	 */
+	synchronized boolean update(final int bytesSent, final int bytesConfirmed, final long now) {
+		if (published && bytesSent < totalBytes && now - lastPublishTime < MIN_INTERVAL)
+			return false;
+
+		if (published && now > lastPublishTime) {
+			final float current = (float) (bytesSent - lastBytesSent) / (float) (now - lastPublishTime);
+			speed = speed == 0.0f ? current : speed + SMOOTHING * (current - speed);
+		}
+		published = true;
+		lastPublishTime = now;
+		lastBytesSent = bytesSent;
+		this.bytesSent = bytesSent;
+		this.bytesConfirmed = bytesConfirmed;
+		eta = speed > 0.0f ? (long) ((totalBytes - bytesSent) / speed) : -1;
+
+		if (!posted && !LISTENERS.isEmpty()) {
+			posted = true;
+			getHandler().post(deliver);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the average upload speed in bytes/millisecond.
+	 */
+	synchronized float getSpeed() {
+		return speed;
+	}
+
+	private static synchronized Handler getHandler() {
+		if (sHandler == null)
+			sHandler = new Handler(Looper.getMainLooper());
+		return sHandler;
+	}
+}
@@ -0,0 +1,314 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Updates several devices at the same time.
+ * <p>
+ * The {@link DfuBaseService} is an {@link android.app.IntentService}: a single instance handles one intent at a time on its worker thread. To update devices
+ * concurrently the application must declare several services extending the {@link DfuBaseService} in the AndroidManifest.xml file, f.e.
+ * <code>DfuService</code>, <code>DfuService2</code> and <code>DfuService3</code>, and give them to the scheduler. Each running service has its own
+ * connection, buffers and counters, while the firmware image is parsed once and shared between them using the BIN cache. The number of simultaneous
+ * connections is limited by the number of services given and by {@link #setMaxConcurrentSessions(int)}.
+ * </p>
+ * <p>
+ * Sessions are added with {@link #add(Intent)}, using the same extras as the intent starting the {@link DfuBaseService}. The scheduler starts the next queued
+ * session when a service has sent the {@link DfuBaseService#BROADCAST_FINISHED} broadcast, and reports the progress of each session and of the whole batch
+ * to the {@link Listener}.
+ * </p>
+ * All methods must be called from the main thread. The listener is called on the main thread.
+ */
+public class DfuScheduler {
+	private static final String TAG = "DfuScheduler";
+
+	public interface Listener {
+		/**
+		 * Called when the state or the progress of the session has changed.
+		 */
+		void onSessionChanged(final DfuSession session);
+
+		/**
+		 * Called when the aggregate progress has changed.
+		 *
+		 * @param progress the average progress of all sessions in percent, finished sessions count as 100%
+		 * @param finished number of finished sessions
+		 * @param total    number of all sessions
+		 */
+		void onProgressChanged(final int progress, final int finished, final int total);
+
+		/**
+		 * Called when all sessions have finished.
+		 */
+		void onCompleted();
+	}
+
+	private final Context context;
+	private final Listener listener;
+	private final List<Class<? extends DfuBaseService>> idleServices = new ArrayList<>();
+	private final Map<String, DfuSession> sessions = new LinkedHashMap<>();
+	/** Sessions holding a service, by device address. A session keeps its service until the service has finished, also after the session has finished. */
+	private final Map<String, DfuSession> runningSessions = new HashMap<>();
+	private int maxConcurrentSessions;
+	private int lastProgress = -1;
+	private int lastFinished;
+	private boolean started;
+
+	/**
+	 * Creates the scheduler.
+	 *
+	 * @param context  the context
+	 * @param listener the listener
+	 * @param services the services that will update the devices, each service declared in the AndroidManifest.xml file. At most one session runs on each service.
+	 */
+	@SafeVarargs
+	public DfuScheduler(final Context context, final Listener listener, final Class<? extends DfuBaseService>... services) {
+		if (services.length == 0)
+			throw new IllegalArgumentException("At least one service is required");
+
+		this.context = context.getApplicationContext();
+		this.listener = listener;
+		Collections.addAll(idleServices, services);
+		this.maxConcurrentSessions = services.length;
+	}
+
+	/**
+	 * Sets the maximum number of devices updated at the same time. Most Android devices can not keep more than 4-7 connections. By default the number
+	 * of services given to the constructor.
+	 *
+	 * @param maxConcurrentSessions the maximum number of simultaneous connections, not greater than the number of services
+	 */
+	public void setMaxConcurrentSessions(final int maxConcurrentSessions) {
+		this.maxConcurrentSessions = Math.max(1, maxConcurrentSessions);
+		startQueuedSessions();
+	}
+
+	/**
+	 * Adds the session to the queue. If the scheduler has been started the session will start as soon as a service is available.
+	 *
+	 * @param intent the intent with the extras that would be given to the {@link DfuBaseService}. {@link DfuBaseService#EXTRA_DEVICE_ADDRESS} is required.
+	 *               The component is ignored.
+	 * @return the session
+	 */
+	public DfuSession add(final Intent intent) {
+		final String address = intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS);
+		if (address == null)
+			throw new IllegalArgumentException("Device address not set");
+		final DfuSession current = sessions.get(address);
+		if (current != null && !current.isFinished())
+			throw new IllegalStateException("Device " + address + " is already being updated");
+
+		final DfuSession session = new DfuSession(intent);
+		sessions.remove(address);
+		sessions.put(address, session);
+		startQueuedSessions();
+		return session;
+	}
+
+	/**
+	 * Starts the queued sessions.
+	 */
+	public void start() {
+		if (!started) {
+			final IntentFilter filter = new IntentFilter();
+			filter.addAction(DfuBaseService.BROADCAST_PROGRESS);
+			filter.addAction(DfuBaseService.BROADCAST_ERROR);
+			filter.addAction(DfuBaseService.BROADCAST_FINISHED);
+			LocalBroadcastManager.getInstance(context).registerReceiver(mDfuReceiver, filter);
+			started = true;
+		}
+		startQueuedSessions();
+	}
+
+	/**
+	 * Aborts all sessions. Queued sessions are not started, running ones are aborted using the {@link DfuBaseService#ACTION_ABORT} action.
+	 */
+	public void abort() {
+		for (final DfuSession session : sessions.values()) {
+			if (session.getState() == DfuSession.STATE_QUEUED) {
+				session.finish(DfuSession.STATE_ABORTED, 0);
+				listener.onSessionChanged(session);
+			} else if (session.getState() == DfuSession.STATE_RUNNING) {
+				final Intent action = new Intent(DfuBaseService.BROADCAST_ACTION);
+				action.putExtra(DfuBaseService.EXTRA_ACTION, DfuBaseService.ACTION_ABORT);
+				action.putExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS, session.getDeviceAddress());
+				LocalBroadcastManager.getInstance(context).sendBroadcast(action);
+			}
+		}
+		onSessionsChanged();
+	}
+
+	/**
+	 * Stops listening to the services. Sessions still running will continue, but their progress will not be reported.
+	 */
+	public void close() {
+		if (started) {
+			LocalBroadcastManager.getInstance(context).unregisterReceiver(mDfuReceiver);
+			started = false;
+		}
+	}
+
+	/**
+	 * Returns all sessions in the order they have been added.
+	 */
+	public List<DfuSession> getSessions() {
+		return new ArrayList<>(sessions.values());
+	}
+
+	private void startQueuedSessions() {
+		if (!started)
+			return;
+
+		for (final DfuSession session : sessions.values()) {
+			if (runningSessions.size() >= maxConcurrentSessions || idleServices.isEmpty())
+				break;
+			// A new session for the same device waits until the service of the previous one has disconnected
+			if (session.getState() != DfuSession.STATE_QUEUED || runningSessions.containsKey(session.getDeviceAddress()))
+				continue;
+
+			final Class<? extends DfuBaseService> service = idleServices.remove(0);
+			final Intent intent = new Intent(context, service);
+			intent.putExtras(session.getIntent());
+			session.start(service);
+			runningSessions.put(session.getDeviceAddress(), session);
+			Log.i(TAG, "Starting update of " + session.getDeviceAddress() + " using " + service.getSimpleName());
+			context.startService(intent);
+			listener.onSessionChanged(session);
+		}
+	}
+
+	private void onSessionFinished(final DfuSession session, final int state, final int error) {
+		session.finish(state, error);
+		Log.i(TAG, "Update of " + session.getDeviceAddress() + " finished with state " + state + ", error " + error);
+		listener.onSessionChanged(session);
+	}
+
+	/**
+	 * Called when the service has sent the {@link DfuBaseService#BROADCAST_PROGRESS} broadcast.
+	 */
+	void onProgress(final String deviceAddress, final int progress) {
+		final DfuSession session = sessions.get(deviceAddress);
+		if (session == null || session.getState() != DfuSession.STATE_RUNNING)
+			return;
+
+		switch (progress) {
+			case DfuBaseService.PROGRESS_COMPLETED:
+				onSessionFinished(session, DfuSession.STATE_COMPLETED, 0);
+				break;
+			case DfuBaseService.PROGRESS_ABORTED:
+				onSessionFinished(session, DfuSession.STATE_ABORTED, 0);
+				break;
+			case DfuBaseService.PROGRESS_SERVICE_NOT_FOUND:
+			case DfuBaseService.PROGRESS_VALIDATION_FAILED:
+				onSessionFinished(session, DfuSession.STATE_FAILED, progress);
+				break;
+			default:
+				// Other negative values are connection states
+				if (progress < 0 || progress == session.getProgress())
+					return;
+				session.setProgress(progress);
+				listener.onSessionChanged(session);
+				break;
+		}
+		onSessionsChanged();
+	}
+
+	/**
+	 * Called when the service has sent the {@link DfuBaseService#BROADCAST_ERROR} broadcast.
+	 */
+	void onError(final String deviceAddress, final int error) {
+		final DfuSession session = sessions.get(deviceAddress);
+		if (session == null || session.getState() != DfuSession.STATE_RUNNING)
+			return;
+
+		onSessionFinished(session, DfuSession.STATE_FAILED, error);
+		onSessionsChanged();
+	}
+
+	/**
+	 * Called when the service has sent the {@link DfuBaseService#BROADCAST_FINISHED} broadcast. The service is given to the next queued session.
+	 * A session that is still running has been stopped without reporting the result and fails.
+	 */
+	void onServiceFinished(final String deviceAddress) {
+		final DfuSession session = runningSessions.remove(deviceAddress);
+		if (session == null)
+			return;
+
+		idleServices.add(session.getService());
+		if (session.getState() == DfuSession.STATE_RUNNING) {
+			onSessionFinished(session, DfuSession.STATE_FAILED, 0);
+			onSessionsChanged();
+		}
+		startQueuedSessions();
+	}
+
+	private void onSessionsChanged() {
+		int sum = 0;
+		int finished = 0;
+		for (final DfuSession session : sessions.values()) {
+			if (session.isFinished()) {
+				sum += 100;
+				finished++;
+			} else {
+				sum += session.getProgress();
+			}
+		}
+		final int total = sessions.size();
+		final int progress = total > 0 ? sum / total : 0;
+		if (progress != lastProgress) {
+			lastProgress = progress;
+			listener.onProgressChanged(progress, finished, total);
+		}
+		if (total > 0 && finished == total && finished != lastFinished)
+			listener.onCompleted();
+		lastFinished = finished;
+	}
+
+	private final BroadcastReceiver mDfuReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(final Context context, final Intent intent) {
+			final String action = intent.getAction();
+			final String deviceAddress = intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS);
+
+			if (DfuBaseService.BROADCAST_PROGRESS.equals(action))
+				onProgress(deviceAddress, intent.getIntExtra(DfuBaseService.EXTRA_DATA, 0));
+			else if (DfuBaseService.BROADCAST_ERROR.equals(action))
+				onError(deviceAddress, intent.getIntExtra(DfuBaseService.EXTRA_DATA, 0));
+			else if (DfuBaseService.BROADCAST_FINISHED.equals(action))
+				onServiceFinished(deviceAddress);
+		}
+	};
+}
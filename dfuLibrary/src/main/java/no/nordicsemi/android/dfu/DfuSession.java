@@ -0,0 +1,130 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Intent;
+
+/**
+ * The state of the update of a single device scheduled with the {@link DfuScheduler}. The upload itself, with its connection, buffers and counters,
+ * runs in a separate instance of the {@link DfuBaseService}; the session keeps what the scheduler has learned about it from the broadcasts.
+ * <p>
+ * Sessions are created by {@link DfuScheduler#add(Intent)} and updated on the main thread.
+ * </p>
+ */
+public class DfuSession {
+	/** The session waits for a free service. */
+	public static final int STATE_QUEUED = 0;
+	/** The service is updating the device. */
+	public static final int STATE_RUNNING = 1;
+	/** The device has been updated. */
+	public static final int STATE_COMPLETED = 2;
+	/** The update failed, see {@link #getError()}. */
+	public static final int STATE_FAILED = 3;
+	/** The update has been aborted by the user. */
+	public static final int STATE_ABORTED = 4;
+
+	private final String deviceAddress;
+	private final Intent intent;
+	private Class<? extends DfuBaseService> service;
+	private int state = STATE_QUEUED;
+	private int progress;
+	private int error;
+
+	DfuSession(final Intent intent) {
+		this.deviceAddress = intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS);
+		this.intent = intent;
+	}
+
+	/**
+	 * Returns the address of the device being updated.
+	 */
+	public String getDeviceAddress() {
+		return deviceAddress;
+	}
+
+	/**
+	 * Returns the device name given with {@link DfuBaseService#EXTRA_DEVICE_NAME}, or <code>null</code>.
+	 */
+	public String getDeviceName() {
+		return intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_NAME);
+	}
+
+	/**
+	 * Returns the state of the session, one of {@link #STATE_QUEUED}, {@link #STATE_RUNNING}, {@link #STATE_COMPLETED}, {@link #STATE_FAILED} or {@link #STATE_ABORTED}.
+	 */
+	public int getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the upload progress in percent. Completed sessions return 100.
+	 */
+	public int getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Returns the error reported in {@link DfuBaseService#BROADCAST_ERROR} if the session has failed, or 0. The {@link DfuBaseService#PROGRESS_SERVICE_NOT_FOUND}
+	 * and {@link DfuBaseService#PROGRESS_VALIDATION_FAILED} states are also returned here. A session whose service has stopped without reporting the result
+	 * fails with error 0.
+	 */
+	public int getError() {
+		return error;
+	}
+
+	/**
+	 * Returns <code>true</code> if the session has completed, failed or has been aborted.
+	 */
+	public boolean isFinished() {
+		return state >= STATE_COMPLETED;
+	}
+
+	Intent getIntent() {
+		return intent;
+	}
+
+	Class<? extends DfuBaseService> getService() {
+		return service;
+	}
+
+	void start(final Class<? extends DfuBaseService> service) {
+		this.service = service;
+		this.state = STATE_RUNNING;
+	}
+
+	void setProgress(final int progress) {
+		this.progress = progress;
+	}
+
+	void finish(final int state, final int error) {
+		this.state = state;
+		this.error = error;
+		if (state == STATE_COMPLETED)
+			this.progress = 100;
+	}
+
+	@Override
+	public String toString() {
+		return deviceAddress + " " + state + " " + progress + "%";
+	}
+}
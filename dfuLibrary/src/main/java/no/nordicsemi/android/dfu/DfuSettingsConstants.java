@@ -28,7 +28,15 @@ public interface DfuSettingsConstants {
 	public static final String SETTINGS_MBR_SIZE = "settings_mbr_size";
 	public static final int SETTINGS_DEFAULT_MBR_SIZE = 0x1000;
 	public static final int SETTINGS_NUMBER_OF_PACKETS_DEFAULT = 10;
+	/** The maximum number of packets not confirmed by a packet receipt notification. 0 means twice the number of packets between notifications. */
+	public static final String SETTINGS_MAX_PACKETS_IN_FLIGHT = "settings_max_packets_in_flight";
+	public static final int SETTINGS_MAX_PACKETS_IN_FLIGHT_DEFAULT = 0;
+	/** Whether the MakeCode program is sent through the Partial Flashing Service when possible, see {@link DfuBaseService#EXTRA_PARTIAL_FLASHING}. */
+	public static final String SETTINGS_PARTIAL_FLASHING = "settings_partial_flashing";
+	public static final boolean SETTINGS_PARTIAL_FLASHING_DEFAULT = false;
 	public static final int TIME_TO_WAIT_IN_MILLISECONDS = 30*1000;
+	/** The maximum total size of BIN images extracted from HEX files kept in the cache directory. */
+	public static final int BIN_CACHE_MAX_SIZE = 4 * 1024 * 1024;
 	public static final int APP_CODE_BASE_START =0x18000;
     public static final int APP_CODE_BASE_END =0x3BBFF;
     //public static final int APP_CODE_BASE_END =0x2FFFF;
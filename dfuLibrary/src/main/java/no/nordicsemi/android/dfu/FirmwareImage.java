@@ -0,0 +1,191 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The decoded BIN content of a firmware, shared by all uploads of the same file.
+ * <p>
+ * The image is immutable: the content is never modified after it has been decoded, and uploads read it through independent {@link Cursor}s, each with
+ * its own position. Images are kept in a process-wide table under the {@link BinCache} key of the HEX file as long as any upload uses them, so services
+ * updating several devices at the same time decode the file once and keep a single copy of the content.
+ * </p>
+ */
+class FirmwareImage {
+	private static final Map<String, WeakReference<FirmwareImage>> IMAGES = new HashMap<>();
+
+	private final byte[] data;
+	private final int size;
+	private final List<HexInputStream.Region> regions;
+
+	FirmwareImage(final byte[] data, final int size, final List<HexInputStream.Region> regions) {
+		this.data = data;
+		this.size = size;
+		this.regions = regions;
+	}
+
+	/**
+	 * Reads the BIN file, f.e. an image stored in the {@link BinCache}. The regions are not known in that case.
+	 *
+	 * @param bin the BIN file
+	 * @return the image
+	 * @throws IOException if the file could not be read
+	 */
+	static FirmwareImage read(final File bin) throws IOException {
+		final byte[] data = new byte[(int) bin.length()];
+		final InputStream is = new FileInputStream(bin);
+		try {
+			int offset = 0;
+			int count;
+			while (offset < data.length && (count = is.read(data, offset, data.length - offset)) > 0)
+				offset += count;
+			if (offset < data.length)
+				throw new IOException("Unexpected end of " + bin.getName());
+		} finally {
+			is.close();
+		}
+		return new FirmwareImage(data, data.length, Collections.<HexInputStream.Region>emptyList());
+	}
+
+	/**
+	 * Returns the image stored with the given key, if any upload still uses it.
+	 *
+	 * @param key the key obtained from {@link BinCache#getKey(java.nio.ByteBuffer, int)}
+	 * @return the image or <code>null</code>
+	 */
+	static FirmwareImage get(final String key) {
+		if (key == null)
+			return null;
+
+		synchronized (IMAGES) {
+			final WeakReference<FirmwareImage> reference = IMAGES.get(key);
+			final FirmwareImage image = reference != null ? reference.get() : null;
+			if (image == null)
+				IMAGES.remove(key);
+			return image;
+		}
+	}
+
+	/**
+	 * Stores the image so that other uploads of the same file may use it.
+	 *
+	 * @param key   the key obtained from {@link BinCache#getKey(java.nio.ByteBuffer, int)}
+	 * @param image the image
+	 */
+	static void put(final String key, final FirmwareImage image) {
+		if (key == null)
+			return;
+
+		synchronized (IMAGES) {
+			IMAGES.put(key, new WeakReference<>(image));
+		}
+	}
+
+	/**
+	 * Returns the size of the BIN content in bytes.
+	 */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the contiguous runs of the BIN content, or an empty list if the image was read from a BIN file.
+	 */
+	List<HexInputStream.Region> getRegions() {
+		return regions;
+	}
+
+	/**
+	 * Creates a new cursor positioned at the beginning of the image.
+	 */
+	Cursor newCursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Reads the image from the beginning. Each upload has its own cursor, the image is not copied.
+	 */
+	class Cursor extends InputStream {
+		private int position;
+
+		private Cursor() {
+		}
+
+		/**
+		 * Returns the image this cursor reads.
+		 */
+		FirmwareImage getImage() {
+			return FirmwareImage.this;
+		}
+
+		@Override
+		public int available() {
+			return size - position;
+		}
+
+		@Override
+		public int read() {
+			return position < size ? data[position++] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count) {
+			if (position >= size)
+				return -1;
+
+			final int length = Math.min(count, size - position);
+			System.arraycopy(data, position, buffer, offset, length);
+			position += length;
+			return length;
+		}
+
+		@Override
+		public long skip(final long count) {
+			final int length = (int) Math.max(0, Math.min(count, size - position));
+			position += length;
+			return length;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		/**
+		 * Rewinds the cursor to the beginning of the image.
+		 */
+		@Override
+		public void reset() {
+			position = 0;
+		}
+	}
+}
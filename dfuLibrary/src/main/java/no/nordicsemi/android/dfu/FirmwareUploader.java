@@ -0,0 +1,355 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import no.nordicsemi.android.dfu.exception.DeviceDisconnectedException;
+import no.nordicsemi.android.dfu.exception.DfuException;
+import no.nordicsemi.android.dfu.exception.HexFileValidationException;
+import no.nordicsemi.android.dfu.exception.UploadAbortedException;
+import no.nordicsemi.android.dfu.transport.DfuTransport;
+
+/**
+ * Sends the firmware image to the DFU target through a {@link DfuTransport}. The upload starts after the Receive Firmware Image request has been written and ends
+ * with the response to it, sent by the target when the whole image has been received.
+ * <p>
+ * The next packet is written when the transport reports the previous one as written, unless the number of packets not confirmed by a Packet Receipt Notification
+ * has reached the window chosen by the {@link PrnController}. In that case it is written when the next notification comes. A packet rejected by the transport
+ * is written again after {@link #SEND_RETRY_INTERVAL} milliseconds.
+ * </p>
+ * <p>
+ * The upload fails with {@link DfuBaseService#ERROR_TIMEOUT} if no packet has been written or confirmed for the given time. The time when the upload was paused
+ * is not counted. The events of the transport and the methods changing the state of the upload may be called from any thread.
+ * </p>
+ * Writing a packet does not allocate memory.
+ */
+class FirmwareUploader implements DfuTransport.Listener {
+	/** The interval in which a packet rejected by the transport is written again, in milliseconds. */
+	static final int SEND_RETRY_INTERVAL = 500;
+	private static final int OP_CODE_RESPONSE_CODE = 16;
+	private static final int OP_CODE_PACKET_RECEIPT_NOTIF = 17;
+
+	/**
+	 * Receives the progress of the upload. It is called from the thread of the transport after each packet written, without holding any lock.
+	 */
+	interface ProgressListener {
+		/**
+		 * @param bytesSent      number of bytes written
+		 * @param bytesConfirmed number of bytes confirmed by the last packet receipt notification
+		 */
+		void onProgress(final int bytesSent, final int bytesConfirmed);
+	}
+
+	private final PrnController prnController;
+	private final int timeout;
+	private final ProgressListener progressListener;
+
+	// The state of the upload, guarded by this
+	private DfuTransport transport;
+	private InputStream inputStream;
+	private byte[] buffer;
+	private int imageSize;
+	private int packetsBeforeNotification;
+	private int bytesSent, bytesConfirmed;
+	private boolean writeInProgress;
+	/** Number of bytes in the {@link #buffer} that were read from the input stream but rejected by the transport. They will be written again. */
+	private int pendingPacketSize;
+	private byte[] response;
+	private boolean uploading, connected, paused, aborted;
+	private int error;
+	private long deadline;
+
+	/**
+	 * @param prnController    the controller of the window of packets in flight, started by the caller before each upload
+	 * @param timeout          the time in milliseconds after which the upload fails if no progress has been made, 0 for no timeout
+	 * @param progressListener the listener receiving the progress of the upload
+	 */
+	FirmwareUploader(final PrnController prnController, final int timeout, final ProgressListener progressListener) {
+		this.prnController = prnController;
+		this.timeout = timeout;
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Sends the firmware image. This method is SYNCHRONOUS and returns when the target has responded to the Receive Firmware Image request, or throws an exception
+	 * when the upload has failed. The transport listener is set to this uploader for the time of the upload.
+	 *
+	 * @param transport                 the transport connected to the target, the Receive Firmware Image request must have been written
+	 * @param inputStream               the stream with the firmware image
+	 * @param buffer                    the buffer for a single packet, its length is the packet size
+	 * @param imageSize                 number of bytes to be sent
+	 * @param packetsBeforeNotification the PRN interval sent to the target, 0 if notifications are disabled
+	 * @return the response to the Receive Firmware Image request, or other response sent by the target during the upload
+	 * @throws DeviceDisconnectedException if the link has been lost
+	 * @throws DfuException                if the transport has failed, the upload has timed out or the image could not be read
+	 * @throws UploadAbortedException      if the upload has been aborted
+	 */
+	byte[] upload(final DfuTransport transport, final InputStream inputStream, final byte[] buffer, final int imageSize, final int packetsBeforeNotification)
+			throws DeviceDisconnectedException, DfuException, UploadAbortedException {
+		synchronized (this) {
+			this.transport = transport;
+			this.inputStream = inputStream;
+			this.buffer = buffer;
+			this.imageSize = imageSize;
+			this.packetsBeforeNotification = packetsBeforeNotification;
+			bytesSent = bytesConfirmed = 0;
+			writeInProgress = false;
+			pendingPacketSize = 0;
+			response = null;
+			error = 0;
+			connected = uploading = true;
+			extendDeadline();
+		}
+		transport.setListener(this);
+
+		try {
+			synchronized (this) {
+				sendNextPacket();
+				while ((response == null && connected && error == 0 && !aborted) || paused) {
+					await(SEND_RETRY_INTERVAL);
+					// Resume sending after the upload has been paused or the transport has rejected a packet. This does nothing if a write is in progress.
+					if (!paused)
+						sendNextPacket();
+				}
+			}
+		} catch (final InterruptedException e) {
+			// The state is checked below
+		} finally {
+			transport.setListener(null);
+			synchronized (this) {
+				uploading = false;
+				this.inputStream = null;
+			}
+		}
+
+		synchronized (this) {
+			if (aborted)
+				throw new UploadAbortedException();
+			if (error == DfuBaseService.ERROR_FILE_INVALID)
+				throw new DfuException("HEX file not valid", error);
+			if (error != 0)
+				throw new DfuException("Uploading Firmware Image failed", error);
+			if (response == null)
+				throw new DeviceDisconnectedException("Uploading Firmware Image failed: device disconnected", 0);
+			return response;
+		}
+	}
+
+	/**
+	 * Returns true while {@link #upload(DfuTransport, InputStream, byte[], int, int)} is in progress.
+	 */
+	synchronized boolean isUploading() {
+		return uploading;
+	}
+
+	synchronized int getBytesSent() {
+		return bytesSent;
+	}
+
+	synchronized int getBytesConfirmed() {
+		return bytesConfirmed;
+	}
+
+	/**
+	 * Pauses the upload. No packet is written until {@link #resume()} is called.
+	 */
+	synchronized void pause() {
+		paused = true;
+	}
+
+	synchronized void resume() {
+		paused = false;
+		notifyAll();
+	}
+
+	/**
+	 * Aborts the upload in progress, or the next one if called before it has started, until {@link #reset()} is called.
+	 */
+	synchronized void abort() {
+		paused = false;
+		aborted = true;
+		notifyAll();
+	}
+
+	/**
+	 * Clears the paused and aborted flags before the next DFU process.
+	 */
+	synchronized void reset() {
+		paused = aborted = false;
+	}
+
+	/**
+	 * Terminates the upload with the given error, f.e. when a GATT operation has failed.
+	 *
+	 * @param error the error number
+	 */
+	synchronized void onError(final int error) {
+		if (this.error == 0)
+			this.error = error;
+		paused = false;
+		notifyAll();
+	}
+
+	@Override
+	public void onControlPointWritten() {
+		// The DFU Control Point is not written during the upload
+	}
+
+	@Override
+	public void onPacketWritten(final int length) {
+		final int bytesSent, bytesConfirmed;
+		synchronized (this) {
+			if (!uploading)
+				return;
+			this.bytesSent += length;
+			writeInProgress = false;
+			bytesSent = this.bytesSent;
+			bytesConfirmed = this.bytesConfirmed;
+		}
+		progressListener.onProgress(bytesSent, bytesConfirmed);
+
+		// The transport is ready to take the next packet. It will be written unless the window is full, in which case it will be written after the next
+		// packet receipt notification.
+		sendNextPacket();
+	}
+
+	@Override
+	public void onNotification(final byte[] value) {
+		synchronized (this) {
+			if (!uploading)
+				return;
+			if ((value[0] & 0xFF) != OP_CODE_PACKET_RECEIPT_NOTIF) {
+				// The response to the Receive Firmware Image request, or an error reported by the target
+				if ((value[0] & 0xFF) == OP_CODE_RESPONSE_CODE && response == null)
+					response = value;
+				notifyAll();
+				return;
+			}
+			bytesConfirmed = (value[1] & 0xFF) | (value[2] & 0xFF) << 8 | (value[3] & 0xFF) << 16 | (value[4] & 0xFF) << 24;
+			prnController.onNotification(now());
+			extendDeadline();
+		}
+
+		// The window has moved, write more packets if the transport is not busy
+		sendNextPacket();
+	}
+
+	@Override
+	public synchronized void onDisconnected() {
+		connected = false;
+		paused = false;
+		notifyAll();
+	}
+
+	/**
+	 * Writes the next packet, if the transport is not busy with the previous one, the window of packets in flight is not full and the upload is neither paused
+	 * nor terminated. Blocks while the upload is paused. The waiting thread is notified if the upload has been terminated.
+	 */
+	private synchronized void sendNextPacket() {
+		try {
+			while (paused)
+				wait();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+		if (!uploading || aborted || error != 0 || response != null || !connected) {
+			notifyAll();
+			return;
+		}
+
+		if (writeInProgress || bytesSent == imageSize)
+			return;
+
+		// Back-pressure: wait for a packet receipt notification when too many packets are not confirmed yet
+		if (packetsBeforeNotification > 0) {
+			final int packetsInFlight = (bytesSent - bytesConfirmed + buffer.length - 1) / buffer.length;
+			if (packetsInFlight >= prnController.getWindow())
+				return;
+		}
+
+		try {
+			if (pendingPacketSize == 0)
+				pendingPacketSize = inputStream.read(buffer);
+			if (pendingPacketSize <= 0) {
+				pendingPacketSize = 0;
+				return;
+			}
+
+			// The state is updated before writing, as the transport may report the packet as written before this method returns
+			final int size = pendingPacketSize;
+			pendingPacketSize = 0;
+			writeInProgress = true;
+			if (transport.writePacket(buffer, size)) {
+				extendDeadline();
+			} else {
+				// The transport is busy, the packet will be written again after SEND_RETRY_INTERVAL
+				writeInProgress = false;
+				pendingPacketSize = size;
+				prnController.onPacketRejected();
+			}
+			return;
+		} catch (final HexFileValidationException e) {
+			error = DfuBaseService.ERROR_FILE_INVALID;
+		} catch (final IOException e) {
+			error = DfuBaseService.ERROR_FILE_IO_EXCEPTION;
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits until notified or until the deadline. When the deadline has passed, the upload fails with {@link DfuBaseService#ERROR_TIMEOUT}.
+	 * Must be called while holding the lock of this object.
+	 */
+	private void await(final long maxWait) throws InterruptedException {
+		if (paused) {
+			wait(maxWait);
+			// The time of the pause is not counted
+			extendDeadline();
+			return;
+		}
+		if (deadline == 0) {
+			wait(maxWait);
+			return;
+		}
+		final long remaining = deadline - now();
+		if (remaining <= 0) {
+			if (error == 0)
+				error = DfuBaseService.ERROR_TIMEOUT;
+			return;
+		}
+		wait(Math.min(maxWait, remaining));
+	}
+
+	private void extendDeadline() {
+		deadline = timeout > 0 ? now() + timeout : 0;
+	}
+
+	/**
+	 * Returns the time in milliseconds from a monotonic clock.
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+}
@@ -0,0 +1,139 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Remembers the GATT database layout of the DFU bootloader of the devices updated before: the services and characteristics with their handles.
+ * The layout is stored for the device address and the firmware revision read from the Device Information service, so that a new firmware revision
+ * makes the stored layout obsolete.
+ * <p>
+ * Android does not allow to give the services to a {@link BluetoothGatt}, they are always obtained with {@link BluetoothGatt#discoverServices()}. However,
+ * when the layout is known, the service does not have to clear the Android GATT cache before discovering: the discovered services are compared with the
+ * stored layout instead, and the cache is refreshed only if they differ.
+ * </p>
+ * <p>
+ * The layout is stored by the service thread and removed by the thread delivering the Service Changed indication, and services updating several devices
+ * at the same time share the same preferences. The writes are serialised on the preferences object, the same instance for all services of the application,
+ * so they are applied one after another in the order of the calls.
+ * </p>
+ */
+class GattLayoutCache {
+	private static final String PREFERENCES = "no.nordicsemi.android.dfu.gatt_layout";
+	private static final String KEY_BOOTLOADER = "_dfu";
+
+	private final SharedPreferences preferences;
+
+	GattLayoutCache(final Context context) {
+		this(context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE));
+	}
+
+	/**
+	 * @param preferences the preferences keeping the layouts
+	 */
+	GattLayoutCache(final SharedPreferences preferences) {
+		this.preferences = preferences;
+	}
+
+	/**
+	 * Returns <code>true</code> if the bootloader layout of the device is known for this firmware revision.
+	 */
+	boolean contains(final String address, final String firmwareRevision) {
+		final String value = preferences.getString(address + KEY_BOOTLOADER, null);
+		return value != null && value.startsWith(getPrefix(firmwareRevision));
+	}
+
+	/**
+	 * Returns <code>true</code> if the services discovered on the given connection are equal to the stored bootloader layout.
+	 */
+	boolean matches(final String address, final String firmwareRevision, final BluetoothGatt gatt) {
+		final String value = preferences.getString(address + KEY_BOOTLOADER, null);
+		return value != null && value.equals(getPrefix(firmwareRevision) + getLayout(gatt));
+	}
+
+	/**
+	 * Stores the services discovered on the given connection to the DFU bootloader.
+	 */
+	void put(final String address, final String firmwareRevision, final BluetoothGatt gatt) {
+		final String layout = getPrefix(firmwareRevision) + getLayout(gatt);
+		synchronized (preferences) {
+			preferences.edit().putString(address + KEY_BOOTLOADER, layout).apply();
+		}
+	}
+
+	/**
+	 * Removes the layout of the device, f.e. after a Service Changed indication.
+	 */
+	void invalidate(final String address) {
+		synchronized (preferences) {
+			preferences.edit().remove(address + KEY_BOOTLOADER).apply();
+		}
+	}
+
+	/**
+	 * Removes the layout of the device if the characteristic is the Service Changed characteristic, which is indicated when the services have changed.
+	 *
+	 * @param address        the address of the device that has sent the notification or indication
+	 * @param characteristic the characteristic with the new value
+	 * @return <code>true</code> if it was a Service Changed indication, <code>false</code> if the characteristic should be handled by the caller
+	 */
+	boolean onCharacteristicChanged(final String address, final BluetoothGattCharacteristic characteristic) {
+		if (!DfuBaseService.SERVICE_CHANGED_UUID.equals(characteristic.getUuid()))
+			return false;
+		invalidate(address);
+		return true;
+	}
+
+	private static String getPrefix(final String firmwareRevision) {
+		return (firmwareRevision != null ? firmwareRevision : "") + "\n";
+	}
+
+	/**
+	 * Returns the layout as a sorted list of services and characteristics with their handles (instance IDs).
+	 */
+	private static String getLayout(final BluetoothGatt gatt) {
+		final List<String> entries = new ArrayList<>();
+		for (final BluetoothGattService service : gatt.getServices()) {
+			final StringBuilder builder = new StringBuilder();
+			builder.append(service.getUuid()).append('@').append(service.getInstanceId());
+			for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics())
+				builder.append(' ').append(characteristic.getUuid()).append('@').append(characteristic.getInstanceId());
+			entries.add(builder.toString());
+		}
+		Collections.sort(entries);
+
+		final StringBuilder layout = new StringBuilder();
+		for (final String entry : entries)
+			layout.append(entry).append(';');
+		return layout.toString();
+	}
+}
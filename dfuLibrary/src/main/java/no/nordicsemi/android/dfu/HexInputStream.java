@@ -24,11 +24,16 @@ package no.nordicsemi.android.dfu;
 
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import no.nordicsemi.android.dfu.exception.HexFileValidationException;
 
@@ -39,32 +44,132 @@ import no.nordicsemi.android.dfu.exception.HexFileValidationException;
  * In nRF51 chips memory a SoftDevice starts at address 0x1000. From 0x0000 to 0x1000 there is MBR sector (since SoftDevice 7.0.0) which should not be transmitted using DFU. Therefore this class skips
  * all data from addresses below 0x1000.
  * </p>
+ * <p>
+ * The HEX file is parsed exactly once, in the constructor. The BIN content is decoded into a compact buffer and a {@link Region} is created for every contiguous
+ * run of addresses, so neither {@link #sizeInBytes()} nor {@link #readPacket(byte[])} has to go back to the source stream.
+ * </p>
+ * <p>
+ * The HEX file may contain gaps and jumps to other addresses (extended linear or segment address records), and the records do not have to be sorted.
+ * All data records in range are taken and placed at their addresses: the BIN content starts at the lowest address taken and the gaps between regions are filled
+ * with 0xFF, the value of erased flash, so the content may be written sequentially. {@link #getRegions()} returns the runs of real data, without the padding.
+ * Data located at addresses above {@link #FLASH_END} (UICR and FICR registers) is never taken as it can not be written using DFU.
+ * </p>
+ * <p>
+ * Universal HEX files, containing firmware for more than one board, are also supported. Such file consists of blocks starting with a Block Start record (0x0A)
+ * with the board ID and ending with a Block End record (0x0B). Only blocks of the first board from {@link #BOARD_IDS} found in the file are taken, records
+ * of other blocks are skipped without decoding their data. Custom Data records (0x0D) are treated as data records.
+ * </p>
+ * <p>
+ * The source is read in {@link #CHUNK_SIZE} byte chunks and whole records are converted using the {@link #HEX_DIGITS} lookup table. Both upper and lower case
+ * HEX digits are accepted, any other character in a record results in a {@link HexFileValidationException}. So does a wrong checksum of a record that is
+ * taken. Data records outside of the range and records of skipped blocks are not decoded, so their checksums are not verified.
+ * </p>
+ * <p>
+ * Local files should be given as a {@link ByteBuffer}, f.e. a {@link java.nio.MappedByteBuffer} of the file. The records are then read directly from the buffer
+ * and only the decoded BIN content is kept on the heap.
+ * </p>
  */
 public class HexInputStream extends FilterInputStream {
-	private final int LINE_LENGTH = 128;
+	private static final int CHUNK_SIZE = 8192;
+	/** The longest possible record: ':' followed by length, address, type, 255 data bytes and the checksum, 2 HEX characters each. */
+	private static final int LINE_LENGTH = 1 + 2 * (1 + 2 + 1 + 255 + 1);
+	/** Number of bytes in a record before the data: length, address (2 bytes) and type. */
+	private static final int RECORD_HEADER_SIZE = 4;
+	/** The end of the code memory. UICR registers start at 0x10001000. */
+	private static final int FLASH_END = 0x10000000;
+	/** Board IDs with nRF51 based firmware, in universal HEX files: Calliope mini and micro:bit v1.x. */
+	private static final int[] BOARD_IDS = { 0x12A0, 0x9900, 0x9901 };
+	/** The value of erased flash, used to fill the gaps between regions. */
+	private static final byte PADDING = (byte) 0xFF;
+
+	private static final Comparator<Region> BY_ADDRESS = new Comparator<Region>() {
+		@Override
+		public int compare(final Region lhs, final Region rhs) {
+			return lhs.address < rhs.address ? -1 : (lhs.address == rhs.address ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Maps an ASCII character to the value of the HEX digit, or -1 if the character is not a HEX digit.
+	 */
+	private static final byte[] HEX_DIGITS = new byte[256];
+
+	static {
+		Arrays.fill(HEX_DIGITS, (byte) -1);
+		for (int i = 0; i < 10; ++i)
+			HEX_DIGITS['0' + i] = (byte) i;
+		for (int i = 0; i < 6; ++i) {
+			HEX_DIGITS['A' + i] = (byte) (10 + i);
+			HEX_DIGITS['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	/**
+	 * A contiguous run of data from the HEX file. The bytes of the region are stored in the BIN content starting at {@link #getOffset()}.
+	 * Regions are immutable, regions joined while parsing are replaced with new ones.
+	 */
+	public static final class Region {
+		/** The absolute address of the first byte of the region. */
+		private final int address;
+		/** The offset of the first byte of the region in the BIN content. */
+		private final int offset;
+		/** Number of bytes in the region. */
+		private final int length;
+
+		private Region(final int address, final int offset, final int length) {
+			this.address = address;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * Returns the address of the first byte of the region on the device.
+		 * @return the start address
+		 */
+		public int getAddress() {
+			return address;
+		}
+
+		/**
+		 * Returns the offset of the first byte of the region in the BIN content returned by {@link #readPacket(byte[])}.
+		 * @return the offset in bytes
+		 */
+		public int getOffset() {
+			return offset;
+		}
 
-	private final byte[] localBuf;
-	private int localPos;
-	private int pos;
-	private int size;
-	private int lastAddress;
+		/**
+		 * Returns the number of bytes in the region.
+		 * @return the region size in bytes
+		 */
+		public int getLength() {
+			return length;
+		}
+	}
+
+	private final List<Region> regions;
+	private ByteBuffer source;
+	private final byte[] chunk = new byte[CHUNK_SIZE];
+	private int chunkPos, chunkLength;
+	private final byte[] line = new byte[LINE_LENGTH];
+	private final byte[] header = new byte[RECORD_HEADER_SIZE];
+	/** The data of the last record other than a data record. */
+	private final byte[] record = new byte[255];
+	private byte[] data;
 	private int available, bytesRead;
 	private final int MBRSize;
 
 
     protected HexInputStream(final InputStream in) throws HexFileValidationException, IOException {
-        super(new BufferedInputStream(in));
-        this.localBuf = new byte[LINE_LENGTH];
-        this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-        this.size = localBuf.length;
-        this.lastAddress = 0;
+        super(in);
+        this.regions = new ArrayList<>();
         this.MBRSize = -1;
-        this.available = calculateBinSizeAlternative();
-        Log.d("HexInputStrem", "calculateBinSizeAlternative = " + this.available/1024 + "Kb");
+        this.available = parse();
+        Log.d("HexInputStrem", "calculateBinSizeAlternative = " + this.available/1024 + "Kb in " + regions.size() + " region(s)");
     }
 
     /**
-     * Creates the HEX Input Stream. The constructor calculates the size of the BIN content which is available through {@link #sizeInBytes()}. If HEX file is invalid then the bin size is 0.
+     * Creates the HEX Input Stream. The constructor parses the whole HEX file and calculates the size of the BIN content which is available through {@link #sizeInBytes()}.
      *
      * @param in
      *            the input stream to read from
@@ -76,174 +181,351 @@ public class HexInputStream extends FilterInputStream {
      *             if the stream is closed or another IOException occurs.
      */
     protected HexInputStream(final InputStream in, final int mbrSize) throws HexFileValidationException, IOException {
-        super(new BufferedInputStream(in));
-        this.localBuf = new byte[LINE_LENGTH];
-        this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-        this.size = localBuf.length;
-        this.lastAddress = 0;
+        super(in);
+        this.regions = new ArrayList<>();
         this.MBRSize = mbrSize;
-
-        this.available = calculateBinSize(mbrSize);
-        Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb");
+        this.available = parse();
+        Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb in " + regions.size() + " region(s)");
     }
 
 	protected HexInputStream(final byte[] data, final int mbrSize) throws HexFileValidationException, IOException {
-		super(new ByteArrayInputStream(data));
-		this.localBuf = new byte[LINE_LENGTH];
-		this.localPos = LINE_LENGTH; // we are at the end of the local buffer, new one must be obtained
-		this.size = localBuf.length;
-		this.lastAddress = 0;
+		this(ByteBuffer.wrap(data), mbrSize);
+	}
+
+	/**
+	 * Creates the HEX Input Stream reading from the given buffer. Only the FOTA region ({@link DfuSettingsConstants#APP_CODE_BASE_START} -
+	 * {@link DfuSettingsConstants#APP_CODE_BASE_END}) is taken.
+	 *
+	 * @param source
+	 *            the buffer with the HEX file content, f.e. a file mapped using {@link java.nio.channels.FileChannel#map}
+	 * @throws HexFileValidationException
+	 *             if HEX file is invalid. F.e. there is no semicolon (':') on the beginning of each line.
+	 * @throws java.io.IOException
+	 *             if another IOException occurs.
+	 */
+	protected HexInputStream(final ByteBuffer source) throws HexFileValidationException, IOException {
+		this(source, -1);
+	}
+
+	/**
+	 * Creates the HEX Input Stream reading from the given buffer. The buffer is read from its current position to its limit. No reference to the buffer is kept
+	 * after the constructor returns.
+	 *
+	 * @param source
+	 *            the buffer with the HEX file content, f.e. a file mapped using {@link java.nio.channels.FileChannel#map}
+	 * @param mbrSize
+	 *            The MBR (Master Boot Record) size in bytes. Data with addresses below than number will be trimmed and not transferred to DFU target.
+	 * @throws HexFileValidationException
+	 *             if HEX file is invalid. F.e. there is no semicolon (':') on the beginning of each line.
+	 * @throws java.io.IOException
+	 *             if another IOException occurs.
+	 */
+	protected HexInputStream(final ByteBuffer source, final int mbrSize) throws HexFileValidationException, IOException {
+		super(null);
+		this.regions = new ArrayList<>();
 		this.MBRSize = mbrSize;
+		this.source = source;
+		try {
+			this.available = parse();
+		} finally {
+			this.source = null;
+		}
+		Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb in " + regions.size() + " region(s)");
+	}
 
-		this.available = calculateBinSize(mbrSize);
-        Log.d("HexInputStrem", "calculateBinSize = " + this.available/1024 + "Kb");
+	/**
+	 * Returns <code>true</code> if the data at given address should be transferred. With no MBR size given (fixed address case) only the FOTA region
+	 * ({@link DfuSettingsConstants#APP_CODE_BASE_START} - {@link DfuSettingsConstants#APP_CODE_BASE_END}) is taken, otherwise everything above the MBR.
+	 */
+	private boolean isInRange(final int address) {
+		if (MBRSize == -1)
+			return address >= DfuSettingsConstants.APP_CODE_BASE_START && address < DfuSettingsConstants.APP_CODE_BASE_END;
+		// we must skip all data from below last MBR address (default 0x1000) as those are the MBR. The Soft Device starts at the end of MBR (0x1000), the app and bootloader farther more
+		return address >= MBRSize && address < FLASH_END;
 	}
 
-    private int calculateBinSizeAlternative() throws IOException {
-        int binSize = 0;
-        final InputStream in = this.in;
-        in.mark(in.available());
-
-        int b, lineSize, offset, type;
-        int lastBaseAddress = 0; // last Base Address, default 0
-        int lastAddress;
-        try {
-            b = in.read();
-            while (true) {
-                checkComma(b);
-
-                lineSize = readByte(in); // reading the length of the data in this line
-                offset = readAddress(in);// reading the offset
-                type = readByte(in); // reading the line type
-                switch (type) {
-                    case 0x01:
-                        // end of file
-                        return binSize;
-                    case 0x04: {
-                        // extended linear address record
-					/*
-					 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
-					 * We only support files where bytes are located together, no jumps are allowed. Therefore the newULBA may be only lastULBA + 1 (or any, if this is the first line of the HEX)
-					 */
-                        final int newULBA = readAddress(in);
-                        if (binSize > 0 && newULBA != (lastBaseAddress >> 16) + 1)
-                            return binSize;
-                        lastBaseAddress = newULBA << 16;
-						skip(in, 2 /* check sum */);
-                        break;
-                    }
-                    case 0x02: {
-                        // extended segment address record
-                        final int newSBA = readAddress(in) << 4;
-                        if (binSize > 0 && (newSBA >> 16) != (lastBaseAddress >> 16) + 1)
-                            return binSize;
-                        lastBaseAddress = newSBA;
-                        skip(in, 2 /* check sum */);
-                        break;
-                    }
-                    case 0x00:
-                        // data type line
-                        lastAddress = lastBaseAddress + offset;
-                        if (lastAddress >= DfuSettingsConstants.APP_CODE_BASE_START && lastAddress < DfuSettingsConstants.APP_CODE_BASE_END)
-                        {
-                            //Log.d("HexInputStrem", "Found FOTA Start address");
-                            binSize += lineSize;
-                        }
-                        // no break!
-                    default:
-                        skip(in, lineSize * 2 /* 2 hex per one byte */+ 2 /* check sum */);
-                        break;
-                }
-                // skip end of line
-                while (true) {
-                    b = in.read();
-
-                    if (b != '\n' && b != '\r') {
-                        break;
-                    }
-                }
-            }
-        } finally {
-            in.reset();
-        }
-    }
+	/**
+	 * Reads the whole HEX file in a single pass. Data records are decoded into {@link #data} and the {@link #regions} are updated.
+	 * Finally, the regions are placed at their addresses, see {@link #fillGaps(int)}.
+	 *
+	 * @return the size of the BIN content in bytes
+	 * @throws java.io.IOException
+	 *             if this stream is closed or another IOException occurs.
+	 */
+	private int parse() throws IOException {
+		final byte[] line = this.line;
+		final byte[] header = this.header;
+		data = new byte[4096];
 
-    private int calculateBinSize(final int mbrSize) throws IOException {
 		int binSize = 0;
-		final InputStream in = this.in;
-		in.mark(in.available());
+		int length, lineSize, offset, type;
+		int lastBaseAddress = 0; // last Base Address, default 0
+		boolean universal = false; // true if Block Start record was found
+		int boardId = -1; // the board ID of taken blocks in universal HEX file
+		boolean skipBlock = false; // true if the current block is for other board
 
-		int b, lineSize, offset, type;
-		int lastBaseAddress = 0; // last Base Address, default 0 
-		int lastAddress;
-		try {
-			b = in.read();
-			while (true) {
-				checkComma(b);
-
-				lineSize = readByte(in); // reading the length of the data in this line
-				offset = readAddress(in);// reading the offset
-				type = readByte(in); // reading the line type
-				switch (type) {
-				case 0x01:
-					// end of file
-					return binSize;
-				case 0x04: {
-					// extended linear address record
-					/*
-					 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
-					 * We only support files where bytes are located together, no jumps are allowed. Therefore the newULBA may be only lastULBA + 1 (or any, if this is the first line of the HEX)
-					 */
-					final int newULBA = readAddress(in);
-					if (binSize > 0 && newULBA != (lastBaseAddress >> 16) + 1)
-						return binSize;
-					lastBaseAddress = newULBA << 16;
-					skip(in, 2 /* check sum */);
-					break;
-				}
-				case 0x02: {
-					// extended segment address record
-					final int newSBA = readAddress(in) << 4;
-					if (binSize > 0 && (newSBA >> 16) != (lastBaseAddress >> 16) + 1)
-						return binSize;
-					lastBaseAddress = newSBA;
-					skip(in, 2 /* check sum */);
-					break;
-				}
-				case 0x00:
-					// data type line
- 					lastAddress = lastBaseAddress + offset;
-					if (lastAddress >= mbrSize) // we must skip all data from below last MBR address (default 0x1000) as those are the MBR. The Soft Device starts at the end of MBR (0x1000), the app and bootloader farther more
-						binSize += lineSize;
-					// no break!
-				default:
-					skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-					break;
-				}
-				// skip end of line
-				while (true) {
-					b = in.read();
+		while (true) {
+			/*
+			 * Each line starts with comma (':')
+			 * Data is written in HEX, so each 2 ASCII letters give one byte.
+			 * After the comma there is one byte (2 HEX signs) with line length (normally 10 -> 0x10 -> 16 bytes -> 32 HEX characters)
+			 * After that there is a 4 byte of an address. This part may be skipped.
+			 * There is a packet type after the address (1 byte = 2 HEX characters). 00 is the valid data. Other values can be skipped when
+			 * converting to BIN file.
+			 * Then goes n bytes of data followed by 1 byte (2 HEX chars) of checksum, which is also skipped in BIN file.
+			 */
+			length = readLine();
+			checkComma(length > 0 ? line[0] : -1); // checking the comma at the beginning
+			if (length < 1 + 2 * (RECORD_HEADER_SIZE + 1))
+				throw new HexFileValidationException("Invalid HEX record");
+			decode(line, 1, header, 0, RECORD_HEADER_SIZE);
+			lineSize = header[0] & 0xFF; // the length of the data in this line
+			offset = (header[1] & 0xFF) << 8 | (header[2] & 0xFF); // the offset
+			type = header[3] & 0xFF; // the line type
+			if (length < 1 + 2 * (RECORD_HEADER_SIZE + lineSize + 1))
+				throw new HexFileValidationException("Invalid HEX record");
+
+			// Records of blocks for other boards are skipped until the block end
+			if (skipBlock && type != 0x01 && type != 0x0A && type != 0x0B)
+				continue;
+
+			if (type != 0x00 && type != 0x0D) {
+				decode(line, 1 + 2 * RECORD_HEADER_SIZE, record, 0, lineSize);
+				checkChecksum(line, record, 0, lineSize);
+			}
 
-					if (b != '\n' && b != '\r') {
-						break;
-					}
+			switch (type) {
+			case 0x01:
+				// end of file
+				if (universal && boardId == -1)
+					throw new HexFileValidationException("The universal HEX file does not contain firmware for this board");
+				return fillGaps(binSize);
+			case 0x0A: {
+				// block start record, the data begins with the board ID
+				final int id = readAddress();
+				universal = true;
+				if (boardId == -1 && isSupportedBoard(id))
+					boardId = id;
+				skipBlock = id != boardId;
+				break;
+			}
+			case 0x0B:
+				// block end record
+				skipBlock = false;
+				break;
+			case 0x04: {
+				// extended linear address record
+				/*
+				 * The HEX file may contain jump to different addresses. The MSB of LBA (Linear Base Address) is given using the line type 4.
+				 * A jump starts a new region, unless the data continue directly after the last one.
+				 */
+				lastBaseAddress = readAddress() << 16;
+				break;
+			}
+			case 0x02: {
+				// extended segment address record
+				lastBaseAddress = readAddress() << 4;
+				break;
+			}
+			case 0x00:
+			case 0x0D: {
+				// data type line or custom data line in universal HEX
+				final int address = lastBaseAddress + offset;
+				if (isInRange(address)) {
+					ensureCapacity(binSize + lineSize);
+					decode(line, 1 + 2 * RECORD_HEADER_SIZE, data, binSize, lineSize);
+					checkChecksum(line, data, binSize, lineSize);
+					addRegion(address, binSize, lineSize);
+					binSize += lineSize;
 				}
+				break;
+			}
+			default:
+				// other records are skipped
+				break;
 			}
-		} finally {
-			in.reset();
 		}
 	}
 
-    private long skip(final InputStream in, final long offset) throws IOException {
-        long skipped = in.skip(offset);
-		int attempts = 10;
-        // try to skip 10 times as skip(..) method does not guarantee to skip exactly given number of bytes
-        while (skipped < offset && attempts > 0) {
-			skipped += in.skip(offset - skipped);
-			attempts--;
+	private static boolean isSupportedBoard(final int id) {
+		for (final int boardId : BOARD_IDS)
+			if (boardId == id)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads the next non-empty line from the source into {@link #line}. End of line characters are not copied.
+	 *
+	 * @return the number of characters in the line or 0 if the end of the stream has been reached
+	 * @throws java.io.IOException
+	 *             if this stream is closed or another IOException occurs.
+	 */
+	private int readLine() throws IOException {
+		final byte[] chunk = this.chunk;
+		// skip end of line
+		while (true) {
+			if (chunkPos == chunkLength && !fillChunk())
+				return 0;
+			final byte b = chunk[chunkPos];
+			if (b != '\n' && b != '\r')
+				break;
+			chunkPos++;
 		}
-        return skipped;
-    }
+
+		int length = 0;
+		while (chunkPos < chunkLength || fillChunk()) {
+			final int start = chunkPos;
+			final int end = chunkLength;
+			int pos = start;
+			while (pos < end && chunk[pos] != '\n' && chunk[pos] != '\r')
+				pos++;
+
+			final int count = pos - start;
+			if (length + count > LINE_LENGTH)
+				throw new HexFileValidationException("HEX record too long");
+			System.arraycopy(chunk, start, line, length, count);
+			length += count;
+			chunkPos = pos;
+			if (pos < end)
+				break; // end of line found
+		}
+		return length;
+	}
+
+	private boolean fillChunk() throws IOException {
+		final int count;
+		if (source != null) {
+			count = Math.min(CHUNK_SIZE, source.remaining());
+			source.get(chunk, 0, count);
+		} else {
+			count = in.read(chunk, 0, CHUNK_SIZE);
+		}
+		chunkPos = 0;
+		chunkLength = Math.max(count, 0);
+		return count > 0;
+	}
+
+	/**
+	 * Converts <code>count</code> bytes written as HEX digits (2 characters per byte) into binary.
+	 *
+	 * @param src
+	 *            the ASCII characters
+	 * @param srcOffset
+	 *            the index of the first character to decode
+	 * @param dst
+	 *            the destination buffer
+	 * @param dstOffset
+	 *            the index in the destination buffer where the first byte will be written
+	 * @param count
+	 *            the number of bytes to decode
+	 * @throws HexFileValidationException
+	 *             if one of the characters is not a HEX digit
+	 */
+	static void decode(final byte[] src, final int srcOffset, final byte[] dst, final int dstOffset, final int count) throws HexFileValidationException {
+		final byte[] digits = HEX_DIGITS;
+		for (int i = 0, s = srcOffset; i < count; ++i, s += 2) {
+			final int high = digits[src[s] & 0xFF];
+			final int low = digits[src[s + 1] & 0xFF];
+			if ((high | low) < 0)
+				throw new HexFileValidationException("Invalid HEX character");
+			dst[dstOffset + i] = (byte) (high << 4 | low);
+		}
+	}
+
+	/**
+	 * Verifies the checksum of the record in {@link #line}. The sum of all bytes of the record, including the checksum, must be 0 modulo 256.
+	 *
+	 * @param line
+	 *            the record
+	 * @param recordData
+	 *            the buffer with already decoded data of the record
+	 * @param dataOffset
+	 *            the index of the first data byte in the buffer
+	 * @param count
+	 *            the number of data bytes
+	 * @throws HexFileValidationException
+	 *             if the checksum is wrong
+	 */
+	private void checkChecksum(final byte[] line, final byte[] recordData, final int dataOffset, final int count) throws HexFileValidationException {
+		final byte[] header = this.header;
+		int sum = header[0] + header[1] + header[2] + header[3];
+		for (int i = dataOffset, end = dataOffset + count; i < end; ++i)
+			sum += recordData[i];
+		final int position = 1 + 2 * (RECORD_HEADER_SIZE + count);
+		final int high = HEX_DIGITS[line[position] & 0xFF];
+		final int low = HEX_DIGITS[line[position + 1] & 0xFF];
+		if ((high | low) < 0)
+			throw new HexFileValidationException("Invalid HEX character");
+		if (((sum + (high << 4 | low)) & 0xFF) != 0)
+			throw new HexFileValidationException("Invalid HEX record checksum");
+	}
+
+	/**
+	 * Returns the 2-byte value from the data part of the last address record, decoded into {@link #record}.
+	 */
+	private int readAddress() {
+		return (record[0] & 0xFF) << 8 | (record[1] & 0xFF);
+	}
+
+	private void addRegion(final int address, final int offset, final int length) {
+		if (!regions.isEmpty()) {
+			final Region last = regions.get(regions.size() - 1);
+			if (last.address + last.length == address) {
+				regions.set(regions.size() - 1, new Region(last.address, last.offset, last.length + length));
+				return;
+			}
+		}
+		regions.add(new Region(address, offset, length));
+	}
+
+	/**
+	 * Places the regions, decoded in the order of records in the file, at their addresses. The content starts at the address of the first region and the gaps
+	 * between regions are filled with {@link #PADDING}. Where records overlap, the one found later in the file wins. Regions that touch or overlap are joined.
+	 *
+	 * @param binSize
+	 *            number of bytes decoded
+	 * @return the size of the BIN content in bytes
+	 */
+	private int fillGaps(final int binSize) {
+		if (regions.size() < 2)
+			return binSize;
+
+		final List<Region> fileOrder = new ArrayList<>(regions);
+		Collections.sort(regions, BY_ADDRESS);
+		final int base = regions.get(0).address;
+		int end = base;
+		for (final Region region : regions)
+			end = Math.max(end, region.address + region.length);
+
+		final byte[] image = new byte[end - base];
+		Arrays.fill(image, PADDING);
+		for (final Region region : fileOrder)
+			System.arraycopy(data, region.offset, image, region.address - base, region.length);
+
+		final List<Region> sorted = new ArrayList<>(regions);
+		regions.clear();
+		int start = base;
+		int stop = base;
+		for (final Region region : sorted) {
+			if (region.address > stop) {
+				regions.add(new Region(start, start - base, stop - start));
+				start = region.address;
+			}
+			stop = Math.max(stop, region.address + region.length);
+		}
+		regions.add(new Region(start, start - base, stop - start));
+		data = image;
+		return image.length;
+	}
+
+	private void ensureCapacity(final int capacity) {
+		if (capacity <= data.length)
+			return;
+		final byte[] newData = new byte[Math.max(capacity, data.length * 2)];
+		System.arraycopy(data, 0, newData, 0, data.length);
+		data = newData;
+	}
 
 	@Override
 	public int available() {
@@ -257,18 +539,10 @@ public class HexInputStream extends FilterInputStream {
 	 * @throws java.io.IOException
 	 */
 	public int readPacket(byte[] buffer) throws HexFileValidationException, IOException {
-		int i = 0;
-		while (i < buffer.length) {
-			if (localPos < size) {
-				buffer[i++] = localBuf[localPos++];
-				continue;
-			}
-
-			bytesRead += size = readLine();
-			if (size == 0)
-				break; // end of file reached
-		}
-		return i;
+		final int size = Math.min(buffer.length, available - bytesRead);
+		System.arraycopy(data, bytesRead, buffer, 0, size);
+		bytesRead += size;
+		return size;
 	}
 
 	@Override
@@ -286,6 +560,28 @@ public class HexInputStream extends FilterInputStream {
 		throw new UnsupportedOperationException("Please, use readPacket() method instead");
 	}
 
+	/**
+	 * Writes the whole BIN content to the given stream. The current position of this stream is not changed.
+	 *
+	 * @param out
+	 *            the output stream
+	 * @throws java.io.IOException
+	 *             if an IOException occurs while writing.
+	 */
+	void writeTo(final OutputStream out) throws IOException {
+		out.write(data, 0, available);
+	}
+
+	/**
+	 * Returns the decoded BIN content as an immutable image. The content is not copied, the image and this stream share the buffer, which is never modified
+	 * after the HEX file has been parsed.
+	 *
+	 * @return the image
+	 */
+	FirmwareImage toImage() {
+		return new FirmwareImage(data, available, getRegions());
+	}
+
 	/**
 	 * Returns the total number of bytes.
 	 * 
@@ -310,141 +606,36 @@ public class HexInputStream extends FilterInputStream {
 	}
 
 	/**
-	 * Reads new line from the input stream. Input stream must be a HEX file. The first line is always skipped.
-	 * 
-	 * @return the number of data bytes in the new line. 0 if end of file.
-	 * @throws java.io.IOException
-	 *             if this stream is closed or another IOException occurs.
+	 * Returns the contiguous runs of data, sorted by address. The BIN content contains also the padding between them, so the sum of their lengths is equal to
+	 * {@link #sizeInBytes()} only if there are no gaps.
+	 *
+	 * @return the list of regions
 	 */
-	private int readLine() throws IOException {
-		// end of file reached
-		if (pos == -1)
-			return 0;
-		final InputStream in = this.in;
-
-		// temporary value
-		int b;
-
-		int lineSize, type, offset;
-		do {
-			// skip end of line
-			while (true) {
-				b = in.read();
-				pos++;
-
-				if (b != '\n' && b != '\r') {
-					break;
-				}
-			}
-
-			/*
-			 * Each line starts with comma (':')
-			 * Data is written in HEX, so each 2 ASCII letters give one byte.
-			 * After the comma there is one byte (2 HEX signs) with line length (normally 10 -> 0x10 -> 16 bytes -> 32 HEX characters)
-			 * After that there is a 4 byte of an address. This part may be skipped.
-			 * There is a packet type after the address (1 byte = 2 HEX characters). 00 is the valid data. Other values can be skipped when
-			 * converting to BIN file.
-			 * Then goes n bytes of data followed by 1 byte (2 HEX chars) of checksum, which is also skipped in BIN file.
-			 */
-			checkComma(b); // checking the comma at the beginning
-			lineSize = readByte(in); // reading the length of the data in this line
-			pos += 2;
-			offset = readAddress(in);// reading the offset
-			pos += 4;
-			type = readByte(in); // reading the line type
-			pos += 2;
-
-			// if the line type is no longer data type (0x00), we've reached the end of the file
-			switch (type) {
-			case 0x00:
-				// data type
-                if (MBRSize == -1){ //This is for fixed address case
-                    int fullAddress = lastAddress + offset ;
-                    if (fullAddress < DfuSettingsConstants.APP_CODE_BASE_START || fullAddress >= DfuSettingsConstants.APP_CODE_BASE_END){ //Skip Non Fota
-                        type = -1; // some other than 0
-                        pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-                    }
-
-                } else {
-                    if (lastAddress + offset < MBRSize) { // skip MBR
-                        type = -1; // some other than 0
-                        pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-                    }
-                }
-				break;
-			case 0x01:
-				// end of file
-				pos = -1;
-				return 0;
-			case 0x02: {
-				// extended segment address
-				final int address = readAddress(in) << 4;
-				pos += 4;
-				if (bytesRead > 0 && (address >> 16) != (lastAddress >> 16) + 1)
-					return 0;
-				lastAddress = address;
-				pos += skip(in, 2 /* check sum */);
-				break;
-			}
-			case 0x04: {
-				// extended linear address
-				final int address = readAddress(in);
-				pos += 4;
-				if (bytesRead > 0 && address != (lastAddress >> 16) + 1)
-					return 0;
-				lastAddress = address << 16;
-				pos += skip(in, 2 /* check sum */);
-				break;
-			}
-			default:
-				pos += skip(in, lineSize * 2 /* 2 hex per one byte */ + 2 /* check sum */);
-				break;
-			}
-		} while (type != 0);
+	public List<Region> getRegions() {
+		return Collections.unmodifiableList(regions);
+	}
 
-		// otherwise read lineSize bytes or fill the whole buffer
-		for (int i = 0; i < localBuf.length && i < lineSize; ++i) {
-			b = readByte(in);
-			pos += 2;
-			localBuf[i] = (byte) b;
-		}
-		pos += skip(in, 2); // skip the checksum
-		localPos = 0;
+	@Override
+	public void close() throws IOException {
+		if (in != null)
+			super.close();
+	}
 
-		return lineSize;
+	@Override
+	public boolean markSupported() {
+		return false;
 	}
 
+	/**
+	 * Rewinds the stream to the beginning of the BIN content. The HEX file is not parsed again.
+	 */
 	@Override
 	public synchronized void reset() throws IOException {
-		super.reset();
-
-		pos = 0;
 		bytesRead = 0;
-		localPos = 0;
 	}
 
 	private void checkComma(final int comma) throws HexFileValidationException {
 		if (comma != ':')
 			throw new HexFileValidationException("Not a HEX file");
 	}
-
-	private int readByte(final InputStream in) throws IOException {
-		final int first = asciiToInt(in.read());
-		final int second = asciiToInt(in.read());
-
-		return first << 4 | second;
-	}
-
-	private int readAddress(final InputStream in) throws IOException {
-		return readByte(in) << 8 | readByte(in);
-	}
-
-	private int asciiToInt(final int ascii) {
-		if (ascii >= 'A')
-			return ascii - 0x37;
-
-		if (ascii >= '0')
-			return ascii - '0';
-		return -1;
-	}
 }
@@ -0,0 +1,120 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The MakeCode program found in a HEX file, used for partial flashing.
+ * <p>
+ * A HEX file built by MakeCode contains the runtime (DAL), which is the same for all programs built with the same editor version, followed by the program itself.
+ * The program starts with the 16-byte PXT magic number. The next 16 bytes contain the 8-byte hash of the runtime (the template hash) and the 8-byte hash of the program.
+ * If the template hash is equal to the hash of the DAL region reported by the Partial Flashing Service of the running firmware, only the program has to be sent.
+ * </p>
+ */
+class PartialFlashingImage {
+	/**
+	 * The PXT magic number, 708E3B92C615A841C49866C975EE5197.
+	 */
+	private static final byte[] PXT_MAGIC = { 0x70, (byte) 0x8E, 0x3B, (byte) 0x92, (byte) 0xC6, 0x15, (byte) 0xA8, 0x41, (byte) 0xC4, (byte) 0x98, 0x66, (byte) 0xC9,
+			0x75, (byte) 0xEE, 0x51, (byte) 0x97 };
+	private static final int HASH_LENGTH = 8;
+
+	private final int address;
+	private final byte[] data;
+	private final byte[] templateHash;
+	private final byte[] programHash;
+
+	private PartialFlashingImage(final int address, final byte[] data, final byte[] templateHash, final byte[] programHash) {
+		this.address = address;
+		this.data = data;
+		this.templateHash = templateHash;
+		this.programHash = programHash;
+	}
+
+	/**
+	 * Looks for the MakeCode program in the HEX file content.
+	 *
+	 * @param hex the HEX file parsed with all addresses (MBR size 0)
+	 * @return the program, or <code>null</code> if the HEX file was not built by MakeCode
+	 * @throws IOException if the content could not be read
+	 */
+	static PartialFlashingImage find(final HexInputStream hex) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(hex.sizeInBytes());
+		hex.writeTo(out);
+		final byte[] content = out.toByteArray();
+
+		for (final HexInputStream.Region region : hex.getRegions()) {
+			final int end = region.getOffset() + region.getLength();
+			// The magic number is placed at the beginning of a HEX record, at an address aligned to 16 bytes
+			final int first = region.getOffset() + ((16 - (region.getAddress() & 0x0F)) & 0x0F);
+			for (int offset = first; offset + PXT_MAGIC.length + 2 * HASH_LENGTH <= end; offset += 16) {
+				if (!matches(content, offset))
+					continue;
+
+				// The program is sent from the magic number to the end of this region
+				final int hashes = offset + PXT_MAGIC.length;
+				return new PartialFlashingImage(region.getAddress() + offset - region.getOffset(), Arrays.copyOfRange(content, offset, end),
+						Arrays.copyOfRange(content, hashes, hashes + HASH_LENGTH), Arrays.copyOfRange(content, hashes + HASH_LENGTH, hashes + 2 * HASH_LENGTH));
+			}
+		}
+		return null;
+	}
+
+	private static boolean matches(final byte[] content, final int offset) {
+		for (int i = 0; i < PXT_MAGIC.length; ++i)
+			if (content[offset + i] != PXT_MAGIC[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns the flash address of the first byte of the program (the PXT magic number).
+	 */
+	int getAddress() {
+		return address;
+	}
+
+	/**
+	 * Returns the program, starting with the PXT magic number.
+	 */
+	byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * Returns the hash of the runtime the program was built with.
+	 */
+	byte[] getTemplateHash() {
+		return templateHash;
+	}
+
+	/**
+	 * Returns the hash of the program.
+	 */
+	byte[] getProgramHash() {
+		return programHash;
+	}
+}
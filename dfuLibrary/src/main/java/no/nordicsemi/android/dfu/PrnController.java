@@ -0,0 +1,185 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+/**
+ * Chooses the Packet Receipt Notification (PRN) interval and the window of packets in flight.
+ * <p>
+ * The PRN interval can't be changed safely while the firmware is being sent, as the only GATT write allowed at a time is used by the data packets.
+ * Instead, the interval is chosen for each phone model basing on the history of previous uploads: a wider interval is tried after each successful upload
+ * as long as the transfer speed improves, the best known value is used otherwise, and the interval is halved after an upload has failed.
+ * </p>
+ * <p>
+ * During the upload the window of packets not yet confirmed by a notification is adjusted. It starts at the PRN interval and grows by one packet with each
+ * notification received on time. It shrinks when a notification comes late (more than twice the average interval) or when the Bluetooth stack rejects a packet.
+ * The window is never smaller than the PRN interval and never greater than the maximum window, which is {@link #DEFAULT_WINDOW_HEADROOM} times the PRN interval
+ * unless another one has been set explicitly.
+ * </p>
+ * This class is not thread safe, the calls must be synchronized by the caller.
+ */
+class PrnController {
+	private static final String PREFERENCES = "no.nordicsemi.android.dfu.prn_history";
+	private static final String KEY_PRN = "_prn";
+	private static final String KEY_BEST_PRN = "_best_prn";
+	private static final String KEY_BEST_SPEED = "_best_speed";
+	private static final int MIN_PRN = 4;
+	private static final int MAX_PRN = 40;
+	private static final int PRN_STEP = 5;
+	/** The maximum window, in PRN intervals, used when no maximum number of packets in flight has been set. */
+	static final int DEFAULT_WINDOW_HEADROOM = 2;
+
+	private final SharedPreferences preferences;
+	private final String model;
+
+	private int packetsBeforeNotification;
+	private int window, minWindow, maxWindow;
+	private long lastNotificationTime;
+	private long averageInterval;
+	private int lateNotifications, rejectedPackets;
+
+	PrnController(final Context context) {
+		this(context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE), Build.MANUFACTURER + " " + Build.MODEL);
+	}
+
+	/**
+	 * @param preferences the preferences keeping the history of uploads
+	 * @param model       the phone model, the history of each model is kept separately
+	 */
+	PrnController(final SharedPreferences preferences, final String model) {
+		this.preferences = preferences;
+		this.model = model;
+	}
+
+	/**
+	 * Returns the PRN interval that should be used for the next upload on this phone model.
+	 *
+	 * @param defaultValue the value to be used if there is no history
+	 * @return number of packets between notifications
+	 */
+	int getPacketsBeforeNotification(final int defaultValue) {
+		return preferences.getInt(model + KEY_PRN, defaultValue);
+	}
+
+	/**
+	 * Resets the state before an upload.
+	 *
+	 * @param packetsBeforeNotification the PRN interval sent to the DFU target, 0 if notifications are disabled
+	 * @param maxPacketsInFlight        the maximum window, at least the PRN interval. 0 for {@link #DEFAULT_WINDOW_HEADROOM} times the PRN interval.
+	 */
+	void start(final int packetsBeforeNotification, final int maxPacketsInFlight) {
+		this.packetsBeforeNotification = packetsBeforeNotification;
+		this.minWindow = packetsBeforeNotification;
+		this.maxWindow = maxPacketsInFlight > 0 ? Math.max(maxPacketsInFlight, packetsBeforeNotification) : DEFAULT_WINDOW_HEADROOM * packetsBeforeNotification;
+		this.window = minWindow;
+		this.lastNotificationTime = 0;
+		this.averageInterval = 0;
+		this.lateNotifications = this.rejectedPackets = 0;
+	}
+
+	/**
+	 * Returns the current maximum number of packets not confirmed by a notification.
+	 */
+	int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Called when a Packet Receipt Notification has been received.
+	 *
+	 * @param now the current time, in milliseconds
+	 */
+	void onNotification(final long now) {
+		if (lastNotificationTime > 0) {
+			final long interval = now - lastNotificationTime;
+			if (averageInterval > 0 && interval > 2 * averageInterval) {
+				lateNotifications++;
+				window = Math.max(minWindow, window - Math.max(1, packetsBeforeNotification / 2));
+			} else if (window < maxWindow) {
+				window++;
+			}
+			averageInterval = averageInterval == 0 ? interval : (7 * averageInterval + interval) / 8;
+		}
+		lastNotificationTime = now;
+	}
+
+	/**
+	 * Called when the Bluetooth stack rejected a packet.
+	 */
+	void onPacketRejected() {
+		rejectedPackets++;
+		window = Math.max(minWindow, window / 2);
+	}
+
+	/**
+	 * Updates the history for this phone model after an upload has finished.
+	 *
+	 * @param success  true if the whole image has been sent, false if the upload failed
+	 * @param bytes    number of bytes sent
+	 * @param duration time of the upload in milliseconds
+	 */
+	void finish(final boolean success, final int bytes, final long duration) {
+		if (packetsBeforeNotification == 0)
+			return;
+
+		final int prn = packetsBeforeNotification;
+		int bestPrn = preferences.getInt(model + KEY_BEST_PRN, prn);
+		float bestSpeed = preferences.getFloat(model + KEY_BEST_SPEED, 0.0f);
+		final int next;
+
+		if (success) {
+			final float speed = duration > 0 ? (float) bytes / duration : 0.0f;
+			if (speed > bestSpeed) {
+				// This interval is better, try a wider one next time
+				bestPrn = prn;
+				bestSpeed = speed;
+				next = Math.min(MAX_PRN, prn + PRN_STEP);
+			} else {
+				// Wider is not better, go back to the best known value. Let the best speed decay to adapt to changing conditions.
+				bestSpeed *= 0.9f;
+				next = bestPrn;
+			}
+		} else {
+			// The target or the phone could not keep up, use a narrower interval and start learning again
+			next = Math.max(MIN_PRN, Math.min(bestPrn, prn / 2));
+			bestPrn = next;
+			bestSpeed = 0.0f;
+		}
+
+		preferences.edit()
+				.putInt(model + KEY_PRN, next)
+				.putInt(model + KEY_BEST_PRN, bestPrn)
+				.putFloat(model + KEY_BEST_SPEED, bestSpeed)
+				.apply();
+	}
+
+	/**
+	 * Returns a short summary of the last upload, for the log.
+	 */
+	String getSummary() {
+		return "PRN = " + packetsBeforeNotification + ", window = " + window + " packets, late notifications: " + lateNotifications + ", rejected packets: " + rejectedPackets;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.transport;
+
+/**
+ * The link between the DFU engine and the DFU target. The Legacy DFU uses two characteristics: the DFU Control Point, written with response and sending
+ * notifications, and the DFU Packet, written without response. All methods are ASYNCHRONOUS, the results are reported to the {@link Listener}.
+ * <p>
+ * Only one write may be in progress at a time. A write method returns <code>false</code> if the transport is busy, in which case the write must be repeated
+ * after the previous one has been reported as completed.
+ * </p>
+ */
+public interface DfuTransport {
+
+	/**
+	 * Receives events from the transport. The methods are called from a thread owned by the transport.
+	 */
+	interface Listener {
+		/**
+		 * Called when the value written to the DFU Control Point has been sent.
+		 */
+		void onControlPointWritten();
+
+		/**
+		 * Called when the packet has been accepted by the transport and the next packet may be written. This does not mean that the packet has been received
+		 * by the target, use Packet Receipt Notifications to find out.
+		 */
+		void onPacketWritten(final int length);
+
+		/**
+		 * Called when a notification has been received from the DFU Control Point.
+		 *
+		 * @param value the value of the notification
+		 */
+		void onNotification(final byte[] value);
+
+		/**
+		 * Called when the link to the target has been lost.
+		 */
+		void onDisconnected();
+	}
+
+	/**
+	 * Sets the listener that will receive events from this transport.
+	 */
+	void setListener(final Listener listener);
+
+	/**
+	 * Returns the maximum number of bytes in a single packet.
+	 */
+	int getMaxPacketSize();
+
+	/**
+	 * Writes the value to the DFU Control Point characteristic.
+	 *
+	 * @param value the op code and its parameters
+	 * @return <code>true</code> if the write has been initiated, <code>false</code> if the transport is busy or disconnected
+	 */
+	boolean writeControlPoint(final byte[] value);
+
+	/**
+	 * Writes the first <code>length</code> bytes of the buffer to the DFU Packet characteristic.
+	 *
+	 * @param buffer the buffer with data, it may be reused by the caller when this method returns
+	 * @param length number of bytes to be sent, at most {@link #getMaxPacketSize()}
+	 * @return <code>true</code> if the write has been initiated, <code>false</code> if the transport is busy or disconnected
+	 */
+	boolean writePacket(final byte[] buffer, final int length);
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ * The {@link DfuTransport} using the DFU Control Point and DFU Packet characteristics of a connected {@link BluetoothGatt}.
+ * <p>
+ * The GATT events are delivered to the {@link android.bluetooth.BluetoothGattCallback} given when connecting. If a {@link DfuTransport.Listener} is set,
+ * the callback must pass them to {@link #onCharacteristicWrite(BluetoothGattCharacteristic, int)}, {@link #onCharacteristicChanged(BluetoothGattCharacteristic)}
+ * and {@link #onDisconnected()} to have them reported.
+ * </p>
+ * <p>
+ * Writing packets does not allocate memory. The characteristic value must be an array of the exact packet length, so packets shorter than the given buffer
+ * are copied to a buffer kept for that length, created the first time a packet of that length is written.
+ * </p>
+ */
+public class GattDfuTransport implements DfuTransport {
+	private final BluetoothGatt mGatt;
+	private final BluetoothGattCharacteristic mControlPointCharacteristic;
+	private final BluetoothGattCharacteristic mPacketCharacteristic;
+	private Listener mListener;
+	private int mMaxPacketSize = 20;
+	/** Buffers for packets shorter than the buffer given to {@link #writePacket(byte[], int)}, indexed by the packet length. */
+	private byte[][] mPacketBuffers = new byte[21][];
+	/** The length of the last packet written, reported in {@link DfuTransport.Listener#onPacketWritten(int)}. */
+	private int mPacketLength;
+
+	public GattDfuTransport(final BluetoothGatt gatt, final BluetoothGattCharacteristic controlPointCharacteristic, final BluetoothGattCharacteristic packetCharacteristic) {
+		mGatt = gatt;
+		mControlPointCharacteristic = controlPointCharacteristic;
+		mPacketCharacteristic = packetCharacteristic;
+	}
+
+	@Override
+	public void setListener(final Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Sets the maximum packet size. It may not be greater than the MTU negotiated with the target minus 3 bytes of the ATT header.
+	 */
+	public void setMaxPacketSize(final int maxPacketSize) {
+		mMaxPacketSize = maxPacketSize;
+		if (mPacketBuffers.length <= maxPacketSize)
+			mPacketBuffers = new byte[maxPacketSize + 1][];
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return mMaxPacketSize;
+	}
+
+	@Override
+	public boolean writeControlPoint(final byte[] value) {
+		mControlPointCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+		mControlPointCharacteristic.setValue(value);
+		return mGatt.writeCharacteristic(mControlPointCharacteristic);
+	}
+
+	@Override
+	public boolean writePacket(final byte[] buffer, final int length) {
+		byte[] value = buffer;
+		if (buffer.length != length) {
+			if (length >= mPacketBuffers.length) {
+				final byte[][] buffers = new byte[length + 1][];
+				System.arraycopy(mPacketBuffers, 0, buffers, 0, mPacketBuffers.length);
+				mPacketBuffers = buffers;
+			}
+			value = mPacketBuffers[length];
+			if (value == null)
+				value = mPacketBuffers[length] = new byte[length];
+			System.arraycopy(buffer, 0, value, 0, length);
+		}
+		mPacketLength = length;
+
+		mPacketCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+		mPacketCharacteristic.setValue(value);
+		// After writing to the device with WRITE_NO_RESPONSE property the onCharacteristicWrite callback is received immediately after writing data to a buffer.
+		// The real sending is much slower than adding to the buffer, so the number of packets not confirmed by a packet receipt notification must be limited
+		// by the caller. If the stack rejects the packet (f.e. it is still busy) false is returned and the packet should be sent again later.
+		//
+		// More info: this works fine on Nexus 5 (Android 4.4) (4.3 seconds) and on Samsung S4 (Android 4.3) (20 seconds) so this is a driver issue.
+		// Nexus 4 and 7 uses Qualcomm chip, Nexus 5 and Samsung uses Broadcom chips.
+		return mGatt.writeCharacteristic(mPacketCharacteristic);
+	}
+
+	/**
+	 * Passes the {@link android.bluetooth.BluetoothGattCallback#onCharacteristicWrite(BluetoothGatt, BluetoothGattCharacteristic, int)} event to the listener.
+	 */
+	public void onCharacteristicWrite(final BluetoothGattCharacteristic characteristic, final int status) {
+		final Listener listener = mListener;
+		if (listener == null || status != BluetoothGatt.GATT_SUCCESS)
+			return;
+
+		if (characteristic == mPacketCharacteristic)
+			listener.onPacketWritten(mPacketLength);
+		else if (characteristic == mControlPointCharacteristic)
+			listener.onControlPointWritten();
+	}
+
+	/**
+	 * Passes the {@link android.bluetooth.BluetoothGattCallback#onCharacteristicChanged(BluetoothGatt, BluetoothGattCharacteristic)} event to the listener.
+	 */
+	public void onCharacteristicChanged(final BluetoothGattCharacteristic characteristic) {
+		final Listener listener = mListener;
+		if (listener != null && characteristic == mControlPointCharacteristic)
+			listener.onNotification(characteristic.getValue());
+	}
+
+	/**
+	 * Reports the link loss to the listener.
+	 */
+	public void onDisconnected() {
+		final Listener listener = mListener;
+		if (listener != null)
+			listener.onDisconnected();
+	}
+}
@@ -0,0 +1,121 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures the time needed to open a DFU archive with {@link ArchiveInputStream}: reading the manifest.json and the required entries.
+ * Run with <code>./gradlew :dfuLibrary:testDebugUnitTest -Pbenchmark --tests '*ArchiveInputStreamBenchmark'</code>.
+ * <p>
+ * The archive is small, like the ones created by nrfutil for an application update: a manifest.json with the Init packet data, one BIN and one DAT file.
+ * A few unused entries are placed in front so that the stream has to skip them.
+ * </p>
+ */
+public class ArchiveInputStreamBenchmark {
+	private static final int WARM_UP = 2000;
+	private static final int RUNS = 5000;
+	private static final String MANIFEST = "{\n" +
+			"  \"manifest\": {\n" +
+			"    \"application\": {\n" +
+			"      \"bin_file\": \"application.bin\",\n" +
+			"      \"dat_file\": \"application.dat\",\n" +
+			"      \"init_packet_data\": {\n" +
+			"        \"application_version\": 4294967295,\n" +
+			"        \"device_revision\": 65535,\n" +
+			"        \"device_type\": 65535,\n" +
+			"        \"firmware_crc16\": 12345,\n" +
+			"        \"softdevice_req\": [ 100, 128, 135 ]\n" +
+			"      }\n" +
+			"    }\n" +
+			"  }\n" +
+			"}\n";
+
+	private byte[] zip;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		Benchmarks.assumeEnabled();
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ZipOutputStream zos = new ZipOutputStream(out);
+		for (int i = 0; i < 3; ++i)
+			put(zos, "docs/readme" + i + ".txt", HexFileBuilder.bytes(2048, i));
+		put(zos, "application.bin", HexFileBuilder.bytes(20 * 1024, 10));
+		put(zos, "application.dat", HexFileBuilder.bytes(14, 11));
+		put(zos, "manifest.json", MANIFEST.getBytes("UTF-8"));
+		zos.close();
+		zip = out.toByteArray();
+
+		file = File.createTempFile("dfu", ".zip");
+		final FileOutputStream fos = new FileOutputStream(file);
+		fos.write(zip);
+		fos.close();
+	}
+
+	@After
+	public void tearDown() {
+		if (file != null)
+			file.delete();
+	}
+
+	@Test
+	public void open() throws Exception {
+		final ArchiveInputStream archive = new ArchiveInputStream(file, 0x1000, DfuBaseService.TYPE_AUTO);
+		assertNotNull(archive.getManifest());
+		assertEquals(20 * 1024, archive.applicationImageSize());
+		archive.close();
+
+		Benchmarks.measure("ZipInputStream", 0, WARM_UP, RUNS, new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				new ArchiveInputStream(new ByteArrayInputStream(zip), 0x1000, DfuBaseService.TYPE_AUTO).close();
+			}
+		});
+		Benchmarks.measure("ZipFile", 0, WARM_UP, RUNS, new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				new ArchiveInputStream(file, 0x1000, DfuBaseService.TYPE_AUTO).close();
+			}
+		});
+	}
+
+	private static void put(final ZipOutputStream zos, final String name, final byte[] data) throws Exception {
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(data);
+		zos.closeEntry();
+	}
+}
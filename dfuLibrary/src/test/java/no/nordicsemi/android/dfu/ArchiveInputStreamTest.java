@@ -0,0 +1,105 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveInputStreamTest {
+	private static final String MANIFEST = "{ \"manifest\": { \"application\": { \"bin_file\": \"application.bin\", \"dat_file\": \"application.dat\","
+			+ " \"init_packet_data\": { \"application_version\": %s, \"device_revision\": 65535, \"device_type\": 65535,"
+			+ " \"firmware_crc16\": 12345, \"softdevice_req\": [ 100 ] } } } }";
+
+	@Test
+	public void readsManifest() throws Exception {
+		final byte[] zip = zip(String.format(MANIFEST, "4294967295"));
+
+		final ArchiveInputStream archive = new ArchiveInputStream(new ByteArrayInputStream(zip), 0x1000, DfuBaseService.TYPE_AUTO);
+		assertNotNull(archive.getManifest());
+		assertEquals(1024, archive.applicationImageSize());
+		archive.close();
+	}
+
+	@Test
+	public void rejectsManifestThatIsNotObject() throws Exception {
+		assertInvalidManifest(zip("[ \"application.bin\" ]"));
+	}
+
+	@Test
+	public void rejectsManifestWithInvalidNumber() throws Exception {
+		assertInvalidManifest(zip(String.format(MANIFEST, "\"latest\"")));
+	}
+
+	/**
+	 * Opens the archive from a stream and from a file, both must fail with an {@link IOException}.
+	 */
+	private static void assertInvalidManifest(final byte[] zip) throws Exception {
+		try {
+			new ArchiveInputStream(new ByteArrayInputStream(zip), 0x1000, DfuBaseService.TYPE_AUTO);
+			fail("Stream with invalid manifest opened");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid manifest file"));
+		}
+
+		final File file = File.createTempFile("dfu", ".zip");
+		try {
+			final FileOutputStream fos = new FileOutputStream(file);
+			fos.write(zip);
+			fos.close();
+
+			new ArchiveInputStream(file, 0x1000, DfuBaseService.TYPE_AUTO);
+			fail("File with invalid manifest opened");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid manifest file"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static byte[] zip(final String manifest) throws Exception {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ZipOutputStream zos = new ZipOutputStream(out);
+		put(zos, "manifest.json", manifest.getBytes("UTF-8"));
+		put(zos, "application.bin", HexFileBuilder.bytes(1024, 1));
+		put(zos, "application.dat", HexFileBuilder.bytes(14, 2));
+		zos.close();
+		return out.toByteArray();
+	}
+
+	private static void put(final ZipOutputStream zos, final String name, final byte[] data) throws Exception {
+		zos.putNextEntry(new ZipEntry(name));
+		zos.write(data);
+		zos.closeEntry();
+	}
+}
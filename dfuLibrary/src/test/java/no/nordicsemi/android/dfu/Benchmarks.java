@@ -0,0 +1,72 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Timing helpers for the benchmarks. Benchmarks are skipped unless the <code>dfu.benchmark</code> system property is set to <code>true</code>,
+ * see the <code>testOptions</code> in build.gradle.
+ */
+final class Benchmarks {
+	interface Task {
+		void run() throws Exception;
+	}
+
+	private Benchmarks() {
+		// empty
+	}
+
+	/**
+	 * Skips the calling test unless benchmarks are enabled.
+	 */
+	static void assumeEnabled() {
+		assumeTrue("Benchmarks are disabled, run with -Pbenchmark", Boolean.getBoolean("dfu.benchmark"));
+	}
+
+	/**
+	 * Runs the task <code>warmUp</code> times, then measures <code>runs</code> runs and prints the median and the best time.
+	 *
+	 * @param bytes number of bytes processed in a run, to print the throughput, or 0
+	 * @return the median time of a run, in nanoseconds
+	 */
+	static long measure(final String name, final int bytes, final int warmUp, final int runs, final Task task) throws Exception {
+		for (int i = 0; i < warmUp; ++i)
+			task.run();
+
+		final long[] times = new long[runs];
+		for (int i = 0; i < runs; ++i) {
+			final long start = System.nanoTime();
+			task.run();
+			times[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		final long median = times[runs / 2];
+		System.out.println(String.format(Locale.US, "%-44s median %9.1f us, best %9.1f us (%d runs)%s", name, median / 1000.0, times[0] / 1000.0, runs,
+				bytes > 0 ? String.format(Locale.US, ", %.0f MB/s", bytes * 1000.0 / median) : ""));
+		return median;
+	}
+}
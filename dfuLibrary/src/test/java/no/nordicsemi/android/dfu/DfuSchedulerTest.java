@@ -0,0 +1,230 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the {@link DfuScheduler} against the broadcasts of the services, without starting them.
+ */
+public class DfuSchedulerTest {
+	private static final String DEVICE_A = "00:00:00:00:00:0A";
+	private static final String DEVICE_B = "00:00:00:00:00:0B";
+	private static final String DEVICE_C = "00:00:00:00:00:0C";
+
+	private abstract static class FirstService extends DfuBaseService {
+	}
+
+	private abstract static class SecondService extends DfuBaseService {
+	}
+
+	private Context context;
+	private Events events;
+	private DfuScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		context = mock(Context.class);
+		when(context.getApplicationContext()).thenReturn(context);
+		events = new Events();
+		scheduler = new DfuScheduler(context, events, FirstService.class, SecondService.class);
+	}
+
+	@Test
+	public void startsSessionsUpToServiceCount() {
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		final DfuSession b = scheduler.add(intent(DEVICE_B));
+		final DfuSession c = scheduler.add(intent(DEVICE_C));
+		assertEquals(DfuSession.STATE_QUEUED, a.getState());
+
+		scheduler.start();
+
+		assertEquals(DfuSession.STATE_RUNNING, a.getState());
+		assertEquals(DfuSession.STATE_RUNNING, b.getState());
+		assertEquals(DfuSession.STATE_QUEUED, c.getState());
+		assertNotSame(a.getService(), b.getService());
+		verify(context, times(2)).startService(any(Intent.class));
+	}
+
+	@Test
+	public void limitsConcurrentSessions() {
+		scheduler.setMaxConcurrentSessions(1);
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		final DfuSession b = scheduler.add(intent(DEVICE_B));
+		scheduler.start();
+
+		assertEquals(DfuSession.STATE_RUNNING, a.getState());
+		assertEquals(DfuSession.STATE_QUEUED, b.getState());
+		verify(context, times(1)).startService(any(Intent.class));
+	}
+
+	@Test
+	public void releasesServiceWhenServiceHasFinished() {
+		scheduler.setMaxConcurrentSessions(1);
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		final DfuSession b = scheduler.add(intent(DEVICE_B));
+		scheduler.start();
+
+		scheduler.onProgress(DEVICE_A, DfuBaseService.PROGRESS_COMPLETED);
+		assertEquals(DfuSession.STATE_COMPLETED, a.getState());
+		// The service is still disconnecting from the first device
+		assertEquals(DfuSession.STATE_QUEUED, b.getState());
+
+		scheduler.onServiceFinished(DEVICE_A);
+		assertEquals(DfuSession.STATE_RUNNING, b.getState());
+		verify(context, times(2)).startService(any(Intent.class));
+	}
+
+	@Test
+	public void failsSessionWhenServiceStopsWithoutResult() {
+		scheduler.setMaxConcurrentSessions(1);
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		final DfuSession b = scheduler.add(intent(DEVICE_B));
+		scheduler.start();
+
+		scheduler.onProgress(DEVICE_A, 50);
+		scheduler.onServiceFinished(DEVICE_A);
+
+		assertEquals(DfuSession.STATE_FAILED, a.getState());
+		assertEquals(0, a.getError());
+		assertEquals(DfuSession.STATE_RUNNING, b.getState());
+	}
+
+	@Test
+	public void reportsErrors() {
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		scheduler.start();
+
+		scheduler.onError(DEVICE_A, DfuBaseService.ERROR_TIMEOUT);
+		scheduler.onServiceFinished(DEVICE_A);
+
+		assertEquals(DfuSession.STATE_FAILED, a.getState());
+		assertEquals(DfuBaseService.ERROR_TIMEOUT, a.getError());
+	}
+
+	@Test
+	public void restartsSameDeviceAfterServiceHasFinished() {
+		final DfuSession first = scheduler.add(intent(DEVICE_A));
+		scheduler.start();
+		scheduler.onError(DEVICE_A, DfuBaseService.ERROR_DEVICE_DISCONNECTED);
+
+		final DfuSession second = scheduler.add(intent(DEVICE_A));
+		// Both services are idle, but the first one is still connected to the device
+		assertEquals(DfuSession.STATE_QUEUED, second.getState());
+
+		scheduler.onServiceFinished(DEVICE_A);
+		assertEquals(DfuSession.STATE_RUNNING, second.getState());
+		assertEquals(DfuSession.STATE_FAILED, first.getState());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void rejectsDeviceBeingUpdated() {
+		scheduler.add(intent(DEVICE_A));
+		scheduler.add(intent(DEVICE_A));
+	}
+
+	@Test
+	public void reportsAggregateProgress() {
+		scheduler.add(intent(DEVICE_A));
+		scheduler.add(intent(DEVICE_B));
+		scheduler.start();
+
+		scheduler.onProgress(DEVICE_A, 40);
+		scheduler.onProgress(DEVICE_B, DfuBaseService.PROGRESS_CONNECTING);
+		scheduler.onProgress(DEVICE_B, 20);
+		scheduler.onProgress(DEVICE_A, DfuBaseService.PROGRESS_COMPLETED);
+		assertEquals(0, events.completed);
+		scheduler.onProgress(DEVICE_B, DfuBaseService.PROGRESS_ABORTED);
+
+		final List<Integer> expected = new ArrayList<>();
+		expected.add(20);
+		expected.add(30);
+		expected.add(60);
+		expected.add(100);
+		assertEquals(expected, events.progress);
+		assertEquals(2, events.finished);
+		assertEquals(1, events.completed);
+	}
+
+	@Test
+	public void abortsQueuedSessions() {
+		scheduler.setMaxConcurrentSessions(1);
+		final DfuSession a = scheduler.add(intent(DEVICE_A));
+		final DfuSession b = scheduler.add(intent(DEVICE_B));
+		scheduler.start();
+
+		scheduler.abort();
+		assertEquals(DfuSession.STATE_RUNNING, a.getState());
+		assertEquals(DfuSession.STATE_ABORTED, b.getState());
+
+		// The running service confirms the abort
+		scheduler.onProgress(DEVICE_A, DfuBaseService.PROGRESS_ABORTED);
+		scheduler.onServiceFinished(DEVICE_A);
+		assertEquals(DfuSession.STATE_ABORTED, a.getState());
+		assertEquals(DfuSession.STATE_ABORTED, b.getState());
+		assertEquals(1, events.completed);
+		verify(context, times(1)).startService(any(Intent.class));
+	}
+
+	private static Intent intent(final String deviceAddress) {
+		final Intent intent = mock(Intent.class);
+		when(intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS)).thenReturn(deviceAddress);
+		return intent;
+	}
+
+	private static class Events implements DfuScheduler.Listener {
+		private final List<Integer> progress = new ArrayList<>();
+		private int finished;
+		private int completed;
+
+		@Override
+		public void onSessionChanged(final DfuSession session) {
+			// the state of the sessions is checked directly
+		}
+
+		@Override
+		public void onProgressChanged(final int progress, final int finished, final int total) {
+			this.progress.add(progress);
+			this.finished = finished;
+		}
+
+		@Override
+		public void onCompleted() {
+			completed++;
+		}
+	}
+}
@@ -0,0 +1,533 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import no.nordicsemi.android.dfu.exception.DeviceDisconnectedException;
+import no.nordicsemi.android.dfu.exception.DfuException;
+import no.nordicsemi.android.dfu.exception.UploadAbortedException;
+import no.nordicsemi.android.dfu.transport.DfuTransport;
+import no.nordicsemi.android.dfu.transport.GattDfuTransport;
+import no.nordicsemi.android.dfu.transport.SimulatedLegacyDfuBootloader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Uploads firmware images to the {@link SimulatedLegacyDfuBootloader}.
+ */
+public class FirmwareUploaderTest {
+	private static final int PACKET_SIZE = 20;
+	private static final int TIMEOUT = 2000; // ms
+	private static final byte[] RESPONSE_SUCCESS = { 16, 3, 1 };
+
+	private SimulatedLegacyDfuBootloader bootloader;
+	private PrnController prnController;
+	private FirmwareUploader uploader;
+	private Progress progress;
+
+	@Before
+	public void setUp() {
+		bootloader = new SimulatedLegacyDfuBootloader();
+		bootloader.setLatency(5);
+		bootloader.setEraseTime(10);
+		prnController = new PrnController(new MemorySharedPreferences(), "test");
+		progress = new Progress();
+		uploader = new FirmwareUploader(prnController, TIMEOUT, progress);
+	}
+
+	@After
+	public void tearDown() {
+		bootloader.close();
+	}
+
+	@Test
+	public void uploadsWholeImage() throws Exception {
+		// The last packet is shorter
+		final byte[] image = HexFileBuilder.bytes(4010, 1);
+
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 10, 10));
+		assertEquals(image.length, uploader.getBytesSent());
+		assertEquals(image.length, progress.bytesSent);
+
+		new LegacyDfuClient(bootloader).validateAndActivate();
+		assertTrue(bootloader.isFirmwareActivated());
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void uploadsWithoutNotifications() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 2);
+
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 0, 0));
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void keepsPacketsInFlightWithinWindow() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 3);
+		final CountingTransport transport = new CountingTransport(bootloader);
+
+		// The maximum window is equal to the PRN interval, so the window can not grow
+		assertArrayEquals(RESPONSE_SUCCESS, upload(transport, image, 4, 4));
+		assertTrue("In flight: " + transport.maxBytesInFlight, transport.maxBytesInFlight <= 4 * PACKET_SIZE);
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void sendsMorePacketsWithWiderWindow() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 4);
+		final CountingTransport transport = new CountingTransport(bootloader);
+
+		// The window grows from the PRN interval with each notification received on time
+		assertArrayEquals(RESPONSE_SUCCESS, upload(transport, image, 4, 12));
+		assertTrue("In flight: " + transport.maxBytesInFlight, transport.maxBytesInFlight > 4 * PACKET_SIZE);
+		assertTrue("In flight: " + transport.maxBytesInFlight, transport.maxBytesInFlight <= 12 * PACKET_SIZE);
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void uploadsOverLossyLink() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 5);
+		bootloader.setPacketLoss(0.2f);
+		bootloader.setSeed(5);
+
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 10, 10));
+		assertTrue(bootloader.getPacketsLost() > 0);
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void uploadsAgainAfterReconnection() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 6);
+		bootloader.setDisconnectAfter(1000);
+
+		try {
+			upload(bootloader, image, 10, 10);
+			fail("Link loss not reported");
+		} catch (final DeviceDisconnectedException e) {
+			assertTrue(uploader.getBytesSent() < image.length);
+		}
+
+		// The bootloader starts from the beginning, so does the service
+		bootloader.connect();
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 10, 10));
+		new LegacyDfuClient(bootloader).validateAndActivate();
+		assertTrue(bootloader.isFirmwareActivated());
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void timesOutWhenNotificationsStop() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 7);
+		final CountingTransport transport = new CountingTransport(bootloader);
+		transport.dropNotifications = true;
+		uploader = new FirmwareUploader(prnController, 300, progress);
+
+		final long start = System.nanoTime();
+		try {
+			upload(transport, image, 10, 10);
+			fail("Timeout not reported");
+		} catch (final DfuException e) {
+			assertEquals(DfuBaseService.ERROR_TIMEOUT, e.getErrorNumber());
+			assertTrue((System.nanoTime() - start) / 1000000 >= 300);
+			assertEquals(10 * PACKET_SIZE, uploader.getBytesSent());
+		}
+	}
+
+	@Test
+	public void pauseIsNotCountedAsTimeout() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 8);
+		uploader = new FirmwareUploader(prnController, 300, progress);
+		progress.pauseAt = image.length / 2;
+
+		final long start = System.nanoTime();
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 10, 10));
+		assertTrue((System.nanoTime() - start) / 1000000 >= 600);
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	@Test
+	public void abortsUpload() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 9);
+		progress.abortAt = image.length / 2;
+
+		try {
+			upload(bootloader, image, 10, 10);
+			fail("Abort not reported");
+		} catch (final UploadAbortedException e) {
+			assertTrue(uploader.getBytesSent() < image.length);
+		}
+
+		// The flag is kept until the next DFU process
+		uploader.reset();
+		bootloader.connect();
+		progress.abortAt = Integer.MAX_VALUE;
+		assertArrayEquals(RESPONSE_SUCCESS, upload(bootloader, image, 10, 10));
+	}
+
+	@Test
+	public void returnsErrorResponse() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4000, 10);
+
+		// The target expects a smaller image, not a multiple of the packet size, and rejects the first packet exceeding it
+		final LegacyDfuClient client = new LegacyDfuClient(bootloader);
+		client.startUpload(1010, 10);
+		prnController.start(10, 10);
+		final byte[] response = uploader.upload(bootloader, new ByteArrayInputStream(image), new byte[PACKET_SIZE], image.length, 10);
+		assertArrayEquals(new byte[] { 16, 3, 4 }, response);
+		assertTrue(uploader.getBytesSent() < image.length);
+	}
+
+	@Test
+	public void uploadsThroughGattDfuTransport() throws Exception {
+		final byte[] image = HexFileBuilder.bytes(4010, 11);
+		final BluetoothGattCharacteristic controlPoint = characteristic();
+		final BluetoothGattCharacteristic packet = characteristic();
+		final BluetoothGatt gatt = mock(BluetoothGatt.class);
+		final GattDfuTransport transport = new GattDfuTransport(gatt, controlPoint, packet);
+		transport.setMaxPacketSize(PACKET_SIZE);
+
+		// The GATT writes go to the bootloader, its events come back as GATT callbacks
+		when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class))).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(final InvocationOnMock invocation) {
+				final BluetoothGattCharacteristic characteristic = invocation.getArgument(0);
+				final byte[] value = characteristic.getValue();
+				return characteristic == packet ? bootloader.writePacket(value, value.length) : bootloader.writeControlPoint(value);
+			}
+		});
+		bootloader.setListener(new DfuTransport.Listener() {
+			@Override
+			public void onControlPointWritten() {
+				transport.onCharacteristicWrite(controlPoint, BluetoothGatt.GATT_SUCCESS);
+			}
+
+			@Override
+			public void onPacketWritten(final int length) {
+				transport.onCharacteristicWrite(packet, BluetoothGatt.GATT_SUCCESS);
+			}
+
+			@Override
+			public void onNotification(final byte[] value) {
+				controlPoint.setValue(value);
+				transport.onCharacteristicChanged(controlPoint);
+			}
+
+			@Override
+			public void onDisconnected() {
+				transport.onDisconnected();
+			}
+		});
+
+		assertArrayEquals(RESPONSE_SUCCESS, upload(transport, image, 10, 10));
+		new LegacyDfuClient(transport).validateAndActivate();
+		assertTrue(bootloader.isFirmwareActivated());
+		assertArrayEquals(image, bootloader.getFirmware());
+	}
+
+	/**
+	 * Starts the DFU and uploads the image.
+	 */
+	@Test
+	public void doesNotAllocatePerPacket() throws Exception {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+		final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+
+		// The image is read from the decoded HEX file, as in the service. The last packet is shorter.
+		final byte[] hex = new HexFileBuilder().data(0x18000, HexFileBuilder.bytes(64010, 11)).endOfFile().build();
+		final FirmwareImage image = new HexInputStream(hex, 0).toImage();
+		final int packets = (image.getSize() + PACKET_SIZE - 1) / PACKET_SIZE;
+		final byte[] buffer = new byte[PACKET_SIZE];
+		final FirmwareUploader uploader = new FirmwareUploader(prnController, TIMEOUT, new FirmwareUploader.ProgressListener() {
+			@Override
+			public void onProgress(final int bytesSent, final int bytesConfirmed) {
+				// only the allocations of the uploader are measured
+			}
+		});
+		final LoopbackTransport transport = new LoopbackTransport(image.getSize(), 10);
+		transport.start();
+		try {
+			// Warm-up, so that the measured upload runs compiled code with all classes loaded
+			for (int i = 0; i < 5; ++i) {
+				prnController.start(10, 10);
+				uploader.upload(transport, image.newCursor(), buffer, image.getSize(), 10);
+			}
+
+			prnController.start(10, 10);
+			final FirmwareImage.Cursor cursor = image.newCursor();
+			final long uploaderThread = Thread.currentThread().getId();
+			final long transportThread = transport.getId();
+			final long uploaderBefore = allocations.getThreadAllocatedBytes(uploaderThread);
+			final long transportBefore = allocations.getThreadAllocatedBytes(transportThread);
+			uploader.upload(transport, cursor, buffer, image.getSize(), 10);
+			final long allocated = allocations.getThreadAllocatedBytes(uploaderThread) - uploaderBefore
+					+ allocations.getThreadAllocatedBytes(transportThread) - transportBefore;
+
+			assertEquals(image.getSize(), uploader.getBytesSent());
+			// A single allocation per packet would be at least 16 bytes, the few bytes left are allocated by the measurement itself
+			assertTrue("Allocated " + allocated + " B for " + packets + " packets", allocated < packets);
+		} finally {
+			transport.close();
+		}
+	}
+
+	private byte[] upload(final DfuTransport transport, final byte[] image, final int packetsBeforeNotification, final int maxPacketsInFlight) throws Exception {
+		new LegacyDfuClient(transport).startUpload(image.length, packetsBeforeNotification);
+		prnController.start(packetsBeforeNotification, maxPacketsInFlight);
+		return uploader.upload(transport, new ByteArrayInputStream(image), new byte[PACKET_SIZE], image.length, packetsBeforeNotification);
+	}
+
+	/**
+	 * Returns a mocked characteristic keeping its value.
+	 */
+	private static BluetoothGattCharacteristic characteristic() {
+		final BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+		final AtomicReference<byte[]> value = new AtomicReference<>();
+		when(characteristic.setValue(any(byte[].class))).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(final InvocationOnMock invocation) {
+				value.set(invocation.<byte[]>getArgument(0));
+				return true;
+			}
+		});
+		when(characteristic.getValue()).thenAnswer(new Answer<byte[]>() {
+			@Override
+			public byte[] answer(final InvocationOnMock invocation) {
+				return value.get();
+			}
+		});
+		return characteristic;
+	}
+
+	/**
+	 * Records the progress. Pauses the upload for 600 ms, or aborts it, when the given number of bytes has been sent.
+	 */
+	/**
+	 * Accepts packets on its own thread and confirms them immediately, like a target with no latency. Neither the transport nor the notifications
+	 * it sends allocate memory.
+	 */
+	private static class LoopbackTransport extends Thread implements DfuTransport {
+		private final byte[] notification = { 17, 0, 0, 0, 0 };
+		private final byte[] response = { 16, 3, 1 };
+		private final int imageSize;
+		private final int packetsBeforeNotification;
+		private volatile Listener listener;
+		// guarded by this
+		private int pendingLength;
+		private boolean closed;
+		// accessed by the transport thread only
+		private int received, packets;
+
+		LoopbackTransport(final int imageSize, final int packetsBeforeNotification) {
+			super("LoopbackTransport");
+			this.imageSize = imageSize;
+			this.packetsBeforeNotification = packetsBeforeNotification;
+		}
+
+		@Override
+		public void setListener(final Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public int getMaxPacketSize() {
+			return PACKET_SIZE;
+		}
+
+		@Override
+		public boolean writeControlPoint(final byte[] value) {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean writePacket(final byte[] buffer, final int length) {
+			if (pendingLength != 0)
+				return false;
+			pendingLength = length;
+			notifyAll();
+			return true;
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				final int length;
+				synchronized (this) {
+					try {
+						while (pendingLength == 0 && !closed)
+							wait();
+					} catch (final InterruptedException e) {
+						return;
+					}
+					if (closed)
+						return;
+					length = pendingLength;
+					pendingLength = 0;
+				}
+
+				final Listener listener = this.listener;
+				if (listener == null)
+					continue;
+				received += length;
+				packets++;
+				listener.onPacketWritten(length);
+				if (packetsBeforeNotification > 0 && packets % packetsBeforeNotification == 0) {
+					notification[1] = (byte) received;
+					notification[2] = (byte) (received >> 8);
+					notification[3] = (byte) (received >> 16);
+					notification[4] = (byte) (received >> 24);
+					listener.onNotification(notification);
+				}
+				if (received == imageSize) {
+					received = packets = 0;
+					listener.onNotification(response);
+				}
+			}
+		}
+	}
+
+	private class Progress implements FirmwareUploader.ProgressListener {
+		private volatile int bytesSent;
+		private int pauseAt = Integer.MAX_VALUE;
+		private int abortAt = Integer.MAX_VALUE;
+
+		@Override
+		public void onProgress(final int bytesSent, final int bytesConfirmed) {
+			this.bytesSent = bytesSent;
+			if (bytesSent >= abortAt)
+				uploader.abort();
+			if (bytesSent >= pauseAt) {
+				pauseAt = Integer.MAX_VALUE;
+				uploader.pause();
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(600);
+						} catch (final InterruptedException e) {
+							// resume anyway
+						}
+						uploader.resume();
+					}
+				}).start();
+			}
+		}
+	}
+
+	/**
+	 * Passes the packets to the target and counts the bytes not confirmed by a packet receipt notification. The notifications may be dropped.
+	 */
+	private static class CountingTransport implements DfuTransport, DfuTransport.Listener {
+		private final DfuTransport target;
+		private volatile Listener listener;
+		private volatile boolean dropNotifications;
+		private int bytesWritten, bytesConfirmed;
+		private int maxBytesInFlight;
+
+		private CountingTransport(final DfuTransport target) {
+			this.target = target;
+			target.setListener(this);
+		}
+
+		@Override
+		public void setListener(final Listener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public int getMaxPacketSize() {
+			return target.getMaxPacketSize();
+		}
+
+		@Override
+		public boolean writeControlPoint(final byte[] value) {
+			return target.writeControlPoint(value);
+		}
+
+		@Override
+		public boolean writePacket(final byte[] buffer, final int length) {
+			// Only the firmware is counted, not the image sizes
+			final boolean firmware = listener instanceof FirmwareUploader;
+			synchronized (this) {
+				if (!target.writePacket(buffer, length))
+					return false;
+				if (firmware) {
+					bytesWritten += length;
+					maxBytesInFlight = Math.max(maxBytesInFlight, bytesWritten - bytesConfirmed);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void onControlPointWritten() {
+			listener.onControlPointWritten();
+		}
+
+		@Override
+		public void onPacketWritten(final int length) {
+			listener.onPacketWritten(length);
+		}
+
+		@Override
+		public void onNotification(final byte[] value) {
+			if (value[0] == 17) {
+				if (dropNotifications)
+					return;
+				synchronized (this) {
+					bytesConfirmed = (value[1] & 0xFF) | (value[2] & 0xFF) << 8 | (value[3] & 0xFF) << 16 | (value[4] & 0xFF) << 24;
+				}
+			}
+			listener.onNotification(value);
+		}
+
+		@Override
+		public void onDisconnected() {
+			listener.onDisconnected();
+		}
+	}
+}
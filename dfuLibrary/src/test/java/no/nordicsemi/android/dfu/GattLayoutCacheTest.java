@@ -0,0 +1,130 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GattLayoutCacheTest {
+	private static final String DEVICE = "00:00:00:00:00:0A";
+	private static final String OTHER_DEVICE = "00:00:00:00:00:0B";
+	private static final String REVISION = "2.1.0";
+	private static final UUID DFU_SERVICE_UUID = UUID.fromString("00001530-1212-EFDE-1523-785FEABCD123");
+	private static final UUID DFU_CONTROL_POINT_UUID = UUID.fromString("00001531-1212-EFDE-1523-785FEABCD123");
+	private static final UUID DFU_PACKET_UUID = UUID.fromString("00001532-1212-EFDE-1523-785FEABCD123");
+
+	private GattLayoutCache cache;
+	private BluetoothGatt bootloader;
+
+	@Before
+	public void setUp() {
+		cache = new GattLayoutCache(new MemorySharedPreferences());
+		bootloader = gatt(service(DFU_SERVICE_UUID, 16, characteristic(DFU_CONTROL_POINT_UUID, 18), characteristic(DFU_PACKET_UUID, 21)));
+	}
+
+	@Test
+	public void matchesStoredLayout() {
+		assertFalse(cache.contains(DEVICE, REVISION));
+
+		cache.put(DEVICE, REVISION, bootloader);
+
+		assertTrue(cache.contains(DEVICE, REVISION));
+		assertTrue(cache.matches(DEVICE, REVISION, bootloader));
+		assertFalse(cache.contains(OTHER_DEVICE, REVISION));
+	}
+
+	@Test
+	public void doesNotMatchOtherHandles() {
+		cache.put(DEVICE, REVISION, bootloader);
+
+		final BluetoothGatt moved = gatt(service(DFU_SERVICE_UUID, 12, characteristic(DFU_CONTROL_POINT_UUID, 14), characteristic(DFU_PACKET_UUID, 17)));
+		assertFalse(cache.matches(DEVICE, REVISION, moved));
+	}
+
+	@Test
+	public void newFirmwareRevisionMakesLayoutObsolete() {
+		cache.put(DEVICE, REVISION, bootloader);
+
+		assertFalse(cache.contains(DEVICE, "2.2.0"));
+		assertFalse(cache.matches(DEVICE, "2.2.0", bootloader));
+	}
+
+	@Test
+	public void serviceChangedIndicationClearsLayout() {
+		cache.put(DEVICE, REVISION, bootloader);
+		cache.put(OTHER_DEVICE, REVISION, bootloader);
+
+		assertTrue(cache.onCharacteristicChanged(DEVICE, characteristic(DfuBaseService.SERVICE_CHANGED_UUID, 3)));
+
+		assertFalse(cache.contains(DEVICE, REVISION));
+		assertTrue(cache.contains(OTHER_DEVICE, REVISION));
+	}
+
+	@Test
+	public void otherNotificationsKeepLayout() {
+		cache.put(DEVICE, REVISION, bootloader);
+
+		assertFalse(cache.onCharacteristicChanged(DEVICE, characteristic(DFU_CONTROL_POINT_UUID, 18)));
+
+		assertTrue(cache.contains(DEVICE, REVISION));
+	}
+
+	private static BluetoothGatt gatt(final BluetoothGattService... services) {
+		final List<BluetoothGattService> list = new ArrayList<>();
+		for (final BluetoothGattService service : services)
+			list.add(service);
+		final BluetoothGatt gatt = mock(BluetoothGatt.class);
+		when(gatt.getServices()).thenReturn(list);
+		return gatt;
+	}
+
+	private static BluetoothGattService service(final UUID uuid, final int instanceId, final BluetoothGattCharacteristic... characteristics) {
+		final List<BluetoothGattCharacteristic> list = new ArrayList<>();
+		for (final BluetoothGattCharacteristic characteristic : characteristics)
+			list.add(characteristic);
+		final BluetoothGattService service = mock(BluetoothGattService.class);
+		when(service.getUuid()).thenReturn(uuid);
+		when(service.getInstanceId()).thenReturn(instanceId);
+		when(service.getCharacteristics()).thenReturn(list);
+		return service;
+	}
+
+	private static BluetoothGattCharacteristic characteristic(final UUID uuid, final int instanceId) {
+		final BluetoothGattCharacteristic characteristic = mock(BluetoothGattCharacteristic.class);
+		when(characteristic.getUuid()).thenReturn(uuid);
+		when(characteristic.getInstanceId()).thenReturn(instanceId);
+		return characteristic;
+	}
+}
@@ -0,0 +1,137 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Builds Intel HEX files for tests. The records are written with correct checksums unless specified otherwise.
+ */
+class HexFileBuilder {
+	private final StringBuilder mText = new StringBuilder();
+
+	/**
+	 * Appends a record of the given type.
+	 *
+	 * @param type   the record type
+	 * @param offset the 16-bit address offset
+	 * @param data   the data bytes
+	 * @return this builder
+	 */
+	HexFileBuilder record(final int type, final int offset, final byte[] data) {
+		return record(type, offset, data, 0);
+	}
+
+	/**
+	 * Appends a record of the given type with the checksum increased by the given error.
+	 */
+	HexFileBuilder record(final int type, final int offset, final byte[] data, final int checksumError) {
+		int sum = data.length + (offset >> 8) + offset + type;
+		final StringBuilder line = new StringBuilder(":");
+		line.append(String.format(Locale.US, "%02X%04X%02X", data.length, offset & 0xFFFF, type));
+		for (final byte b : data) {
+			line.append(String.format(Locale.US, "%02X", b & 0xFF));
+			sum += b;
+		}
+		line.append(String.format(Locale.US, "%02X", (-sum + checksumError) & 0xFF));
+		mText.append(line).append("\r\n");
+		return this;
+	}
+
+	/**
+	 * Appends data records with the given bytes starting at the given address, 16 bytes per record. Extended Linear Address records are added
+	 * when the address crosses a 64 kB boundary.
+	 */
+	HexFileBuilder data(final int address, final byte[] data) {
+		int upper = -1;
+		int i = 0;
+		while (i < data.length) {
+			final int a = address + i;
+			if (a >>> 16 != upper) {
+				upper = a >>> 16;
+				linearAddress(upper);
+			}
+			// A record never crosses a 64 kB boundary
+			final int count = Math.min(16, Math.min(data.length - i, 0x10000 - (a & 0xFFFF)));
+			final byte[] chunk = new byte[count];
+			System.arraycopy(data, i, chunk, 0, count);
+			record(0x00, a & 0xFFFF, chunk);
+			i += count;
+		}
+		return this;
+	}
+
+	HexFileBuilder linearAddress(final int upper) {
+		return record(0x04, 0, new byte[] { (byte) (upper >> 8), (byte) upper });
+	}
+
+	HexFileBuilder segmentAddress(final int segment) {
+		return record(0x02, 0, new byte[] { (byte) (segment >> 8), (byte) segment });
+	}
+
+	/**
+	 * Appends a Block Start record of a universal HEX file.
+	 */
+	HexFileBuilder blockStart(final int boardId) {
+		return record(0x0A, 0, new byte[] { (byte) (boardId >> 8), (byte) boardId, (byte) 0xC0, (byte) 0xDE });
+	}
+
+	/**
+	 * Appends a Block End record of a universal HEX file, padded the way the micro:bit tools do it.
+	 */
+	HexFileBuilder blockEnd() {
+		return record(0x0B, 0, new byte[16]);
+	}
+
+	HexFileBuilder endOfFile() {
+		return record(0x01, 0, new byte[0]);
+	}
+
+	/**
+	 * Appends a line as it is.
+	 */
+	HexFileBuilder line(final String line) {
+		mText.append(line).append("\r\n");
+		return this;
+	}
+
+	byte[] build() {
+		return mText.toString().getBytes(Charset.forName("US-ASCII"));
+	}
+
+	@Override
+	public String toString() {
+		return mText.toString();
+	}
+
+	/**
+	 * Returns <code>length</code> bytes of test data, different for each seed.
+	 */
+	static byte[] bytes(final int length, final int seed) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i)
+			data[i] = (byte) (i * 31 + seed * 17 + (i >> 8));
+		return data;
+	}
+}
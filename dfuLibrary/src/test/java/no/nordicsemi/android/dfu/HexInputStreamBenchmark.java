@@ -0,0 +1,94 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures decoding of HEX files by {@link HexInputStream}. Run with <code>./gradlew :dfuLibrary:testDebugUnitTest -Pbenchmark
+ * --tests '*HexInputStreamBenchmark'</code>.
+ * <p>
+ * The files are synthetic: 16-byte data records, an Extended Linear Address record every 64 kB, and 4 kB of MBR data in front which is skipped
+ * when an MBR size is given. Both the FOTA window (no MBR size) and the MBR filter are measured, reading from a buffer (local files are mapped)
+ * and from a stream (content URIs).
+ * </p>
+ */
+public class HexInputStreamBenchmark {
+	private static final int WARM_UP = 50;
+	private static final int RUNS = 100;
+
+	@Before
+	public void setUp() {
+		Benchmarks.assumeEnabled();
+	}
+
+	@Test
+	public void application() throws Exception {
+		// The FOTA region is about 143 kB, the file is a bit more than 400 kB of text
+		final int size = DfuSettingsConstants.APP_CODE_BASE_END - DfuSettingsConstants.APP_CODE_BASE_START;
+		benchmark("application", DfuSettingsConstants.APP_CODE_BASE_START, size);
+	}
+
+	@Test
+	public void fullFlash() throws Exception {
+		// 252 kB of flash above the MBR, about 720 kB of text
+		benchmark("full flash", 0x1000, 0x3F000);
+	}
+
+	private void benchmark(final String name, final int address, final int size) throws Exception {
+		final byte[] hex = new HexFileBuilder()
+				.data(0, HexFileBuilder.bytes(0x1000, 0))
+				.data(address, HexFileBuilder.bytes(size, 1))
+				.endOfFile().build();
+		final String label = String.format(Locale.US, "%s (%d kB HEX)", name, hex.length / 1024);
+
+		assertEquals(size, new HexInputStream(hex, 0x1000).sizeInBytes());
+
+		Benchmarks.measure(label + ", FOTA, buffer", hex.length, WARM_UP, RUNS, new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				new HexInputStream(ByteBuffer.wrap(hex));
+			}
+		});
+		Benchmarks.measure(label + ", MBR, buffer", hex.length, WARM_UP, RUNS, new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				new HexInputStream(ByteBuffer.wrap(hex), 0x1000);
+			}
+		});
+		Benchmarks.measure(label + ", MBR, stream", hex.length, WARM_UP, RUNS, new Benchmarks.Task() {
+			@Override
+			public void run() throws Exception {
+				new HexInputStream(new ByteArrayInputStream(hex), 0x1000);
+			}
+		});
+	}
+
+}
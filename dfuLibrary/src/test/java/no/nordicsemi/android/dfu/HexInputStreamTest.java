@@ -0,0 +1,404 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import no.nordicsemi.android.dfu.exception.HexFileValidationException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HexInputStreamTest {
+	private static final int MBR_SIZE = 0x1000;
+
+	@Test
+	public void plainHex() throws Exception {
+		final byte[] firmware = HexFileBuilder.bytes(1000, 1);
+		final byte[] hex = new HexFileBuilder().data(0x18000, firmware).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertEquals(firmware.length, his.sizeInBytes());
+		assertEquals(firmware.length, his.available());
+		assertArrayEquals(firmware, readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, firmware.length);
+	}
+
+	@Test
+	public void lowerCaseDigits() throws Exception {
+		final byte[] firmware = HexFileBuilder.bytes(64, 2);
+		final String text = new HexFileBuilder().data(0x18000, firmware).endOfFile().toString();
+		final HexInputStream his = new HexInputStream(text.toLowerCase().getBytes("US-ASCII"), MBR_SIZE);
+		assertArrayEquals(firmware, readAll(his, 20));
+	}
+
+	@Test
+	public void unixLineEndings() throws Exception {
+		final byte[] firmware = HexFileBuilder.bytes(64, 3);
+		final String text = new HexFileBuilder().data(0x18000, firmware).endOfFile().toString();
+		final HexInputStream his = new HexInputStream(text.replace("\r\n", "\n").getBytes("US-ASCII"), MBR_SIZE);
+		assertArrayEquals(firmware, readAll(his, 20));
+	}
+
+	@Test
+	public void streamAndBufferGiveSameContent() throws Exception {
+		// More than one chunk of the source, so records are split between chunks
+		final byte[] firmware = HexFileBuilder.bytes(20000, 4);
+		final byte[] hex = new HexFileBuilder().data(0x18000, firmware).endOfFile().build();
+
+		final HexInputStream fromStream = new HexInputStream(new ByteArrayInputStream(hex), MBR_SIZE);
+		final HexInputStream fromBuffer = new HexInputStream(ByteBuffer.wrap(hex), MBR_SIZE);
+		assertArrayEquals(firmware, readAll(fromStream, 20));
+		assertArrayEquals(firmware, readAll(fromBuffer, 20));
+	}
+
+	@Test
+	public void extendedLinearAddress() throws Exception {
+		// The data crosses the 64 kB boundary, so an Extended Linear Address record is needed in the middle
+		final byte[] firmware = HexFileBuilder.bytes(512, 5);
+		final byte[] hex = new HexFileBuilder().data(0x1FF00, firmware).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(firmware, readAll(his, 20));
+		assertRegions(his.getRegions(), 0x1FF00, 0, firmware.length);
+	}
+
+	@Test
+	public void extendedSegmentAddress() throws Exception {
+		final byte[] first = HexFileBuilder.bytes(16, 6);
+		final byte[] second = HexFileBuilder.bytes(16, 7);
+		final byte[] hex = new HexFileBuilder()
+				.segmentAddress(0x1000) // base address 0x10000
+				.record(0x00, 0x8000, first)
+				.record(0x00, 0x8010, second)
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(concat(first, second), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 32);
+	}
+
+	@Test
+	public void dataBelowMbrIsSkipped() throws Exception {
+		final byte[] mbr = HexFileBuilder.bytes(0x1000, 8);
+		final byte[] softDevice = HexFileBuilder.bytes(256, 9);
+		final byte[] hex = new HexFileBuilder().data(0, mbr).data(0x1000, softDevice).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(softDevice, readAll(his, 20));
+		assertRegions(his.getRegions(), 0x1000, 0, softDevice.length);
+	}
+
+	@Test
+	public void uicrIsSkipped() throws Exception {
+		final byte[] firmware = HexFileBuilder.bytes(64, 10);
+		final byte[] hex = new HexFileBuilder().data(0x18000, firmware).data(0x10001014, new byte[] { 0, (byte) 0xC0, 3, 0 }).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(firmware, readAll(his, 20));
+	}
+
+	@Test
+	public void fixedAddressTakesOnlyApplicationRegion() throws Exception {
+		final byte[] softDevice = HexFileBuilder.bytes(256, 11);
+		final byte[] application = HexFileBuilder.bytes(256, 12);
+		final byte[] hex = new HexFileBuilder()
+				.data(0x1000, softDevice)
+				.data(DfuSettingsConstants.APP_CODE_BASE_START, application)
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(ByteBuffer.wrap(hex));
+		assertArrayEquals(application, readAll(his, 20));
+		assertRegions(his.getRegions(), DfuSettingsConstants.APP_CODE_BASE_START, 0, application.length);
+	}
+
+	@Test
+	public void resetRewindsContent() throws Exception {
+		final byte[] firmware = HexFileBuilder.bytes(100, 13);
+		final HexInputStream his = new HexInputStream(new HexFileBuilder().data(0x18000, firmware).endOfFile().build(), MBR_SIZE);
+		assertArrayEquals(firmware, readAll(his, 20));
+		his.reset();
+		assertArrayEquals(firmware, readAll(his, 32));
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void badDataChecksum() throws Exception {
+		final byte[] hex = new HexFileBuilder()
+				.linearAddress(1)
+				.record(0x00, 0x8000, HexFileBuilder.bytes(16, 14), 1)
+				.endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void badAddressChecksum() throws Exception {
+		final byte[] hex = new HexFileBuilder()
+				.record(0x04, 0, new byte[] { 0, 1 }, 0x80)
+				.record(0x00, 0x8000, HexFileBuilder.bytes(16, 15))
+				.endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test
+	public void checksumOfSkippedDataIsNotVerified() throws Exception {
+		// Records below the MBR are not decoded at all
+		final byte[] firmware = HexFileBuilder.bytes(16, 16);
+		final byte[] hex = new HexFileBuilder()
+				.record(0x00, 0x0000, HexFileBuilder.bytes(16, 17), 1)
+				.data(0x18000, firmware)
+				.endOfFile().build();
+		assertArrayEquals(firmware, readAll(new HexInputStream(hex, MBR_SIZE), 20));
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void invalidCharacter() throws Exception {
+		final String record = new HexFileBuilder().record(0x00, 0x8000, HexFileBuilder.bytes(4, 18)).toString().trim();
+		final byte[] hex = new HexFileBuilder().linearAddress(1).line(record.substring(0, 10) + "G" + record.substring(11)).endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void missingColon() throws Exception {
+		final String record = new HexFileBuilder().record(0x00, 0x8000, HexFileBuilder.bytes(4, 19)).toString().trim();
+		final byte[] hex = new HexFileBuilder().linearAddress(1).line(record.substring(1)).endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void truncatedRecord() throws Exception {
+		final String record = new HexFileBuilder().record(0x00, 0x8000, HexFileBuilder.bytes(16, 20)).toString().trim();
+		final byte[] hex = new HexFileBuilder().linearAddress(1).line(record.substring(0, record.length() - 4)).endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void missingEndOfFile() throws Exception {
+		new HexInputStream(new HexFileBuilder().data(0x18000, HexFileBuilder.bytes(48, 21)).build(), MBR_SIZE);
+	}
+
+	@Test
+	public void gapIsFilledWithErasedFlash() throws Exception {
+		final byte[] runtime = HexFileBuilder.bytes(256, 50);
+		final byte[] program = HexFileBuilder.bytes(64, 51);
+		final byte[] hex = new HexFileBuilder().data(0x18000, runtime).data(0x18400, program).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		final byte[] padding = new byte[0x400 - runtime.length];
+		Arrays.fill(padding, (byte) 0xFF);
+		assertEquals(0x400 + program.length, his.sizeInBytes());
+		assertArrayEquals(concat(runtime, padding, program), readAll(his, 20));
+		// The regions describe the data only, with offsets in the padded content
+		assertRegions(his.getRegions(), 0x18000, 0, runtime.length, 0x18400, 0x400, program.length);
+	}
+
+	@Test
+	public void gapAfterJumpToOtherSegment() throws Exception {
+		// An Extended Linear Address record in the middle does not mean that the data continue right after the previous record
+		final byte[] first = HexFileBuilder.bytes(16, 52);
+		final byte[] second = HexFileBuilder.bytes(16, 53);
+		final byte[] hex = new HexFileBuilder()
+				.linearAddress(1).record(0x00, 0xFFF0, first)
+				.linearAddress(2).record(0x00, 0x0010, second)
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		final byte[] padding = new byte[16];
+		Arrays.fill(padding, (byte) 0xFF);
+		assertArrayEquals(concat(first, padding, second), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x1FFF0, 0, 16, 0x20010, 32, 16);
+	}
+
+	@Test
+	public void outOfOrderRecordsAreSorted() throws Exception {
+		final byte[] a = HexFileBuilder.bytes(16, 54);
+		final byte[] b = HexFileBuilder.bytes(16, 55);
+		final byte[] c = HexFileBuilder.bytes(16, 56);
+		final byte[] hex = new HexFileBuilder()
+				.linearAddress(1)
+				.record(0x00, 0x8020, c)
+				.record(0x00, 0x8000, a)
+				.record(0x00, 0x8010, b)
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(concat(a, b, c), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 48);
+	}
+
+	@Test
+	public void outOfOrderRecordsWithGap() throws Exception {
+		final byte[] program = HexFileBuilder.bytes(32, 57);
+		final byte[] runtime = HexFileBuilder.bytes(32, 58);
+		final byte[] hex = new HexFileBuilder().data(0x18100, program).data(0x18000, runtime).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		final byte[] padding = new byte[0x100 - runtime.length];
+		Arrays.fill(padding, (byte) 0xFF);
+		assertArrayEquals(concat(runtime, padding, program), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 32, 0x18100, 0x100, 32);
+	}
+
+	@Test
+	public void overlappingRecordLaterInFileWins() throws Exception {
+		final byte[] first = HexFileBuilder.bytes(32, 59);
+		final byte[] patch = HexFileBuilder.bytes(16, 60);
+		final byte[] hex = new HexFileBuilder().data(0x18000, first).data(0x18008, patch).endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		final byte[] expected = first.clone();
+		System.arraycopy(patch, 0, expected, 8, patch.length);
+		assertArrayEquals(expected, readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 32);
+	}
+
+	@Test
+	public void universalHexWithCalliopeBlock() throws Exception {
+		final byte[] calliope1 = HexFileBuilder.bytes(512, 30);
+		final byte[] calliope2 = HexFileBuilder.bytes(256, 31);
+		final byte[] v2 = HexFileBuilder.bytes(512, 32);
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x9903).data(0x18000, v2).blockEnd()
+				.blockStart(0x12A0).data(0x18000, calliope1).blockEnd()
+				.blockStart(0x9903).data(0x18200, v2).blockEnd()
+				.blockStart(0x12A0).data(0x18200, calliope2).blockEnd()
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(concat(calliope1, calliope2), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 768);
+	}
+
+	@Test
+	public void universalHexTakesFirstSupportedBoard() throws Exception {
+		final byte[] v1 = HexFileBuilder.bytes(128, 33);
+		final byte[] calliope = HexFileBuilder.bytes(128, 34);
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x9903).data(0x18000, HexFileBuilder.bytes(128, 35)).blockEnd()
+				.blockStart(0x9900).data(0x18000, v1).blockEnd()
+				.blockStart(0x12A0).data(0x18000, calliope).blockEnd()
+				.endOfFile().build();
+
+		assertArrayEquals(v1, readAll(new HexInputStream(hex, MBR_SIZE), 20));
+	}
+
+	@Test(expected = HexFileValidationException.class)
+	public void universalHexWithoutCalliopeBlock() throws Exception {
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x9903).data(0x18000, HexFileBuilder.bytes(128, 36)).blockEnd()
+				.blockStart(0x9904).data(0x18000, HexFileBuilder.bytes(128, 37)).blockEnd()
+				.endOfFile().build();
+		new HexInputStream(hex, MBR_SIZE);
+	}
+
+	@Test
+	public void universalHexCustomDataRecords() throws Exception {
+		final byte[] data = HexFileBuilder.bytes(16, 38);
+		final byte[] custom = HexFileBuilder.bytes(16, 39);
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x12A0)
+				.linearAddress(1)
+				.record(0x00, 0x8000, data)
+				.record(0x0D, 0x8010, custom)
+				.blockEnd()
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertArrayEquals(concat(data, custom), readAll(his, 20));
+		assertRegions(his.getRegions(), 0x18000, 0, 32);
+	}
+
+	@Test
+	public void universalHexSkippedBlockIsNotDecoded() throws Exception {
+		// Records of blocks for other boards are skipped without decoding their data, so a wrong checksum there does not matter
+		final byte[] calliope = HexFileBuilder.bytes(64, 40);
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x9903)
+				.linearAddress(1)
+				.record(0x0D, 0x8000, HexFileBuilder.bytes(16, 41), 1)
+				.blockEnd()
+				.blockStart(0x12A0).data(0x18000, calliope).blockEnd()
+				.endOfFile().build();
+
+		assertArrayEquals(calliope, readAll(new HexInputStream(hex, MBR_SIZE), 20));
+	}
+
+	@Test
+	public void universalHexAddressesDoNotLeakFromSkippedBlocks() throws Exception {
+		// The Extended Linear Address record of a skipped block must not change the address of the following data
+		final byte[] calliope = HexFileBuilder.bytes(32, 42);
+		final byte[] hex = new HexFileBuilder()
+				.blockStart(0x12A0).linearAddress(1).record(0x00, 0x8000, HexFileBuilder.bytes(16, 43)).blockEnd()
+				.blockStart(0x9903).linearAddress(2).record(0x00, 0x0000, HexFileBuilder.bytes(16, 44)).blockEnd()
+				.blockStart(0x12A0).record(0x00, 0x8010, calliope).blockEnd()
+				.endOfFile().build();
+
+		final HexInputStream his = new HexInputStream(hex, MBR_SIZE);
+		assertRegions(his.getRegions(), 0x18000, 0, 48);
+	}
+
+	static byte[] readAll(final HexInputStream his, final int packetSize) throws Exception {
+		final byte[] result = new byte[his.available()];
+		final byte[] buffer = new byte[packetSize];
+		int position = 0;
+		int size;
+		while ((size = his.readPacket(buffer)) > 0) {
+			System.arraycopy(buffer, 0, result, position, size);
+			position += size;
+		}
+		assertEquals(result.length, position);
+		return result;
+	}
+
+	static byte[] concat(final byte[]... arrays) {
+		int length = 0;
+		for (final byte[] array : arrays)
+			length += array.length;
+		final byte[] result = new byte[length];
+		int position = 0;
+		for (final byte[] array : arrays) {
+			System.arraycopy(array, 0, result, position, array.length);
+			position += array.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Asserts that the regions are equal to the given triples of address, offset and length.
+	 */
+	static void assertRegions(final List<HexInputStream.Region> regions, final int... expected) {
+		final int[] actual = new int[regions.size() * 3];
+		for (int i = 0; i < regions.size(); ++i) {
+			actual[3 * i] = regions.get(i).getAddress();
+			actual[3 * i + 1] = regions.get(i).getOffset();
+			actual[3 * i + 2] = regions.get(i).getLength();
+		}
+		if (!Arrays.equals(expected, actual))
+			fail("Expected regions " + Arrays.toString(expected) + " but was " + Arrays.toString(actual));
+	}
+}
@@ -0,0 +1,135 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import no.nordicsemi.android.dfu.transport.DfuTransport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends the Legacy DFU requests written before and after the firmware image, in the same order as {@link DfuBaseService} does. The events of the transport
+ * are queued and awaited, each for at most {@link #TIMEOUT} milliseconds.
+ */
+class LegacyDfuClient implements DfuTransport.Listener {
+	private static final int TIMEOUT = 5000; // ms
+	private static final Object CONTROL_POINT_WRITTEN = new Object();
+	private static final Object PACKET_WRITTEN = new Object();
+	private static final Object DISCONNECTED = new Object();
+
+	private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+	private final DfuTransport transport;
+
+	LegacyDfuClient(final DfuTransport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Starts the DFU of an application and leaves the target waiting for the firmware image.
+	 *
+	 * @param declaredSize              the application size sent in the Start DFU request
+	 * @param packetsBeforeNotification the PRN interval, 0 to disable notifications
+	 */
+	void startUpload(final int declaredSize, final int packetsBeforeNotification) throws InterruptedException {
+		transport.setListener(this);
+		events.clear();
+
+		writeControlPoint(1, 4); // Start DFU, application
+		writePacket(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, (byte) declaredSize, (byte) (declaredSize >> 8), (byte) (declaredSize >> 16), (byte) (declaredSize >> 24) });
+		assertArrayEquals(new byte[] { 16, 1, 1 }, awaitNotification());
+		if (packetsBeforeNotification > 0)
+			writeControlPoint(8, packetsBeforeNotification & 0xFF, packetsBeforeNotification >> 8);
+		writeControlPoint(3); // Receive Firmware Image
+	}
+
+	/**
+	 * Validates the received image and activates it. The target disconnects.
+	 */
+	void validateAndActivate() throws InterruptedException {
+		transport.setListener(this);
+		events.clear();
+
+		writeControlPoint(4); // Validate
+		assertArrayEquals(new byte[] { 16, 4, 1 }, awaitNotification());
+		assertTrue("Activate and Reset rejected", transport.writeControlPoint(new byte[] { 5 }));
+		await(DISCONNECTED);
+	}
+
+	private void writeControlPoint(final int... value) throws InterruptedException {
+		final byte[] bytes = new byte[value.length];
+		for (int i = 0; i < value.length; ++i)
+			bytes[i] = (byte) value[i];
+		assertTrue("Op Code " + value[0] + " rejected", transport.writeControlPoint(bytes));
+		await(CONTROL_POINT_WRITTEN);
+	}
+
+	private void writePacket(final byte[] value) throws InterruptedException {
+		assertTrue("Packet rejected", transport.writePacket(value, value.length));
+		await(PACKET_WRITTEN);
+	}
+
+	private byte[] awaitNotification() throws InterruptedException {
+		return (byte[]) await(byte[].class);
+	}
+
+	/**
+	 * Waits for the event, skipping other events.
+	 *
+	 * @param event the awaited event, or the class of it
+	 */
+	private Object await(final Object event) throws InterruptedException {
+		final long end = System.currentTimeMillis() + TIMEOUT;
+		long remaining;
+		while ((remaining = end - System.currentTimeMillis()) > 0) {
+			final Object received = events.poll(remaining, TimeUnit.MILLISECONDS);
+			if (received == event || received != null && received.getClass() == event)
+				return received;
+		}
+		fail("Event not received");
+		return null;
+	}
+
+	@Override
+	public void onControlPointWritten() {
+		events.add(CONTROL_POINT_WRITTEN);
+	}
+
+	@Override
+	public void onPacketWritten(final int length) {
+		events.add(PACKET_WRITTEN);
+	}
+
+	@Override
+	public void onNotification(final byte[] value) {
+		events.add(value);
+	}
+
+	@Override
+	public void onDisconnected() {
+		events.add(DISCONNECTED);
+	}
+}
@@ -0,0 +1,170 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link SharedPreferences} kept in memory, for the classes that store their state in preferences. Listeners are not supported.
+ */
+class MemorySharedPreferences implements SharedPreferences {
+	private final Map<String, Object> values = new HashMap<>();
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<>(values);
+	}
+
+	@Override
+	public synchronized String getString(final String key, final String defValue) {
+		return values.containsKey(key) ? (String) values.get(key) : defValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> getStringSet(final String key, final Set<String> defValues) {
+		return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+	}
+
+	@Override
+	public synchronized int getInt(final String key, final int defValue) {
+		return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized long getLong(final String key, final long defValue) {
+		return values.containsKey(key) ? (Long) values.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized float getFloat(final String key, final float defValue) {
+		return values.containsKey(key) ? (Float) values.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(final String key, final boolean defValue) {
+		return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean contains(final String key) {
+		return values.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(final OnSharedPreferenceChangeListener listener) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Collects the changes and applies them atomically, like the Android implementation does.
+	 */
+	private class MemoryEditor implements Editor {
+		private final Map<String, Object> changes = new HashMap<>();
+		private final Set<String> removals = new HashSet<>();
+		private boolean clear;
+
+		@Override
+		public Editor putString(final String key, final String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putStringSet(final String key, final Set<String> values) {
+			return put(key, values == null ? null : new HashSet<>(values));
+		}
+
+		@Override
+		public Editor putInt(final String key, final int value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putLong(final String key, final long value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putFloat(final String key, final float value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putBoolean(final String key, final boolean value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor remove(final String key) {
+			removals.add(key);
+			return this;
+		}
+
+		@Override
+		public Editor clear() {
+			clear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			synchronized (MemorySharedPreferences.this) {
+				if (clear)
+					values.clear();
+				for (final String key : removals)
+					values.remove(key);
+				for (final Map.Entry<String, Object> entry : changes.entrySet()) {
+					if (entry.getValue() == null)
+						values.remove(entry.getKey());
+					else
+						values.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public void apply() {
+			commit();
+		}
+
+		private Editor put(final String key, final Object value) {
+			changes.put(key, value);
+			return this;
+		}
+	}
+}
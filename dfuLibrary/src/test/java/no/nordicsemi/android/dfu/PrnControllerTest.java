@@ -0,0 +1,104 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PrnControllerTest {
+	private static final int PRN = DfuSettingsConstants.SETTINGS_NUMBER_OF_PACKETS_DEFAULT;
+	private static final int INTERVAL = 30; // ms
+
+	private MemorySharedPreferences preferences;
+	private PrnController controller;
+	private long time;
+
+	@Before
+	public void setUp() {
+		preferences = new MemorySharedPreferences();
+		controller = new PrnController(preferences, "test");
+		controller.start(PRN, DfuSettingsConstants.SETTINGS_MAX_PACKETS_IN_FLIGHT_DEFAULT);
+		time = 1000;
+	}
+
+	@Test
+	public void growsWindowWithDefaultSettings() {
+		assertEquals(PRN, controller.getWindow());
+
+		notifications(3 * PRN, INTERVAL);
+		assertEquals(PrnController.DEFAULT_WINDOW_HEADROOM * PRN, controller.getWindow());
+	}
+
+	@Test
+	public void shrinksWindowOnLateNotification() {
+		// The first notification starts measuring the interval, each next one widens the window
+		notifications(8, INTERVAL);
+		final int window = controller.getWindow();
+		assertEquals(PRN + 7, window);
+
+		time += 3 * INTERVAL;
+		controller.onNotification(time);
+		assertEquals(window - PRN / 2, controller.getWindow());
+	}
+
+	@Test
+	public void shrinksWindowOnRejectedPacket() {
+		notifications(3 * PRN, INTERVAL);
+
+		controller.onPacketRejected();
+		assertEquals(PRN, controller.getWindow());
+		controller.onPacketRejected();
+		// Never below the PRN interval
+		assertEquals(PRN, controller.getWindow());
+	}
+
+	@Test
+	public void keepsExplicitMaximumWindow() {
+		controller.start(PRN, PRN);
+		notifications(3 * PRN, INTERVAL);
+		assertEquals(PRN, controller.getWindow());
+	}
+
+	@Test
+	public void narrowsIntervalAfterFailure() {
+		controller.finish(false, 1000, 0);
+		assertEquals(PRN / 2, controller.getPacketsBeforeNotification(PRN));
+	}
+
+	@Test
+	public void widensIntervalAfterFasterUpload() {
+		controller.finish(true, 10000, 1000);
+		assertEquals(PRN + 5, controller.getPacketsBeforeNotification(PRN));
+	}
+
+	/**
+	 * Delivers the given number of notifications in equal intervals.
+	 */
+	private void notifications(final int count, final int interval) {
+		for (int i = 0; i < count; ++i) {
+			time += interval;
+			controller.onNotification(time);
+		}
+	}
+}
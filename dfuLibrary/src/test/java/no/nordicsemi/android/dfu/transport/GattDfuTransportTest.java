@@ -0,0 +1,169 @@
+/*************************************************************************************************************************************************
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ************************************************************************************************************************************************/
+package no.nordicsemi.android.dfu.transport;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class GattDfuTransportTest {
+	private BluetoothGatt gatt;
+	private BluetoothGattCharacteristic controlPoint;
+	private BluetoothGattCharacteristic packet;
+	private DfuTransport.Listener listener;
+	private GattDfuTransport transport;
+
+	@Before
+	public void setUp() {
+		gatt = mock(BluetoothGatt.class);
+		controlPoint = mock(BluetoothGattCharacteristic.class);
+		packet = mock(BluetoothGattCharacteristic.class);
+		listener = mock(DfuTransport.Listener.class);
+		when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class))).thenReturn(true);
+		transport = new GattDfuTransport(gatt, controlPoint, packet);
+		transport.setListener(listener);
+	}
+
+	@Test
+	public void writesControlPointWithResponse() {
+		final byte[] value = { 3 };
+		assertTrue(transport.writeControlPoint(value));
+
+		verify(controlPoint).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+		verify(controlPoint).setValue(value);
+		verify(gatt).writeCharacteristic(controlPoint);
+	}
+
+	@Test
+	public void writesFullPacketFromGivenBuffer() {
+		transport.setMaxPacketSize(20);
+		final byte[] buffer = new byte[20];
+		assertTrue(transport.writePacket(buffer, 20));
+
+		verify(packet).setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+		verify(packet).setValue(buffer);
+		verify(gatt).writeCharacteristic(packet);
+	}
+
+	@Test
+	public void writesShortPacketsFromReusedBuffers() {
+		transport.setMaxPacketSize(20);
+		final byte[] buffer = new byte[20];
+		for (int i = 0; i < buffer.length; ++i)
+			buffer[i] = (byte) i;
+
+		transport.writePacket(buffer, 8);
+		buffer[0] = 100;
+		transport.writePacket(buffer, 8);
+
+		final ArgumentCaptor<byte[]> values = ArgumentCaptor.forClass(byte[].class);
+		verify(packet, times(2)).setValue(values.capture());
+		final byte[] first = values.getAllValues().get(0);
+		final byte[] second = values.getAllValues().get(1);
+		assertSame(first, second);
+		assertArrayEquals(Arrays.copyOf(buffer, 8), second);
+	}
+
+	@Test
+	public void growsBuffersForLongerPackets() {
+		transport.setMaxPacketSize(20);
+		transport.setMaxPacketSize(244);
+		final byte[] buffer = new byte[244];
+		buffer[199] = 7;
+
+		assertTrue(transport.writePacket(buffer, 200));
+
+		final ArgumentCaptor<byte[]> value = ArgumentCaptor.forClass(byte[].class);
+		verify(packet).setValue(value.capture());
+		assertEquals(200, value.getValue().length);
+		assertEquals(7, value.getValue()[199]);
+		assertEquals(244, transport.getMaxPacketSize());
+	}
+
+	@Test
+	public void reportsRejectedWrite() {
+		when(gatt.writeCharacteristic(any(BluetoothGattCharacteristic.class))).thenReturn(false);
+
+		assertFalse(transport.writePacket(new byte[20], 20));
+		assertFalse(transport.writeControlPoint(new byte[] { 1 }));
+	}
+
+	@Test
+	public void reportsWrittenPacketLength() {
+		transport.writePacket(new byte[20], 12);
+		transport.onCharacteristicWrite(packet, BluetoothGatt.GATT_SUCCESS);
+		verify(listener).onPacketWritten(12);
+
+		transport.onCharacteristicWrite(controlPoint, BluetoothGatt.GATT_SUCCESS);
+		verify(listener).onControlPointWritten();
+	}
+
+	@Test
+	public void ignoresFailedWrites() {
+		transport.writePacket(new byte[20], 20);
+		transport.onCharacteristicWrite(packet, 133);
+		transport.onCharacteristicWrite(controlPoint, 133);
+
+		verifyNoInteractions(listener);
+	}
+
+	@Test
+	public void reportsControlPointNotifications() {
+		final byte[] value = { 17, 20, 0, 0, 0 };
+		when(controlPoint.getValue()).thenReturn(value);
+
+		transport.onCharacteristicChanged(controlPoint);
+		transport.onCharacteristicChanged(packet);
+
+		verify(listener).onNotification(value);
+		verify(listener, times(1)).onNotification(any(byte[].class));
+	}
+
+	@Test
+	public void reportsDisconnection() {
+		transport.onDisconnected();
+		verify(listener).onDisconnected();
+
+		// Events without a listener are dropped
+		transport.setListener(null);
+		transport.onDisconnected();
+		transport.onCharacteristicWrite(packet, BluetoothGatt.GATT_SUCCESS);
+		verify(listener, times(1)).onDisconnected();
+	}
+}
@@ -0,0 +1,571 @@
+/*
+ * Copyright (c) 2015, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DfuTransport} connected to a simulated Legacy DFU Bootloader (DFU version 0.5+). The simulator runs in the JVM and does not use any Android APIs,
+ * so the DFU engine may be measured and tested without a phone and a DFU target.
+ * <p>
+ * The link is modeled as follows:
+ * <ul>
+ * <li>Packets and DFU Control Point writes are put into a buffer of the Bluetooth controller of a limited size ({@link #setBufferSize(int)}).
+ * A packet is reported as written when it has been put into the buffer, the next write is rejected until then.</li>
+ * <li>At each connection event ({@link #setConnectionInterval(int)}) at most {@link #setPacketsPerConnectionEvent(int)} packets are sent from the buffer.</li>
+ * <li>A packet may be lost ({@link #setPacketLoss(float)}). Just like the Link Layer does, the lost packet is sent again in the next connection event.</li>
+ * <li>Notifications and write responses reach the phone after the latency ({@link #setLatency(int)}).</li>
+ * <li>The link may be lost after the given number of bytes has been received ({@link #setDisconnectAfter(int)}) and established again with {@link #connect()}.
+ * The bootloader starts from the beginning after the link was lost.</li>
+ * </ul>
+ * All parameters must be set before the DFU process is started.
+ * </p>
+ * <p>
+ * The bootloader handles the Start DFU, Initialize DFU Parameters, Receive Firmware Image, Validate, Activate and Reset, Reset, Report Received Image Size and
+ * Packet Receipt Notification Request op codes. Responses and notifications have the same format as the ones sent by the Nordic Legacy DFU Bootloader.
+ * </p>
+ */
+public class SimulatedLegacyDfuBootloader implements DfuTransport {
+	private static final int OP_CODE_START_DFU = 1;
+	private static final int OP_CODE_INIT_DFU_PARAMS = 2;
+	private static final int OP_CODE_RECEIVE_FIRMWARE_IMAGE = 3;
+	private static final int OP_CODE_VALIDATE = 4;
+	private static final int OP_CODE_ACTIVATE_AND_RESET = 5;
+	private static final int OP_CODE_RESET = 6;
+	private static final int OP_CODE_REPORT_RECEIVED_IMAGE_SIZE = 7;
+	private static final int OP_CODE_PACKET_RECEIPT_NOTIF_REQ = 8;
+	private static final int OP_CODE_RESPONSE_CODE = 16;
+	private static final int OP_CODE_PACKET_RECEIPT_NOTIF = 17;
+
+	private static final int DFU_STATUS_SUCCESS = 1;
+	private static final int DFU_STATUS_INVALID_STATE = 2;
+	private static final int DFU_STATUS_NOT_SUPPORTED = 3;
+	private static final int DFU_STATUS_DATA_SIZE_EXCEEDS_LIMIT = 4;
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_WAITING_FOR_IMAGE_SIZE = 1;
+	private static final int STATE_READY = 2;
+	private static final int STATE_RECEIVING_INIT_PACKET = 3;
+	private static final int STATE_RECEIVING_FIRMWARE = 4;
+	private static final int STATE_FIRMWARE_RECEIVED = 5;
+	private static final int STATE_VALIDATED = 6;
+
+	/**
+	 * A write waiting in the buffer of the Bluetooth controller.
+	 */
+	private static class Frame {
+		private final boolean controlPoint;
+		private final byte[] value;
+
+		private Frame(final boolean controlPoint, final byte[] value) {
+			this.controlPoint = controlPoint;
+			this.value = value;
+		}
+	}
+
+	private final ScheduledExecutorService mRadio;
+	private final ArrayDeque<Frame> mBuffer = new ArrayDeque<>();
+	private final ByteArrayOutputStream mInitPacket = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream mFirmware = new ByteArrayOutputStream();
+	private Random mRandom = new Random();
+	private volatile Listener mListener;
+
+	// Link parameters
+	private int mMtu = 23;
+	private int mConnectionInterval = 7500; // us
+	private int mPacketsPerConnectionEvent = 6;
+	private int mBufferSize = 8;
+	private int mLatency = 10; // ms
+	private float mPacketLoss;
+	private int mEraseTime = 100; // ms
+	private int mDisconnectAfter = -1;
+
+	// Link state, guarded by this
+	private boolean mConnected = true;
+	private boolean mStarted;
+	private Frame mPendingFrame;
+	private boolean mControlPointWriteInProgress;
+	private boolean mActivated;
+	private int mPacketsSent;
+	private int mPacketsLost;
+
+	// Bootloader state, accessed only from the radio thread
+	private int mState = STATE_IDLE;
+	private int mImageSize;
+	private int mImageSizeBytesExpected;
+	private final byte[] mImageSizeBuffer = new byte[12];
+	private int mImageSizeBytesReceived;
+	private int mBytesReceived;
+	private int mPacketsBeforeNotification;
+	private int mPacketsSinceNotification;
+
+	public SimulatedLegacyDfuBootloader() {
+		mRadio = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "SimulatedLegacyDfuBootloader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the MTU. The default MTU is 23, which gives 20 bytes in a packet.
+	 */
+	public void setMtu(final int mtu) {
+		mMtu = mtu;
+	}
+
+	/**
+	 * Sets the connection interval in microseconds. Defaults to 7500 us, the shortest interval allowed.
+	 */
+	public void setConnectionInterval(final int interval) {
+		mConnectionInterval = interval;
+	}
+
+	/**
+	 * Sets the maximum number of packets sent in a single connection event. The number depends on the phone and the target, usually it is between 4 and 7
+	 * for 20-byte packets. Fewer long packets fit into a connection event, so the value should be lowered when a bigger MTU is set.
+	 */
+	public void setPacketsPerConnectionEvent(final int packets) {
+		mPacketsPerConnectionEvent = packets;
+	}
+
+	/**
+	 * Sets the number of packets that may wait in the buffer of the Bluetooth controller.
+	 */
+	public void setBufferSize(final int packets) {
+		mBufferSize = packets;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which a notification or a write response sent by the target is received by the phone.
+	 */
+	public void setLatency(final int latency) {
+		mLatency = latency;
+	}
+
+	/**
+	 * Sets the probability of losing a packet in the air, from 0 to 1.
+	 */
+	public void setPacketLoss(final float packetLoss) {
+		mPacketLoss = packetLoss;
+	}
+
+	/**
+	 * Sets the seed of the random number generator used to simulate the packet loss, to have repeatable results.
+	 */
+	public void setSeed(final long seed) {
+		mRandom = new Random(seed);
+	}
+
+	/**
+	 * Sets the time in milliseconds needed to erase the flash after the image size has been received.
+	 */
+	public void setEraseTime(final int eraseTime) {
+		mEraseTime = eraseTime;
+	}
+
+	/**
+	 * Makes the link to be lost when the given number of firmware bytes has been received, or never, if the value is negative.
+	 */
+	public void setDisconnectAfter(final int bytes) {
+		mDisconnectAfter = bytes;
+	}
+
+	@Override
+	public void setListener(final Listener listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return mMtu - 3;
+	}
+
+	@Override
+	public boolean writeControlPoint(final byte[] value) {
+		synchronized (this) {
+			if (!mConnected || mPendingFrame != null || mControlPointWriteInProgress)
+				return false;
+			mControlPointWriteInProgress = true;
+			enqueue(new Frame(true, value.clone()));
+		}
+		return true;
+	}
+
+	@Override
+	public boolean writePacket(final byte[] buffer, final int length) {
+		if (length > getMaxPacketSize())
+			throw new IllegalArgumentException("Packet too long: " + length);
+
+		final byte[] value = new byte[length];
+		System.arraycopy(buffer, 0, value, 0, length);
+		final Frame frame = new Frame(false, value);
+		synchronized (this) {
+			if (!mConnected || mPendingFrame != null || mControlPointWriteInProgress)
+				return false;
+			if (mBuffer.size() >= mBufferSize) {
+				// The write will be completed when there is space in the buffer
+				mPendingFrame = frame;
+				return true;
+			}
+			enqueue(frame);
+		}
+		reportPacketWritten(length);
+		return true;
+	}
+
+	/**
+	 * Establishes the link again after it has been lost. The bootloader starts from the beginning. Returns when the link has been established.
+	 */
+	public void connect() throws InterruptedException {
+		final Future<?> connected = mRadio.submit(new Runnable() {
+			@Override
+			public void run() {
+				mState = STATE_IDLE;
+				mPacketsBeforeNotification = 0;
+				synchronized (SimulatedLegacyDfuBootloader.this) {
+					mBytesReceived = 0;
+					mInitPacket.reset();
+					mFirmware.reset();
+					mActivated = false;
+					mConnected = true;
+				}
+			}
+		});
+		try {
+			connected.get();
+		} catch (final ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Terminates the link immediately. The listener is notified after the latency.
+	 */
+	public void disconnect() {
+		mRadio.execute(new Runnable() {
+			@Override
+			public void run() {
+				linkLost();
+			}
+		});
+	}
+
+	/**
+	 * Stops the simulator. The transport may not be used afterwards.
+	 */
+	public void close() {
+		mRadio.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of firmware bytes received by the bootloader.
+	 */
+	public synchronized int getBytesReceived() {
+		return mBytesReceived;
+	}
+
+	/**
+	 * Returns the firmware received by the bootloader.
+	 */
+	public synchronized byte[] getFirmware() {
+		return mFirmware.toByteArray();
+	}
+
+	/**
+	 * Returns the Init packet received by the bootloader.
+	 */
+	public synchronized byte[] getInitPacket() {
+		return mInitPacket.toByteArray();
+	}
+
+	/**
+	 * Returns the number of packets sent in the air, including the ones sent again.
+	 */
+	public synchronized int getPacketsSent() {
+		return mPacketsSent;
+	}
+
+	/**
+	 * Returns the number of packets lost in the air.
+	 */
+	public synchronized int getPacketsLost() {
+		return mPacketsLost;
+	}
+
+	/**
+	 * Returns true if the firmware has been validated and activated.
+	 */
+	public synchronized boolean isFirmwareActivated() {
+		return mActivated;
+	}
+
+	private void enqueue(final Frame frame) {
+		mBuffer.add(frame);
+		if (!mStarted) {
+			mStarted = true;
+			mRadio.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					onConnectionEvent();
+				}
+			}, mConnectionInterval, mConnectionInterval, TimeUnit.MICROSECONDS);
+		}
+	}
+
+	/**
+	 * Sends packets from the buffer to the bootloader. Called on the radio thread at each connection event.
+	 */
+	private void onConnectionEvent() {
+		for (int i = 0; i < mPacketsPerConnectionEvent; ++i) {
+			final Frame frame;
+			Frame accepted = null;
+			synchronized (this) {
+				if (!mConnected || mBuffer.isEmpty())
+					return;
+				mPacketsSent++;
+				if (mPacketLoss > 0 && mRandom.nextFloat() < mPacketLoss) {
+					// The packet will be sent again in the next connection event
+					mPacketsLost++;
+					return;
+				}
+				frame = mBuffer.poll();
+				if (mPendingFrame != null) {
+					accepted = mPendingFrame;
+					mPendingFrame = null;
+					mBuffer.add(accepted);
+				}
+			}
+			if (accepted != null)
+				reportPacketWritten(accepted.value.length);
+
+			if (frame.controlPoint)
+				onControlPointReceived(frame.value);
+			else
+				onPacketReceived(frame.value);
+		}
+	}
+
+	private void onControlPointReceived(final byte[] value) {
+		// The write response reaches the phone after the latency
+		mRadio.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedLegacyDfuBootloader.this) {
+					mControlPointWriteInProgress = false;
+					if (!mConnected)
+						return;
+				}
+				final Listener listener = mListener;
+				if (listener != null)
+					listener.onControlPointWritten();
+			}
+		}, mLatency, TimeUnit.MILLISECONDS);
+
+		final int opCode = value[0] & 0xFF;
+		switch (opCode) {
+			case OP_CODE_START_DFU:
+				if (mState != STATE_IDLE && mState != STATE_READY) {
+					respond(opCode, DFU_STATUS_INVALID_STATE);
+					break;
+				}
+				// The Start DFU with the image type (DFU v0.5+) is followed by 3 sizes: SD, BL and APP, the old one by the application size only
+				mImageSizeBytesExpected = value.length > 1 ? 12 : 4;
+				mImageSizeBytesReceived = 0;
+				mState = STATE_WAITING_FOR_IMAGE_SIZE;
+				break;
+			case OP_CODE_INIT_DFU_PARAMS:
+				if (mState != STATE_READY && mState != STATE_RECEIVING_INIT_PACKET) {
+					respond(opCode, DFU_STATUS_INVALID_STATE);
+				} else if (value.length < 2 || value[1] == 0) {
+					synchronized (this) {
+						mInitPacket.reset();
+					}
+					mState = STATE_RECEIVING_INIT_PACKET;
+				} else {
+					mState = STATE_READY;
+					respond(opCode, DFU_STATUS_SUCCESS);
+				}
+				break;
+			case OP_CODE_PACKET_RECEIPT_NOTIF_REQ:
+				mPacketsBeforeNotification = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+				mPacketsSinceNotification = 0;
+				break;
+			case OP_CODE_RECEIVE_FIRMWARE_IMAGE:
+				if (mState != STATE_READY) {
+					respond(opCode, DFU_STATUS_INVALID_STATE);
+					break;
+				}
+				mState = STATE_RECEIVING_FIRMWARE;
+				mPacketsSinceNotification = 0;
+				break;
+			case OP_CODE_VALIDATE:
+				if (mState != STATE_FIRMWARE_RECEIVED) {
+					respond(opCode, DFU_STATUS_INVALID_STATE);
+					break;
+				}
+				mState = STATE_VALIDATED;
+				respond(opCode, DFU_STATUS_SUCCESS);
+				break;
+			case OP_CODE_ACTIVATE_AND_RESET:
+				synchronized (this) {
+					mActivated = mState == STATE_VALIDATED;
+				}
+				linkLost();
+				break;
+			case OP_CODE_RESET:
+				linkLost();
+				break;
+			case OP_CODE_REPORT_RECEIVED_IMAGE_SIZE:
+				notify(new byte[] { OP_CODE_RESPONSE_CODE, OP_CODE_REPORT_RECEIVED_IMAGE_SIZE, DFU_STATUS_SUCCESS,
+						(byte) mBytesReceived, (byte) (mBytesReceived >> 8), (byte) (mBytesReceived >> 16), (byte) (mBytesReceived >> 24) });
+				break;
+			default:
+				respond(opCode, DFU_STATUS_NOT_SUPPORTED);
+				break;
+		}
+	}
+
+	private void onPacketReceived(final byte[] value) {
+		switch (mState) {
+			case STATE_WAITING_FOR_IMAGE_SIZE: {
+				final int length = Math.min(value.length, mImageSizeBytesExpected - mImageSizeBytesReceived);
+				System.arraycopy(value, 0, mImageSizeBuffer, mImageSizeBytesReceived, length);
+				mImageSizeBytesReceived += length;
+				if (mImageSizeBytesReceived < mImageSizeBytesExpected)
+					break;
+
+				mImageSize = 0;
+				for (int offset = 0; offset < mImageSizeBytesExpected; offset += 4)
+					mImageSize += (mImageSizeBuffer[offset] & 0xFF) | ((mImageSizeBuffer[offset + 1] & 0xFF) << 8) | ((mImageSizeBuffer[offset + 2] & 0xFF) << 16)
+							| ((mImageSizeBuffer[offset + 3] & 0xFF) << 24);
+				synchronized (this) {
+					mBytesReceived = 0;
+					mFirmware.reset();
+				}
+				mState = STATE_READY;
+				// The response is sent when the flash has been erased
+				mRadio.schedule(new Runnable() {
+					@Override
+					public void run() {
+						respond(OP_CODE_START_DFU, DFU_STATUS_SUCCESS);
+					}
+				}, mEraseTime, TimeUnit.MILLISECONDS);
+				break;
+			}
+			case STATE_RECEIVING_INIT_PACKET:
+				synchronized (this) {
+					mInitPacket.write(value, 0, value.length);
+				}
+				break;
+			case STATE_RECEIVING_FIRMWARE:
+				if (mBytesReceived + value.length > mImageSize) {
+					mState = STATE_READY;
+					respond(OP_CODE_RECEIVE_FIRMWARE_IMAGE, DFU_STATUS_DATA_SIZE_EXCEEDS_LIMIT);
+					break;
+				}
+				synchronized (this) {
+					mFirmware.write(value, 0, value.length);
+					mBytesReceived += value.length;
+				}
+
+				if (mBytesReceived == mImageSize) {
+					mState = STATE_FIRMWARE_RECEIVED;
+					respond(OP_CODE_RECEIVE_FIRMWARE_IMAGE, DFU_STATUS_SUCCESS);
+				} else if (mPacketsBeforeNotification > 0 && ++mPacketsSinceNotification == mPacketsBeforeNotification) {
+					mPacketsSinceNotification = 0;
+					notify(new byte[] { OP_CODE_PACKET_RECEIPT_NOTIF, (byte) mBytesReceived, (byte) (mBytesReceived >> 8), (byte) (mBytesReceived >> 16),
+							(byte) (mBytesReceived >> 24) });
+				}
+
+				if (mDisconnectAfter >= 0 && mBytesReceived >= mDisconnectAfter) {
+					mDisconnectAfter = -1;
+					linkLost();
+				}
+				break;
+			default:
+				// Packets sent in other states are ignored by the bootloader
+				break;
+		}
+	}
+
+	private void respond(final int opCode, final int status) {
+		notify(new byte[] { OP_CODE_RESPONSE_CODE, (byte) opCode, (byte) status });
+	}
+
+	private void notify(final byte[] value) {
+		mRadio.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (SimulatedLegacyDfuBootloader.this) {
+					if (!mConnected)
+						return;
+				}
+				final Listener listener = mListener;
+				if (listener != null)
+					listener.onNotification(value);
+			}
+		}, mLatency, TimeUnit.MILLISECONDS);
+	}
+
+	private void linkLost() {
+		synchronized (this) {
+			if (!mConnected)
+				return;
+			mConnected = false;
+			mBuffer.clear();
+			mPendingFrame = null;
+			mControlPointWriteInProgress = false;
+		}
+		mRadio.schedule(new Runnable() {
+			@Override
+			public void run() {
+				final Listener listener = mListener;
+				if (listener != null)
+					listener.onDisconnected();
+			}
+		}, mLatency, TimeUnit.MILLISECONDS);
+	}
+
+	private void reportPacketWritten(final int length) {
+		mRadio.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Listener listener = mListener;
+				if (listener != null)
+					listener.onPacketWritten(length);
+			}
+		});
+	}
+}